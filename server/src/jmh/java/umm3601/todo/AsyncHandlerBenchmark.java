@@ -0,0 +1,117 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.Javalin;
+
+import umm3601.ComputeExecutor;
+
+/**
+ * Compares handling heavy `/api/todos` requests on Jetty's request threads
+ * (`sync`) with handling them on the compute threads (`async`, see
+ * `ComputeExecutor`), under a mixed load: lots of clients asking for
+ * sorted, filtered lists of todos at the same time as a few asking for
+ * single todos and `/hello`.
+ * <p>
+ * Run with `./gradlew jmh`. This starts a real server on a free port and
+ * sends it real HTTP requests. The interesting numbers are the light
+ * requests' latencies (especially the high percentiles that `SampleTime`
+ * reports), which in `sync` mode include waiting behind the heavy requests
+ * for a core, and the heavy requests' throughput, which shouldn't get any
+ * worse in `async` mode.
+ */
+// JMH needs the `@Param` fields to be public and non-final
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AsyncHandlerBenchmark {
+
+  @Param({"200000"})
+  public int todoCount;
+
+  @Param({"sync", "async"})
+  public String mode;
+
+  private Javalin server;
+  private HttpClient client;
+  private String baseUri;
+  private String todoId;
+
+  // Makes every heavy request a little different, so they aren't shared
+  // (see `SingleFlight`) and really do all the work
+  private final AtomicInteger heavyCount = new AtomicInteger();
+
+  @Setup
+  public void setUp() {
+    Todo[] todos = BenchmarkTodos.generate(todoCount);
+    todoId = todos[todos.length / 2]._id;
+    TodoDatabase database = new TodoDatabase(todos, new TodoScanner(1), 1);
+    int cores = Runtime.getRuntime().availableProcessors();
+    ComputeExecutor computeExecutor = "async".equals(mode) ? new ComputeExecutor(cores, cores * 64) : null;
+
+    server = Javalin.create();
+    new TodoController(database, null, null, computeExecutor).addRoutes(server);
+    server.get("/hello", ctx -> ctx.result("Hello World"));
+    server.start(0);
+    baseUri = "http://localhost:" + server.port();
+    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  private int get(String path) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUri + path)).build();
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    return response.body().length;
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(32)
+  public int heavy() throws IOException, InterruptedException {
+    int limit = 100 + heavyCount.incrementAndGet() % 1000;
+    return get("/api/todos?contains=sit%20amet&orderBy=body&limit=" + limit);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public int singleTodo() throws IOException, InterruptedException {
+    return get("/api/todos/" + todoId);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public int hello() throws IOException, InterruptedException {
+    return get("/hello");
+  }
+}
@@ -0,0 +1,58 @@
+package umm3601.todo;
+
+import java.util.Random;
+
+/**
+ * Generates large, made-up sets of todos for the benchmarks, since the
+ * real `todos.json` only has a few hundred. The todos look like the real
+ * ones: a handful of owners and categories, and "lorem ipsum" bodies.
+ */
+@SuppressWarnings({"MagicNumber"})
+final class BenchmarkTodos {
+
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Dawn", "Workman", "Roberta"};
+  private static final String[] CATEGORIES = {"homework", "groceries", "software design", "video games"};
+  private static final String[] WORDS = {
+    "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipisicing", "elit", "sed", "do",
+    "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim",
+    "ad", "minim", "veniam", "quis", "nostrud", "exercitation", "ullamco", "laboris", "nisi",
+    "aliquip", "ex", "ea", "commodo", "consequat", "duis", "aute", "irure", "in", "reprehenderit",
+    "voluptate", "velit", "esse", "cillum", "fugiat", "nulla", "pariatur", "excepteur", "sint",
+    "occaecat", "cupidatat", "non", "proident", "sunt", "culpa", "qui", "officia", "deserunt",
+    "mollit", "anim", "id", "est", "laborum"
+  };
+
+  private BenchmarkTodos() {
+  }
+
+  /**
+   * Generate the given number of todos. The same count always gives the
+   * same todos, so runs can be compared.
+   *
+   * @param count the number of todos to generate
+   * @return the generated todos
+   */
+  static Todo[] generate(int count) {
+    Random random = new Random(3601);
+    Todo[] todos = new Todo[count];
+    for (int i = 0; i < count; i++) {
+      Todo todo = new Todo();
+      todo._id = String.format("%024x", i);
+      todo.owner = OWNERS[random.nextInt(OWNERS.length)];
+      todo.category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+      todo.status = random.nextBoolean();
+      StringBuilder body = new StringBuilder();
+      int words = 10 + random.nextInt(15);
+      for (int w = 0; w < words; w++) {
+        if (w > 0) {
+          body.append(' ');
+        }
+        body.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      body.append('.');
+      todo.body = body.toString();
+      todos[i] = todo;
+    }
+    return todos;
+  }
+}
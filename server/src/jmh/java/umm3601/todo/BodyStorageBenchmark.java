@@ -0,0 +1,86 @@
+package umm3601.todo;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares keeping the todo bodies on the Java heap (as strings, plus the
+ * byte copy `TodoBodies` searches) with keeping them off the heap in a
+ * direct buffer (`-Dumm3601.offHeapBodies=true`), for a few million todos.
+ * <p>
+ * Run with `./gradlew jmh`. The setup prints how much heap (and direct
+ * memory) is in use once the database is built and garbage collected, and
+ * `fullGc` times a full collection with the database in memory, which is
+ * roughly the longest pause the server would see; the pause grows with
+ * the number of live objects on the heap, and the off-heap bodies aren't
+ * objects at all. Add `-prof gc` to the JMH arguments to see how much each
+ * query allocates (the off-heap mode has to turn the bodies it returns
+ * back into strings).
+ */
+// JMH needs the `@Param` fields to be public and non-final
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class BodyStorageBenchmark {
+
+  private static final Map<String, List<String>> CONTAINS = Map.of("contains", List.of("sit amet"));
+  private static final Map<String, List<String>> PAGE = Map.of("orderBy", List.of("body"), "limit", List.of("100"));
+
+  @Param({"2000000"})
+  public int todoCount;
+
+  @Param({"heap", "offHeap"})
+  public String storage;
+
+  private TodoDatabase database;
+
+  @Setup
+  public void setUp() {
+    database = new TodoDatabase(BenchmarkTodos.generate(todoCount), new TodoScanner(1), 1,
+        "offHeap".equals(storage));
+    System.gc();
+    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    long direct = 0;
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        direct = pool.getMemoryUsed();
+      }
+    }
+    System.out.printf("%n%s: %d MB of heap and %d MB of direct memory in use after GC%n",
+        storage, heap >> 20, direct >> 20);
+  }
+
+  @Benchmark
+  public void fullGc() {
+    System.gc();
+  }
+
+  @Benchmark
+  public int containsQuery() {
+    return database.getTodos(CONTAINS).length;
+  }
+
+  @Benchmark
+  public int sortedPage() {
+    return database.getTodos(PAGE).length;
+  }
+}
@@ -0,0 +1,86 @@
+package umm3601.todo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares three ways of doing the `contains` filter over every todo:
+ * `String.contains` on each body, and the byte search over the contiguous
+ * bodies in `TodoBodies`, both a byte at a time and with the Vector API.
+ * <p>
+ * Run with `./gradlew jmh`. The needle is cut out of the middle of one
+ * body, so longer needles are rarer (and their first and last bytes rule
+ * out more positions).
+ */
+// JMH needs the `@Param` fields to be public and non-final
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContainsBenchmark {
+
+  @Param({"100000"})
+  public int todoCount;
+
+  @Param({"1", "3", "8", "24"})
+  public int needleLength;
+
+  private Todo[] todos;
+  private TodoBodies bodies;
+  private BitSet allTodos;
+  private String needle;
+  private byte[] needleBytes;
+
+  @Setup
+  public void setUp() {
+    todos = BenchmarkTodos.generate(todoCount);
+    bodies = TodoBodies.of(todos);
+    allTodos = new BitSet(todoCount);
+    allTodos.set(0, todoCount);
+    // Find a body long enough to cut the needle out of
+    int i = todoCount / 2;
+    while (todos[i].body.length() < needleLength + 2) {
+      i++;
+    }
+    int start = (todos[i].body.length() - needleLength) / 2;
+    needle = todos[i].body.substring(start, start + needleLength);
+    needleBytes = needle.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  @Benchmark
+  public int stringContains() {
+    int count = 0;
+    for (Todo todo : todos) {
+      if (todo.body.contains(needle)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int scalarBytes() {
+    return bodies.contains(allTodos, 0, todoCount, needleBytes, false).cardinality();
+  }
+
+  @Benchmark
+  public int vectorBytes() {
+    return bodies.contains(allTodos, 0, todoCount, needleBytes, true).cardinality();
+  }
+}
@@ -0,0 +1,64 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.NdjsonExport;
+
+/**
+ * Measures how many todos per second `/api/todos/export` can write, with
+ * and without gzip, for a few million todos. The output is thrown away,
+ * so this is just the cost of serializing (and compressing) them.
+ * <p>
+ * Run with `./gradlew jmh`. Each invocation exports every todo, and JMH
+ * counts each todo as an operation, so the scores are todos per second.
+ */
+@SuppressWarnings({"MagicNumber"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ExportBenchmark {
+
+  private static final int TODO_COUNT = 2_000_000;
+
+  private final NdjsonExport<Todo> export = new NdjsonExport<>(Todo.class);
+  private List<Todo[]> todos;
+
+  @Setup
+  public void setUp() {
+    todos = new TodoDatabase(BenchmarkTodos.generate(TODO_COUNT), new TodoScanner(1), 1).getAllTodos();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TODO_COUNT)
+  public long exportPlain() throws IOException {
+    return export.write(OutputStream.nullOutputStream(), todos);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TODO_COUNT)
+  public long exportGzipped() throws IOException {
+    GZIPOutputStream out = new GZIPOutputStream(OutputStream.nullOutputStream(), 64 * 1024);
+    long count = export.write(out, todos);
+    out.finish();
+    return count;
+  }
+}
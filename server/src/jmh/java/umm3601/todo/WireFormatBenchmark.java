@@ -0,0 +1,89 @@
+package umm3601.todo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.BinaryFormats;
+import umm3601.FieldProjection;
+
+/**
+ * Compares sending a list of todos as JSON with sending it as CBOR or
+ * Smile, the way `BinaryFormats` writes API responses: all the todos
+ * through each format's mapper, and just some of their fields (for
+ * `fields=`) through the same mapper, or, for JSON, from the kept
+ * fragments.
+ * <p>
+ * Run with `./gradlew jmh`. The size of each encoding is printed during
+ * setup, since JMH only measures time.
+ */
+// JMH needs the `@Param` fields to be public and non-final
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+  @Param({"1000", "100000"})
+  public int todoCount;
+
+  private Todo[] todos;
+  private FieldProjection<Todo> projection;
+  private List<String> fields;
+
+  @Setup
+  public void setUp() {
+    todos = BenchmarkTodos.generate(todoCount);
+    projection = TodoQuery.newFieldProjection();
+    fields = projection.select("_id,owner,status");
+    // Serialize the fragments once, as the first request would
+    projection.write(todos, fields, true);
+    System.out.printf("%n%d todos: JSON %d bytes, CBOR %d bytes, Smile %d bytes%n", todoCount,
+        BinaryFormats.Format.JSON.encode(todos).length, BinaryFormats.Format.CBOR.encode(todos).length,
+        BinaryFormats.Format.SMILE.encode(todos).length);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() {
+    return BinaryFormats.Format.JSON.encode(todos);
+  }
+
+  @Benchmark
+  public byte[] encodeCbor() {
+    return BinaryFormats.Format.CBOR.encode(todos);
+  }
+
+  @Benchmark
+  public byte[] encodeSmile() {
+    return BinaryFormats.Format.SMILE.encode(todos);
+  }
+
+  @Benchmark
+  public byte[] projectJson() {
+    return projection.write(todos, fields, true);
+  }
+
+  @Benchmark
+  public byte[] projectCbor() {
+    return projection.write(todos, fields, BinaryFormats.Format.CBOR.getMapper());
+  }
+
+  @Benchmark
+  public byte[] projectSmile() {
+    return projection.write(todos, fields, BinaryFormats.Format.SMILE.getMapper());
+  }
+}
@@ -0,0 +1,210 @@
+package umm3601;
+
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.javalin.Javalin;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+
+/**
+ * Lets API clients ask (with the `Accept` header) for responses in a
+ * compact binary encoding of JSON instead of JSON text: CBOR
+ * (`application/cbor`) or Jackson's Smile (`application/x-jackson-smile`).
+ * <p>
+ * The encoding is picked before a request is handled, and kept on the
+ * request (see `formatOf`). The handlers then write their results with
+ * `json` (or, for results they've already encoded themselves, `result`),
+ * which encodes them straight into the picked encoding with its own
+ * `ObjectMapper`, so a CBOR or Smile response is never made as JSON first.
+ * Numbers and `true`/`false` take a byte or two instead of their text, and
+ * Smile also only sends each repeated field name (`"owner"`, `"status"`,
+ * ...) once, so the responses are smaller and quicker for other services
+ * to read.
+ * <p>
+ * Clients that don't ask for either (browsers, `curl`, ...) get JSON
+ * just like before. Responses say `Vary: Accept`, so caches keep the
+ * encodings apart. Errors (which Javalin writes itself) are always JSON.
+ * <p>
+ * This is only for responses. Request bodies (there's just the one, for
+ * an administrator replacing the todos) are always JSON
+ * (`Content-Type: application/json`), whatever the client asks to be sent
+ * back.
+ */
+public class BinaryFormats implements Controller {
+
+  // The request attribute the picked encoding is kept in
+  static final String ATTRIBUTE = "umm3601.format";
+
+  /**
+   * The encodings we can send.
+   */
+  public enum Format {
+    JSON(ContentType.JSON, new JsonFactory()),
+    CBOR("application/cbor", new CBORFactory()),
+    SMILE("application/x-jackson-smile", new SmileFactory());
+
+    private final String mediaType;
+    private final ObjectMapper mapper;
+
+    Format(String mediaType, JsonFactory factory) {
+      this.mediaType = mediaType;
+      this.mapper = new ObjectMapper(factory);
+    }
+
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    /**
+     * Get the mapper that writes values in this encoding.
+     */
+    public ObjectMapper getMapper() {
+      return mapper;
+    }
+
+    /**
+     * Encode a value in this encoding.
+     *
+     * @param value the value to encode
+     * @return the encoded value
+     */
+    public byte[] encode(Object value) {
+      try {
+        return mapper.writeValueAsBytes(value);
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException("Could not encode a value as " + mediaType, e);
+      }
+    }
+  }
+
+  /**
+   * Work out which encoding a client would like from its `Accept` header.
+   * Each media type can have a quality (`;q=0.5`), and the supported one
+   * with the highest quality wins; when qualities tie, the first one
+   * listed wins.
+   *
+   * @param accept the `Accept` header, or `null` if there isn't one
+   * @return the encoding to use
+   */
+  public static Format negotiate(String accept) {
+    if (accept == null) {
+      return Format.JSON;
+    }
+    Format best = Format.JSON;
+    double bestQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String mediaType = parts[0].trim().toLowerCase(Locale.ROOT);
+      double quality = quality(parts);
+      if (quality <= bestQuality) {
+        continue;
+      }
+      if (isJson(mediaType)) {
+        best = Format.JSON;
+        bestQuality = quality;
+      }
+      for (Format format : Format.values()) {
+        if (format.mediaType.equals(mediaType)) {
+          best = format;
+          bestQuality = quality;
+        }
+      }
+    }
+    return best;
+  }
+
+  private static boolean isJson(String mediaType) {
+    return mediaType.equals(ContentType.JSON) || mediaType.equals("*/*") || mediaType.equals("application/*");
+  }
+
+  /**
+   * Get the `q` parameter of a media range (1 if there isn't one, and 0
+   * if it can't be parsed).
+   */
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Pick the encoding for a request's response, and keep it on the
+   * request for `formatOf`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void chooseFormat(Context ctx) {
+    ctx.header("Vary", "Accept");
+    Format format = negotiate(ctx.header("Accept"));
+    if (format != Format.JSON) {
+      ctx.attribute(ATTRIBUTE, format);
+    }
+  }
+
+  /**
+   * Get the encoding picked for a request's response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the encoding (JSON if nothing else was picked)
+   */
+  public static Format formatOf(Context ctx) {
+    Format format = ctx.attribute(ATTRIBUTE);
+    return format == null ? Format.JSON : format;
+  }
+
+  /**
+   * Send a value as the response, in the encoding picked for the request.
+   * JSON is left to Javalin (with `ctx.json`), as usual.
+   *
+   * @param ctx   a Javalin HTTP context
+   * @param value the value to send
+   */
+  public static void json(Context ctx, Object value) {
+    Format format = formatOf(ctx);
+    if (format == Format.JSON) {
+      ctx.json(value);
+    } else {
+      result(ctx, format, format.encode(value));
+    }
+  }
+
+  /**
+   * Send an already encoded response.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param format  the response's encoding
+   * @param encoded the response
+   */
+  public static void result(Context ctx, Format format, byte[] encoded) {
+    if (format == Format.JSON) {
+      ctx.contentType(ContentType.APPLICATION_JSON);
+    } else {
+      ctx.contentType(format.getMediaType());
+    }
+    ctx.result(encoded);
+  }
+
+  /**
+   * Pick the encoding for all the API routes' responses.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.before("/api/*", this::chooseFormat);
+  }
+}
@@ -0,0 +1,180 @@
+package umm3601;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * A small, fixed pool of threads for the "heavy" API requests (filtering,
+ * sorting, and serializing lots of todos or users), so they don't run on
+ * Jetty's request threads.
+ * <p>
+ * Jetty has a couple of hundred request threads. If each of them is busy
+ * sorting todos, there are far more threads wanting the CPU than there are
+ * cores, so every request (even a tiny one like `/api/todos/{id}` or
+ * `/hello`) waits its turn behind them, and the heavy requests themselves
+ * slow down from all the switching between threads. With this turned on
+ * (`-Dumm3601.asyncCompute=true`), a heavy request's handler is instead
+ * run with `ctx.future` on one of this pool's threads (one per core by
+ * default), and the Jetty thread is free to handle other requests
+ * straight away. Heavy requests queue up for the pool rather than for the
+ * CPU, and small requests don't queue at all.
+ * <p>
+ * The queue is bounded: once it's full, heavy requests get a 503 (Service
+ * Unavailable) rather than waiting longer and longer. How deep the queue
+ * is, and how long requests wait in it, are at `/api/admin/compute`. (The
+ * wait also shows up as the "queue" phase in `ServerTiming`.)
+ */
+public class ComputeExecutor implements Controller {
+
+  public static final String STATS_PATH = "/api/admin/compute";
+
+  private static final double NANOS_PER_MICRO = 1_000.0;
+
+  private final ThreadPoolExecutor executor;
+  private final int queueCapacity;
+
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder started = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalQueueNanos = new LongAdder();
+  private final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+  private final LongAccumulator peakQueued = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Make a pool of compute threads.
+   *
+   * @param threads       how many threads (usually the number of cores)
+   * @param queueCapacity how many requests may wait for a thread before
+   *                      more are turned away
+   */
+  public ComputeExecutor(int threads, int queueCapacity) {
+    this.queueCapacity = Math.max(1, queueCapacity);
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(this.queueCapacity), runnable -> {
+          Thread thread = new Thread(runnable, "compute-" + threadCount.incrementAndGet());
+          // These threads mustn't keep the JVM running once the server stops
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Run a handler on one of the compute threads.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param handler the handler to run
+   */
+  public void handle(Context ctx, Handler handler) {
+    // The timings (if any) are looked up here, on the request thread
+    ServerTiming.Timings timings = ServerTiming.of(ctx);
+    ctx.future(() -> submit(ctx, handler, timings));
+  }
+
+  /**
+   * Queue a handler to run on one of the compute threads.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param handler the handler to run
+   * @param timings the request's timings, or `null` if it isn't being timed
+   * @return a future for the handler finishing, which fails with a 503 if
+   *         the queue is full, or with whatever the handler throws
+   */
+  CompletableFuture<Void> submit(Context ctx, Handler handler, ServerTiming.Timings timings) {
+    long queued = System.nanoTime();
+    try {
+      CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+        long waited = System.nanoTime() - queued;
+        started.increment();
+        totalQueueNanos.add(waited);
+        maxQueueNanos.accumulate(waited);
+        if (timings != null) {
+          timings.add("queue", queued);
+        }
+        try {
+          handler.handle(ctx);
+        } catch (Exception e) {
+          // Javalin unwraps this, and handles `e` like any other exception
+          // from a handler
+          throw new CompletionException(e);
+        }
+      }, executor);
+      submitted.increment();
+      peakQueued.accumulate(executor.getQueue().size());
+      return future;
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      return CompletableFuture.failedFuture(
+          new ServiceUnavailableResponse("The server is too busy right now; please try again shortly"));
+    }
+  }
+
+  /**
+   * Wrap a handler so it runs on the compute threads, if there are any.
+   *
+   * @param computeExecutor the compute threads, or `null` to run the
+   *                        handler on the request thread as usual
+   * @param handler         the handler
+   * @return a handler that runs `handler` on the compute threads (or
+   *         `handler` itself, if there aren't any)
+   */
+  public static Handler wrap(ComputeExecutor computeExecutor, Handler handler) {
+    if (computeExecutor == null) {
+      return handler;
+    }
+    return ctx -> computeExecutor.handle(ctx, handler);
+  }
+
+  /**
+   * Get a snapshot of the pool's counters.
+   *
+   * @return the current counters
+   */
+  public ComputeStats getStats() {
+    ComputeStats stats = new ComputeStats();
+    stats.threads = executor.getMaximumPoolSize();
+    stats.active = executor.getActiveCount();
+    stats.queued = executor.getQueue().size();
+    stats.peakQueued = (int) peakQueued.get();
+    stats.queueCapacity = queueCapacity;
+    stats.submitted = submitted.sum();
+    stats.completed = executor.getCompletedTaskCount();
+    stats.rejected = rejected.sum();
+    long startedCount = started.sum();
+    stats.meanQueueMicros = startedCount == 0 ? 0 : totalQueueNanos.sum() / NANOS_PER_MICRO / startedCount;
+    stats.maxQueueMicros = maxQueueNanos.get() / NANOS_PER_MICRO;
+    return stats;
+  }
+
+  /**
+   * Handles HTTP requests for the pool's counters.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getComputeStats(Context ctx) {
+    BinaryFormats.json(ctx, getStats());
+  }
+
+  /**
+   * Add a route for the pool's counters. (The controllers decide which of
+   * their own routes run on the pool, with `wrap`.)
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(STATS_PATH, this::getComputeStats);
+  }
+}
@@ -0,0 +1,27 @@
+package umm3601;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * A snapshot of the compute threads' counters (see `ComputeExecutor`), for
+ * monitoring.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class ComputeStats {
+  // The number of compute threads, and how many are busy right now
+  public int threads;
+  public int active;
+  // The requests waiting for a thread right now, the most there have been
+  // at once, and the most there can be before requests are turned away
+  public int queued;
+  public int peakQueued;
+  public int queueCapacity;
+  // Requests handed to the threads, finished, and turned away (503)
+  public long submitted;
+  public long completed;
+  public long rejected;
+  // How long requests have waited for a thread, on average and at most
+  public double meanQueueMicros;
+  public double maxQueueMicros;
+}
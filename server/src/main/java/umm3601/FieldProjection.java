@@ -0,0 +1,245 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Writes lists of records (e.g., `Todo`s) as JSON with only some of their
+ * fields, for requests with a `fields=` parameter like
+ * `fields=_id,owner,status`.
+ * <p>
+ * Most of the work of serializing a record is turning each field into
+ * JSON, and the records in our databases never change, so each field of a
+ * record is only ever serialized once: the `"name":value` fragment is kept
+ * and then just copied into every response that asks for that field. A
+ * response with a third of the fields is then (roughly) a third the size,
+ * and takes a third of the time to make.
+ * <p>
+ * Fragments are kept by record identity (our records don't override
+ * `equals`), and only for fields that have actually been asked for, so
+ * the long todo bodies aren't copied unless someone wants them. Each
+ * database has its own projection for its own records (see, e.g.,
+ * `TodoDatabase.getFieldProjection`), so the fragments are dropped along
+ * with the database when its records are replaced.
+ *
+ * @param <T> the type of the records
+ */
+public class FieldProjection<T> {
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  // The names of the fields, in the order we put them in the JSON
+  private final List<String> names;
+  // How to get each field's value from a record
+  private final List<Function<T, Object>> getters;
+  // Where each field is in `names`
+  private final Map<String, Integer> indexes = new LinkedHashMap<>();
+  // Each field name as a JSON string followed by a colon
+  private final byte[][] nameFragments;
+
+  // The serialized `"name":value` fragments of each record, by field
+  // index; a fragment is `null` until it's first asked for
+  private final Map<T, AtomicReferenceArray<byte[]>> fragments = new ConcurrentHashMap<>();
+
+  /**
+   * Make a projection for records with the given fields.
+   *
+   * @param fields the name of each field (in the order they should be
+   *               written) and how to get its value from a record
+   */
+  public FieldProjection(Map<String, Function<T, Object>> fields) {
+    this.names = List.copyOf(fields.keySet());
+    this.getters = new ArrayList<>(fields.values());
+    this.nameFragments = new byte[names.size()][];
+    for (int i = 0; i < names.size(); i++) {
+      indexes.put(names.get(i), i);
+      nameFragments[i] = (toJson(names.get(i)) + ":").getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Get the names of all the fields that can be picked.
+   */
+  public List<String> getNames() {
+    return names;
+  }
+
+  /**
+   * Parse a `fields` parameter, which is a comma separated list of field
+   * names, e.g., `_id,owner,status`.
+   *
+   * @param fieldsParam the `fields` parameter, or `null` if there isn't one
+   * @return the named fields, without repeats and in our order, or `null`
+   *         for all of them
+   * @throws BadRequestResponse if a name isn't one of our fields, or there
+   *                            aren't any names at all
+   */
+  public List<String> select(String fieldsParam) {
+    if (fieldsParam == null) {
+      return null;
+    }
+    // The fields are always written in the same order, whatever order
+    // they're asked for in
+    Set<String> selected = new TreeSet<>(Comparator.comparing(indexes::get));
+    for (String field : fieldsParam.split(",")) {
+      String trimmedField = field.trim();
+      if (trimmedField.isEmpty()) {
+        continue;
+      }
+      if (!indexes.containsKey(trimmedField)) {
+        throw new BadRequestResponse(
+            "Specified field '" + trimmedField + "' must be one of " + String.join(", ", names));
+      }
+      selected.add(trimmedField);
+    }
+    if (selected.isEmpty()) {
+      throw new BadRequestResponse("Specified fields '" + fieldsParam + "' must name at least one field");
+    }
+    return Collections.unmodifiableList(new ArrayList<>(selected));
+  }
+
+  /**
+   * Write the given records as a JSON array of objects with just the
+   * given fields.
+   *
+   * @param records        the records to write
+   * @param fields         the fields to write (from `select`)
+   * @param keepFragments  whether to keep the serialized fields for next
+   *                       time; this should be `false` for records that are
+   *                       made up just for one response, so they don't pile
+   *                       up here
+   * @return the JSON, as UTF-8 bytes
+   */
+  public byte[] write(T[] records, List<String> fields, boolean keepFragments) {
+    int[] fieldIndexes = indexesOf(fields);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write('[');
+    for (int r = 0; r < records.length; r++) {
+      if (r > 0) {
+        out.write(',');
+      }
+      writeRecord(out, records[r], fieldIndexes, keepFragments);
+    }
+    out.write(']');
+    return out.toByteArray();
+  }
+
+  /**
+   * Write the given records as an array of objects with just the given
+   * fields, in another encoding than JSON (e.g., CBOR; see
+   * `BinaryFormats`). The kept pieces of JSON are no use for that, so the
+   * fields are written one at a time, straight into the encoding.
+   *
+   * @param records the records to write
+   * @param fields  the fields to write (from `select`)
+   * @param mapper  the mapper for the encoding
+   * @return the encoded records
+   */
+  public byte[] write(T[] records, List<String> fields, ObjectMapper mapper) {
+    int[] fieldIndexes = indexesOf(fields);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = mapper.createGenerator(out)) {
+      generator.writeStartArray();
+      for (T record : records) {
+        generator.writeStartObject();
+        for (int index : fieldIndexes) {
+          generator.writeFieldName(names.get(index));
+          generator.writeObject(getters.get(index).apply(record));
+        }
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write records", e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Write a single record as a JSON object with just the given fields.
+   *
+   * @param record        the record to write
+   * @param fields        the fields to write (from `select`)
+   * @param keepFragments whether to keep the serialized fields for next
+   *                      time
+   * @return the JSON, as UTF-8 bytes
+   */
+  public byte[] writeOne(T record, List<String> fields, boolean keepFragments) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeRecord(out, record, indexesOf(fields), keepFragments);
+    return out.toByteArray();
+  }
+
+  private int[] indexesOf(List<String> fields) {
+    int[] fieldIndexes = new int[fields.size()];
+    for (int i = 0; i < fieldIndexes.length; i++) {
+      fieldIndexes[i] = indexes.get(fields.get(i));
+    }
+    return fieldIndexes;
+  }
+
+  private void writeRecord(ByteArrayOutputStream out, T record, int[] fieldIndexes, boolean keepFragments) {
+    AtomicReferenceArray<byte[]> recordFragments = keepFragments
+        ? fragments.computeIfAbsent(record, r -> new AtomicReferenceArray<>(names.size()))
+        : new AtomicReferenceArray<>(names.size());
+    out.write('{');
+    for (int f = 0; f < fieldIndexes.length; f++) {
+      if (f > 0) {
+        out.write(',');
+      }
+      int index = fieldIndexes[f];
+      byte[] fragment = recordFragments.get(index);
+      if (fragment == null) {
+        // Two requests might both make the same fragment at once, but
+        // they'll make identical ones, so it doesn't matter which is kept
+        fragment = fragment(record, index);
+        recordFragments.set(index, fragment);
+      }
+      out.writeBytes(fragment);
+    }
+    out.write('}');
+  }
+
+  /**
+   * Get the number of records with serialized fields kept for next time.
+   */
+  public int getKeptCount() {
+    return fragments.size();
+  }
+
+  private byte[] fragment(T record, int index) {
+    byte[] value = toJson(getters.get(index).apply(record)).getBytes(StandardCharsets.UTF_8);
+    byte[] name = nameFragments[index];
+    byte[] fragment = new byte[name.length + value.length];
+    System.arraycopy(name, 0, fragment, 0, name.length);
+    System.arraycopy(value, 0, fragment, name.length, value.length);
+    return fragment;
+  }
+
+  private static String toJson(Object value) {
+    try {
+      return JSON_MAPPER.writeValueAsString(value);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not serialize field value", e);
+    }
+  }
+}
@@ -1,26 +1,181 @@
 package umm3601;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+
+import umm3601.admission.AdmissionControl;
+import umm3601.health.Health;
+import umm3601.health.Warmup;
+import umm3601.querylog.SlowQueryLog;
+import umm3601.todo.TodoCluster;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoScanner;
 import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
 
 public class Main {
   public static final String USER_DATA_FILE = "/users.json";
   public static final String TODO_DATA_FILE = "/todos.json";
 
+  // The number of threads used to scan todos for filters that can't use an
+  // index (e.g., `contains`), and how many todos there need to be to check
+  // before a scan is split across those threads. These can be set with
+  // `-Dumm3601.scanThreads=...` and `-Dumm3601.scanThreshold=...`.
+  static final int SCAN_THREADS =
+      Integer.getInteger("umm3601.scanThreads", Runtime.getRuntime().availableProcessors());
+  static final int SCAN_THRESHOLD = Integer.getInteger("umm3601.scanThreshold", TodoScanner.DEFAULT_THRESHOLD);
+  // The number of partitions to split the todos into (by owner). Each
+  // partition has its own indexes, and queries that aren't for a single
+  // owner are run against all of them in parallel. This can be set with
+  // `-Dumm3601.todoPartitions=...`.
+  static final int TODO_PARTITIONS = Integer.getInteger("umm3601.todoPartitions", 1);
+  // With `-Dumm3601.offHeapBodies=true` the todo bodies are kept off the
+  // Java heap (see `TodoBodies`), which makes the heap, and full GC pauses,
+  // much smaller when there are a lot of todos.
+  static final boolean OFF_HEAP_BODIES = Boolean.getBoolean("umm3601.offHeapBodies");
+
+  // The port to listen on, which can be set with `-Dumm3601.port=...`.
+  static final int SERVER_PORT = Integer.getInteger("umm3601.port", Server.DEFAULT_PORT);
+  // To run several instances as a cluster (see `TodoCluster`), give every
+  // instance the same comma-separated list of all the instances'
+  // `host:port`s with `-Dumm3601.peers=...`, and (if it isn't
+  // `localhost:PORT`) its own with `-Dumm3601.self=...`. For example, two
+  // instances on one machine could be started with
+  //
+  //   ./gradlew run -Dumm3601.port=4567 -Dumm3601.peers=localhost:4567,localhost:4568
+  //   ./gradlew run -Dumm3601.port=4568 -Dumm3601.peers=localhost:4567,localhost:4568
+  static final String PEERS = System.getProperty("umm3601.peers", "");
+  static final String SELF = System.getProperty("umm3601.self", "localhost:" + SERVER_PORT);
+
+  // Admission control (see `AdmissionControl`): the requests per second
+  // (and burst) allowed from each client (a rate of 0, the default, turns
+  // this off), the header a load balancer puts each client's address in,
+  // the starting and largest number of requests handled at once, how long
+  // requests should take, and the longest a request may wait for a slot.
+  // These can be set with `-Dumm3601.rateLimit=...`, etc.
+  //
+  // Behind a load balancer every request comes from the balancer, so
+  // turning on the rate limit without `-Dumm3601.clientIpHeader=...`
+  // (e.g., `X-Forwarded-For`) would limit all the clients together. Only
+  // set that header if every request does come through the balancer,
+  // since otherwise clients could set it themselves.
+  static final int RATE_LIMIT = Integer.getInteger("umm3601.rateLimit", 0);
+  static final int RATE_BURST = Integer.getInteger("umm3601.rateBurst", 200);
+  static final String CLIENT_IP_HEADER = System.getProperty("umm3601.clientIpHeader");
+  static final int INITIAL_CONCURRENCY =
+      Integer.getInteger("umm3601.initialConcurrency", Runtime.getRuntime().availableProcessors() * 2);
+  static final int MAX_CONCURRENCY =
+      Integer.getInteger("umm3601.maxConcurrency", Runtime.getRuntime().availableProcessors() * 16);
+  static final int TARGET_LATENCY_MILLIS = Integer.getInteger("umm3601.targetLatencyMillis", 100);
+  static final int QUEUE_BUDGET_MILLIS = Integer.getInteger("umm3601.queueBudgetMillis", 50);
+
+  // With `-Dumm3601.staticAssets=memory` the client's files are loaded into
+  // memory at startup and served from there (see `StaticAssets`), rather
+  // than read from disk on every request. The default (`disk`) is handier
+  // while working on the client, since changes show up right away.
+  static final boolean STATIC_ASSETS_IN_MEMORY = "memory".equals(System.getProperty("umm3601.staticAssets", "disk"));
+
+  // With `-Dumm3601.serverTiming=true` every API response has a
+  // `Server-Timing` header saying how long each step of handling it took
+  // (see `ServerTiming`).
+  static final boolean SERVER_TIMING = Boolean.getBoolean("umm3601.serverTiming");
+
+  // The slow query log (see `SlowQueryLog`): how long an `/api/todos` or
+  // `/api/users` query has to take to be logged, how many recent slow
+  // queries to keep, and to only log one in every so many slow queries of
+  // the same shape. These can be set with `-Dumm3601.slowQueryMillis=...`,
+  // etc. The log times every query it looks at, so it's off (a negative
+  // threshold) unless a threshold is given, e.g., `250`.
+  static final int SLOW_QUERY_MILLIS = Integer.getInteger("umm3601.slowQueryMillis", -1);
+  static final int SLOW_QUERY_CAPACITY = Integer.getInteger("umm3601.slowQueryCapacity", 100);
+  static final int SLOW_QUERY_LOG_EVERY = Integer.getInteger("umm3601.slowQueryLogEvery", 1);
+
+  // With `-Dumm3601.asyncCompute=true` the heavy API requests (lists of
+  // todos and users) are handled on a pool of compute threads rather than
+  // Jetty's request threads (see `ComputeExecutor`). The number of threads
+  // (by default one per core) and how many requests may wait for one can
+  // be set with `-Dumm3601.computeThreads=...` and
+  // `-Dumm3601.computeQueue=...`.
+  static final boolean ASYNC_COMPUTE = Boolean.getBoolean("umm3601.asyncCompute");
+  static final int COMPUTE_THREADS =
+      Integer.getInteger("umm3601.computeThreads", Runtime.getRuntime().availableProcessors());
+  static final int COMPUTE_QUEUE = Integer.getInteger("umm3601.computeQueue", COMPUTE_THREADS * 64);
+
+  // Before saying it's ready (at `/health/ready`), the server warms up by
+  // running typical queries itself (see `Warmup`), at most this many
+  // rounds of them, taking at most (about) this long. 0 rounds skips the
+  // warmup. These can be set with `-Dumm3601.warmupRounds=...` and
+  // `-Dumm3601.warmupMillis=...`.
+  static final int WARMUP_ROUNDS = Integer.getInteger("umm3601.warmupRounds", 1000);
+  static final int WARMUP_MILLIS = Integer.getInteger("umm3601.warmupMillis", 10_000);
+
+  // With `-Dumm3601.reloadToken=...` an administrator can replace all the
+  // todos by PUTting them to `/api/admin/todos` with an
+  // `Authorization: Bearer ...` header giving the same token, and live
+  // queries are told what changed (see `TodoController.replaceTodos`).
+  // Without a token there's no such route. This doesn't work in a cluster.
+  static final String RELOAD_TOKEN = System.getProperty("umm3601.reloadToken");
+
+  // With `-Dumm3601.exitAfterStartup=true` the server stops as soon as it
+  // has started. This is how `./gradlew cdsArchive` records which classes
+  // the server loads while starting up.
+  static final boolean EXIT_AFTER_STARTUP = Boolean.getBoolean("umm3601.exitAfterStartup");
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+
   public static void main(String[] args) throws IOException {
+    // Keeps track of how long each part of starting up takes
+    StartupTimer timer = new StartupTimer();
+
+    // The client's files can be loaded at the same time as the databases
+    CompletableFuture<StaticAssets> staticAssets = STATIC_ASSETS_IN_MEMORY
+        ? timer.timeAsync("load client files", () -> StaticAssets.load(Path.of(Server.CLIENT_DIRECTORY)))
+        : null;
+
+    // The health checks say the server isn't ready until it has warmed up.
+    Health health = new Health();
 
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers();
+    Controller[] controllers = Main.getControllers(timer, health);
+    if (staticAssets != null) {
+      controllers = Arrays.copyOf(controllers, controllers.length + 1);
+      controllers[controllers.length - 1] = StartupTimer.join(staticAssets);
+    }
 
     // Construct the server
-    Server server = new Server(controllers);
+    Server server = new Server(controllers, SERVER_PORT, !STATIC_ASSETS_IN_MEMORY);
 
     // Start the server
-    server.startServer();
+    Javalin javalin = timer.time("start server", server::startServer);
+    // Warm up while the health checks answer (that we're live, but not yet
+    // ready), and then start taking traffic
+    timer.time("warm up", () -> {
+      health.warmUp();
+      return health;
+    });
+    LOGGER.info(timer.report());
+
+    if (EXIT_AFTER_STARTUP) {
+      javalin.stop();
+      // Some of our thread pools would otherwise keep the JVM running
+      System.exit(0);
+    }
   }
 
   /**
@@ -30,18 +185,115 @@ public class Main {
    * implements the `Controller` interface. You'll add your own controllers
    * in to the array returned by this method as you create them.
    *
+   * The databases don't depend on each other, so they're all loaded at
+   * the same time.
+   *
+   * @param timer  keeps track of how long loading each database takes
+   * @param health the health checks, which are given a warmup to run
+   *               against the databases
    * @return An array of implementations of `Controller` for the server.
    * @throws IOException
    */
-  static Controller[] getControllers() throws IOException {
+  static Controller[] getControllers(StartupTimer timer, Health health) throws IOException {
+    CompletableFuture<UserDatabase> users = timer.timeAsync("load users", () -> new UserDatabase(USER_DATA_FILE));
+    CompletableFuture<TodoDatabase> todos = timer.timeAsync("load todos",
+        () -> new TodoDatabase(TODO_DATA_FILE, new TodoScanner(SCAN_THREADS, SCAN_THRESHOLD), TODO_PARTITIONS,
+            OFF_HEAP_BODIES));
+
+    // The user "database" is shared by both controllers, since the todo
+    // controller uses it to join todos with their owners.
+    UserDatabase userDatabase = StartupTimer.join(users);
+    TodoDatabase todoDatabase = StartupTimer.join(todos);
+
+    ComputeExecutor computeExecutor = ASYNC_COMPUTE ? new ComputeExecutor(COMPUTE_THREADS, COMPUTE_QUEUE) : null;
+    TodoCluster todoCluster = getTodoCluster(todoDatabase);
+    TodoController todoController = new TodoController(todoDatabase, userDatabase, todoCluster, computeExecutor);
+    if (todoCluster == null) {
+      todoController.setReloadToken(RELOAD_TOKEN);
+    } else if (RELOAD_TOKEN != null) {
+      LOGGER.warn("Todos can't be reloaded in a cluster, so umm3601.reloadToken is ignored");
+    }
+
     Controller[] controllers = new Controller[] {
+      // Admission control sits in front of all the other API routes
+      new AdmissionControl(RATE_LIMIT, RATE_BURST, INITIAL_CONCURRENCY, MAX_CONCURRENCY,
+          TARGET_LATENCY_MILLIS, QUEUE_BUDGET_MILLIS, CLIENT_IP_HEADER, getPeerAddresses()),
+      // Sends API responses as CBOR or Smile to clients that ask for them
+      new BinaryFormats(),
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
-      UserController.buildUserController(USER_DATA_FILE),
-      TodoController.buildTodoController(TODO_DATA_FILE)
+      new UserController(userDatabase, computeExecutor),
+      todoController,
+      health
     };
+    if (computeExecutor != null) {
+      // For the compute threads' counters
+      controllers = Arrays.copyOf(controllers, controllers.length + 1);
+      controllers[controllers.length - 1] = computeExecutor;
+    }
+    if (WARMUP_ROUNDS > 0) {
+      health.setWarmup(new Warmup(todoDatabase, userDatabase, WARMUP_ROUNDS, WARMUP_MILLIS));
+    }
+    if (SLOW_QUERY_MILLIS >= 0) {
+      controllers = Arrays.copyOf(controllers, controllers.length + 1);
+      controllers[controllers.length - 1] = new SlowQueryLog(SLOW_QUERY_MILLIS, SLOW_QUERY_CAPACITY,
+          SLOW_QUERY_LOG_EVERY);
+    }
+    if (SERVER_TIMING) {
+      // This goes last, so its timings include everything the others do
+      controllers = Arrays.copyOf(controllers, controllers.length + 1);
+      controllers[controllers.length - 1] = new ServerTiming();
+    }
     return controllers;
   }
 
+  /**
+   * Get this instance's part in a cluster, if `umm3601.peers` lists the
+   * instances in one.
+   *
+   * @param todoDatabase this instance's todos
+   * @return this instance's part in the cluster, or `null` if it's running
+   *         on its own
+   */
+  static TodoCluster getTodoCluster(TodoDatabase todoDatabase) {
+    if (PEERS.isBlank()) {
+      return null;
+    }
+    List<String> peers = new ArrayList<>();
+    for (String peer : PEERS.split(",")) {
+      peers.add(peer.trim());
+    }
+    return new TodoCluster(SELF, peers, todoDatabase);
+  }
+
+  /**
+   * Get the IP addresses of the instances listed in `umm3601.peers`, so
+   * their requests to each other can skip admission control.
+   *
+   * @return the peers' addresses (empty if there's no cluster)
+   */
+  static Set<String> getPeerAddresses() {
+    Set<String> addresses = new HashSet<>();
+    if (PEERS.isBlank()) {
+      return addresses;
+    }
+    for (String peer : PEERS.split(",")) {
+      String host = peer.trim();
+      int colon = host.lastIndexOf(':');
+      if (colon >= 0) {
+        host = host.substring(0, colon);
+      }
+      try {
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+          addresses.add(address.getHostAddress());
+        }
+      } catch (UnknownHostException e) {
+        // Its requests will just be limited like anyone else's
+        LOGGER.warn("Could not find the address of peer {}", peer);
+      }
+    }
+    return addresses;
+  }
+
 }
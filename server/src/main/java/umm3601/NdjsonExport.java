@@ -0,0 +1,109 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import io.javalin.http.Context;
+
+/**
+ * Streams every record in a "database" to a client as newline-delimited
+ * JSON (NDJSON): one JSON object per line, rather than one big JSON array.
+ * <p>
+ * This is meant for bulk exports (e.g., a nightly job copying all the
+ * todos somewhere else). Building the whole array first means holding all
+ * of its JSON in memory at once; here the records are serialized a chunk
+ * at a time into one small buffer, which is written to the client before
+ * the next chunk is made. Writing blocks whenever the client (or the
+ * network) can't keep up, so we never get more than a chunk ahead of what
+ * the client has actually taken, however many records there are.
+ * <p>
+ * Clients that accept gzip (`Accept-Encoding: gzip`) get the lines
+ * gzipped, which for JSON like ours is several times smaller.
+ *
+ * @param <T> the type of the records
+ */
+public class NdjsonExport<T> {
+
+  public static final String CONTENT_TYPE = "application/x-ndjson";
+
+  // How many records to serialize before writing them out
+  static final int CHUNK_SIZE = 1024;
+  // The size of the gzip buffer
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  private final ObjectWriter writer;
+
+  /**
+   * Make an exporter for records of the given type.
+   *
+   * @param recordType the type of the records
+   */
+  public NdjsonExport(Class<T> recordType) {
+    this.writer = JSON_MAPPER.writerFor(recordType);
+  }
+
+  /**
+   * Stream the given records to the client as the response to a request,
+   * gzipped if the client accepts that.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param records the records, as one or more arrays (e.g., the todos of
+   *                each partition), which are exported in order
+   * @return the number of records exported
+   * @throws IOException if the records can't be written to the client
+   */
+  public long export(Context ctx, List<T[]> records) throws IOException {
+    ctx.contentType(CONTENT_TYPE);
+    // We write straight to the response, so Javalin won't compress it for us
+    boolean gzip = StaticAssets.acceptsGzip(ctx.header("Accept-Encoding"));
+    if (gzip) {
+      ctx.header("Content-Encoding", "gzip");
+    }
+    ctx.header("Vary", "Accept-Encoding");
+    OutputStream out = ctx.res().getOutputStream();
+    if (gzip) {
+      GZIPOutputStream gzipOut = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+      long count = write(gzipOut, records);
+      gzipOut.finish();
+      return count;
+    }
+    return write(out, records);
+  }
+
+  /**
+   * Write the given records as NDJSON, a chunk at a time.
+   *
+   * @param out     where to write the records
+   * @param records the records, as one or more arrays
+   * @return the number of records written
+   * @throws IOException if the records can't be written
+   */
+  public long write(OutputStream out, List<T[]> records) throws IOException {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    long count = 0;
+    for (T[] array : records) {
+      for (int start = 0; start < array.length; start += CHUNK_SIZE) {
+        int end = Math.min(array.length, start + CHUNK_SIZE);
+        for (int i = start; i < end; i++) {
+          writer.writeValue(chunk, array[i]);
+          chunk.write('\n');
+        }
+        // This blocks until there's room, which is what keeps us from
+        // getting ahead of a slow client
+        chunk.writeTo(out);
+        out.flush();
+        chunk.reset();
+        count += end - start;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,127 @@
+package umm3601;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A cache of parsed queries (e.g., `TodoQuery`s), keyed by a canonical form
+ * of the query parameters they were parsed from.
+ * <p>
+ * Clients tend to send the same few "shapes" of query over and over (a
+ * page that lists one owner's todos sorted by body, say), so rather than
+ * parsing the parameters, compiling regular expressions, and so on every
+ * time, we do it once per shape. Only the most recently used queries are
+ * kept, so a client sending lots of different queries can't use up all our
+ * memory. Queries with illegal parameters throw when they're parsed, so
+ * they're never cached.
+ *
+ * @param <Q> the type of the parsed queries
+ */
+public class QueryCache<Q> {
+
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final Function<Map<String, List<String>>, Q> parser;
+  private final Map<String, Q> queries;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Make an empty cache.
+   *
+   * @param capacity the most queries to keep
+   * @param parser   parses query parameters into a query
+   */
+  public QueryCache(int capacity, Function<Map<String, List<String>>, Q> parser) {
+    this.parser = parser;
+    // A `LinkedHashMap` in access order, which drops its least recently
+    // used entry whenever it grows past the capacity
+    this.queries = new LinkedHashMap<>(capacity, LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Q> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Get the parsed query for the given parameters.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the parsed query
+   */
+  public Q get(Map<String, List<String>> queryParams) {
+    return get(canonicalQuery(queryParams), queryParams);
+  }
+
+  /**
+   * Get the parsed query for the given parameters, whose canonical form
+   * (from `canonicalQuery`) the caller already has.
+   *
+   * @param canonicalQuery the canonical form of the parameters
+   * @param queryParams    map of key-value pairs for the query
+   * @return the parsed query
+   */
+  public Q get(String canonicalQuery, Map<String, List<String>> queryParams) {
+    Q query;
+    synchronized (queries) {
+      query = queries.get(canonicalQuery);
+    }
+    if (query != null) {
+      hits.increment();
+      return query;
+    }
+    misses.increment();
+    // Parsing is done outside the lock; if two threads happen to parse the
+    // same query at once they'll get equivalent results, so it doesn't
+    // matter which one ends up in the cache
+    query = parser.apply(queryParams);
+    synchronized (queries) {
+      queries.put(canonicalQuery, query);
+    }
+    return query;
+  }
+
+  public int size() {
+    synchronized (queries) {
+      return queries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Get a canonical form of the query parameters, so that requests with the
+   * same parameters (in any order) are recognized as the same query.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the parameters, sorted by name, as an encoded query string
+   */
+  public static String canonicalQuery(Map<String, List<String>> queryParams) {
+    StringBuilder canonical = new StringBuilder();
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+      for (String value : param.getValue()) {
+        if (canonical.length() > 0) {
+          canonical.append('&');
+        }
+        canonical.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+            .append('=')
+            .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+      }
+    }
+    return canonical.toString();
+  }
+}
@@ -9,12 +9,18 @@ import io.javalin.plugin.bundled.RouteOverviewPlugin;
 
 public class Server {
 
-  private static final int SERVER_PORT = 4567;
+  public static final int DEFAULT_PORT = 4567;
   public static final String CLIENT_DIRECTORY = "../client";
 
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
+  // The port the server listens on
+  private final int port;
+  // Whether Javalin should serve the client's files straight from the
+  // `CLIENT_DIRECTORY`. This is turned off when one of the controllers
+  // (`StaticAssets`) serves them from memory instead.
+  private final boolean serveClientDirectory;
 
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
@@ -23,12 +29,40 @@ public class Server {
    * @param controllers The implementations of `Controller` used for this server
    */
   public Server(Controller[] controllers) {
+    this(controllers, DEFAULT_PORT);
+  }
+
+  /**
+   * Construct a `Server` object that listens on the given port. (Running
+   * several instances on one machine, e.g. as a cluster, needs a different
+   * port for each.)
+   *
+   * @param controllers The implementations of `Controller` used for this server
+   * @param port        The port to listen on
+   */
+  public Server(Controller[] controllers, int port) {
+    this(controllers, port, true);
+  }
+
+  /**
+   * Construct a `Server` object that listens on the given port, and may
+   * leave serving the client's files to one of the controllers.
+   *
+   * @param controllers          The implementations of `Controller` used for
+   *                             this server
+   * @param port                 The port to listen on
+   * @param serveClientDirectory Whether to serve the client's files from
+   *                             the `CLIENT_DIRECTORY` on disk
+   */
+  public Server(Controller[] controllers, int port, boolean serveClientDirectory) {
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
     // the caller could modify the array after passing it in, and then
     // we'd be using the modified array without realizing it.
     this.controllers = Arrays.copyOf(controllers, controllers.length);
+    this.port = port;
+    this.serveClientDirectory = serveClientDirectory;
   }
 
   /**
@@ -37,11 +71,13 @@ public class Server {
    * This configures and starts the Javalin server, which will start listening for HTTP requests.
    * It also sets up the server to shut down gracefully if it's killed or if the
    * JVM is shut down.
+   *
+   * @return the started Javalin server
    */
-  void startServer() {
+  Javalin startServer() {
     Javalin javalin = configureJavalin();
     setupRoutes(javalin);
-    javalin.start(SERVER_PORT);
+    return javalin.start(port);
   }
 
   /**
@@ -74,7 +110,9 @@ public class Server {
     Javalin server = Javalin.create(config -> {
       // This tells the server where to look for static files,
       // like HTML and JavaScript.
-      config.staticFiles.add(CLIENT_DIRECTORY, Location.EXTERNAL);
+      if (serveClientDirectory) {
+        config.staticFiles.add(CLIENT_DIRECTORY, Location.EXTERNAL);
+      }
       // This adds a Javalin plugin that will list all of the
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
@@ -0,0 +1,262 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * Adds a `Server-Timing` header to every API response, breaking down where
+ * the time went: parsing the query, filtering, sorting, serializing, and
+ * so on, along with how many rows each step produced. Browsers show these
+ * in the network panel of their developer tools, e.g.
+ *
+ * <pre>
+ * Server-Timing: parse;dur=0.021, filter;dur=0.430;desc="rows=1203", sort;dur=0.095;desc="rows=10",
+ *     serialize;dur=0.061, total;dur=0.702
+ * </pre>
+ *
+ * (all durations in milliseconds). A `Timings` is made for each request
+ * and kept as a request attribute; the controllers, and the databases they
+ * hand it to, add their phases to it. Phases that run more than once (or
+ * in several partitions at once) add up, so with partitions being queried
+ * in parallel their sum can be more than the `total`.
+ * <p>
+ * This is turned on with `-Dumm3601.serverTiming=true`. (The slow query
+ * log, `SlowQueryLog`, uses the same timings for the requests it looks
+ * at.) When neither is on there's no `Timings` for a request, and
+ * `ServerTiming.of` just returns `null`, so the only cost is looking for
+ * the attribute; the databases don't even read the clock.
+ */
+public class ServerTiming implements Controller {
+
+  // The request attribute holding the request's timings
+  public static final String ATTRIBUTE = "umm3601.serverTiming";
+
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  /**
+   * The timings of the phases of one request.
+   */
+  public static final class Timings {
+
+    // One phase's name, its total time, and its total rows (or -1 if it
+    // doesn't have any)
+    private static final class Phase {
+      private final String name;
+      private long nanos;
+      private long rows = -1;
+
+      Phase(String name) {
+        this.name = name;
+      }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * Note that a phase took some time.
+     *
+     * @param name       the name of the phase (a `Server-Timing` metric
+     *                   name, so no spaces or punctuation)
+     * @param startNanos when the phase started, from `System.nanoTime`
+     */
+    public void add(String name, long startNanos) {
+      add(name, startNanos, -1);
+    }
+
+    /**
+     * Note that a phase took some time, and produced some rows.
+     *
+     * @param name       the name of the phase
+     * @param startNanos when the phase started, from `System.nanoTime`
+     * @param rows       how many rows (todos, users, ...) it produced, or
+     *                   -1 if that doesn't make sense for the phase
+     */
+    public synchronized void add(String name, long startNanos, long rows) {
+      addNanos(name, System.nanoTime() - startNanos, rows);
+    }
+
+    /**
+     * Add all the phases of some other timings (e.g., of work done for
+     * several requests at once, see `SingleFlight`) to these.
+     *
+     * @param other the other timings
+     */
+    public void addAll(Timings other) {
+      List<Phase> otherPhases = new ArrayList<>();
+      synchronized (other) {
+        for (Phase phase : other.phases) {
+          Phase copy = new Phase(phase.name);
+          copy.nanos = phase.nanos;
+          copy.rows = phase.rows;
+          otherPhases.add(copy);
+        }
+      }
+      synchronized (this) {
+        for (Phase phase : otherPhases) {
+          addNanos(phase.name, phase.nanos, phase.rows);
+        }
+      }
+    }
+
+    private void addNanos(String name, long nanos, long rows) {
+      for (Phase phase : phases) {
+        if (phase.name.equals(name)) {
+          phase.nanos += nanos;
+          if (rows >= 0) {
+            phase.rows = Math.max(phase.rows, 0) + rows;
+          }
+          return;
+        }
+      }
+      Phase phase = new Phase(name);
+      phase.nanos = nanos;
+      phase.rows = rows;
+      phases.add(phase);
+    }
+
+    /**
+     * Get the total time spent in a phase so far, in nanoseconds, or -1 if
+     * there hasn't been one with that name.
+     */
+    public synchronized long getNanos(String name) {
+      for (Phase phase : phases) {
+        if (phase.name.equals(name)) {
+          return phase.nanos;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Get the total rows from a phase so far, or -1 if there hasn't been
+     * one with that name (or it didn't have any rows).
+     */
+    public synchronized long getRows(String name) {
+      for (Phase phase : phases) {
+        if (phase.name.equals(name)) {
+          return phase.rows;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Get the total time spent in each phase so far, in nanoseconds, in
+     * the order the phases first happened.
+     */
+    public synchronized Map<String, Long> getPhaseNanos() {
+      Map<String, Long> phaseNanos = new LinkedHashMap<>();
+      for (Phase phase : phases) {
+        phaseNanos.put(phase.name, phase.nanos);
+      }
+      return phaseNanos;
+    }
+
+    /**
+     * Get the time since these timings were started, in nanoseconds.
+     */
+    public long getTotalNanos() {
+      return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Describe the phases so far, and the total time, as the value of a
+     * `Server-Timing` header.
+     */
+    public synchronized String header() {
+      StringBuilder header = new StringBuilder();
+      for (Phase phase : phases) {
+        appendMetric(header, phase.name, phase.nanos);
+        if (phase.rows >= 0) {
+          header.append(";desc=\"rows=").append(phase.rows).append('"');
+        }
+        header.append(", ");
+      }
+      appendMetric(header, "total", getTotalNanos());
+      return header.toString();
+    }
+
+    private static void appendMetric(StringBuilder header, String name, long nanos) {
+      header.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / NANOS_PER_MILLI));
+    }
+  }
+
+  /**
+   * Get the timings for a request, if it's being timed.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the request's timings, or `null` if it isn't being timed
+   */
+  public static Timings of(Context ctx) {
+    return ctx.attribute(ATTRIBUTE);
+  }
+
+  /**
+   * Get the time now, for starting a phase, if we're timing anything. This
+   * saves reading the clock when we aren't.
+   *
+   * @param timings the timings the phase will be added to, or `null`
+   * @return the time from `System.nanoTime`, or 0 if `timings` is `null`
+   */
+  public static long start(Timings timings) {
+    return timings == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Start timing a request, unless something else (like the slow query
+   * log) already has.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the request's timings
+   */
+  public static Timings begin(Context ctx) {
+    Timings timings = of(ctx);
+    if (timings == null) {
+      timings = new Timings();
+      ctx.attribute(ATTRIBUTE, timings);
+    }
+    return timings;
+  }
+
+  /**
+   * Start timing a request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void startRequest(Context ctx) {
+    begin(ctx);
+  }
+
+  /**
+   * Send the request's timings along with the response (unless it's
+   * already been sent, like a stream or Server-Sent Events).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void finishRequest(Context ctx) {
+    Timings timings = of(ctx);
+    if (timings != null && !ctx.res().isCommitted()) {
+      ctx.header("Server-Timing", timings.header());
+    }
+  }
+
+  /**
+   * Time all the API routes. This should be the last controller, so that
+   * the total includes the work done in the other controllers' before and
+   * after handlers (like picking the response's encoding).
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.before("/api/*", this::startRequest);
+    server.after("/api/*", this::finishRequest);
+  }
+}
@@ -0,0 +1,126 @@
+package umm3601;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * "Single-flight" request coalescing: when several threads ask for the same
+ * thing (by key) at the same time, only the first actually computes it, and
+ * the rest wait for and share its result.
+ * <p>
+ * Nothing is kept once the computation finishes, so this isn't a cache;
+ * a request that arrives after the computation is done starts a new one.
+ * It only helps with bursts of identical requests (e.g., a dashboard that
+ * a lot of people refresh at once), but it never serves stale results.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+  /**
+   * The result of a computation, and whether it was shared with other
+   * requests.
+   *
+   * @param <V> the type of the result
+   */
+  public static final class Outcome<V> {
+    private final V value;
+    private final boolean shared;
+    private final boolean computed;
+
+    Outcome(V value, boolean shared, boolean computed) {
+      this.value = value;
+      this.shared = shared;
+      this.computed = computed;
+    }
+
+    public V getValue() {
+      return value;
+    }
+
+    /**
+     * Whether this result went to more than one request, in which case it's
+     * worth doing anything else with it (e.g., serializing it) just once,
+     * too.
+     */
+    public boolean isShared() {
+      return shared;
+    }
+
+    /**
+     * Whether this request did the computation itself, rather than
+     * waiting for another request's.
+     */
+    public boolean isComputed() {
+      return computed;
+    }
+  }
+
+  /**
+   * A computation in progress, along with how many other requests are
+   * waiting on it.
+   */
+  private static final class Call<V> {
+    private final CompletableFuture<V> future = new CompletableFuture<>();
+    private final AtomicInteger followers = new AtomicInteger();
+  }
+
+  private final ConcurrentHashMap<K, Call<V>> inFlight = new ConcurrentHashMap<>();
+  // The number of requests that shared another request's computation
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * Get the result of the computation for the given key, either by doing it
+   * or, if another thread is already doing it, by waiting for that thread.
+   * If the computation throws an exception, every request waiting on it
+   * gets that exception.
+   *
+   * @param key         the key identifying the computation
+   * @param computation computes the result
+   * @return the result, and whether it was shared
+   */
+  public Outcome<V> run(K key, Supplier<V> computation) {
+    Call<V> call = new Call<>();
+    Call<V> existing = inFlight.putIfAbsent(key, call);
+    if (existing != null) {
+      existing.followers.incrementAndGet();
+      coalesced.increment();
+      try {
+        return new Outcome<>(existing.future.join(), true, false);
+      } catch (CompletionException e) {
+        // Rethrow the original exception (e.g., a `BadRequestResponse`) so
+        // it's handled just like it would be for the first request
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    try {
+      V value = computation.get();
+      call.future.complete(value);
+      return new Outcome<>(value, call.followers.get() > 0, true);
+    } catch (RuntimeException | Error e) {
+      call.future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, call);
+    }
+  }
+
+  /**
+   * Get the number of requests that have shared another request's
+   * computation.
+   *
+   * @return the number of coalesced requests
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+}
@@ -0,0 +1,152 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of how long each phase of starting the server takes (loading
+ * each database, starting Javalin, ...), so we can see where the time goes
+ * and whether changes make startup any quicker.
+ * <p>
+ * Phases can run one after another (`time`) or at the same time as each
+ * other (`timeAsync`); the report gives each phase's own time along with
+ * the total time since the timer was made, which for phases run at the
+ * same time is less than their sum.
+ */
+public class StartupTimer {
+
+  /**
+   * Some startup work, which (like loading a database) might fail.
+   *
+   * @param <T> the type of the result
+   */
+  public interface Phase<T> {
+    T run() throws IOException;
+  }
+
+  // A phase's name and how long it took
+  private static final class Timing {
+    private final String name;
+    private final long nanos;
+
+    Timing(String name, long nanos) {
+      this.name = name;
+      this.nanos = nanos;
+    }
+  }
+
+  private final LongSupplier clock;
+  private final long startNanos;
+  // How long the JVM had been running when the timer was made
+  private final long jvmUptimeMillis;
+  private final List<Timing> timings = new ArrayList<>();
+
+  /**
+   * Make a timer, starting now.
+   */
+  public StartupTimer() {
+    this(System::nanoTime, ManagementFactory.getRuntimeMXBean().getUptime());
+  }
+
+  StartupTimer(LongSupplier clock, long jvmUptimeMillis) {
+    this.clock = clock;
+    this.startNanos = clock.getAsLong();
+    this.jvmUptimeMillis = jvmUptimeMillis;
+  }
+
+  /**
+   * Run a phase, and note how long it took.
+   *
+   * @param name the name of the phase
+   * @param work the phase's work
+   * @return the result of the work
+   * @throws IOException if the work fails
+   */
+  public <T> T time(String name, Phase<T> work) throws IOException {
+    long start = clock.getAsLong();
+    try {
+      return work.run();
+    } finally {
+      record(name, clock.getAsLong() - start);
+    }
+  }
+
+  /**
+   * Start running a phase in the background, and note how long it took
+   * once it's done. Use `join` to wait for it.
+   *
+   * @param name the name of the phase
+   * @param work the phase's work
+   * @return the result of the work, once it's done
+   */
+  public <T> CompletableFuture<T> timeAsync(String name, Phase<T> work) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return time(name, work);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /**
+   * Wait for a phase started with `timeAsync`.
+   *
+   * @param phase the phase
+   * @return the phase's result
+   * @throws IOException if the phase failed
+   */
+  public static <T> T join(CompletableFuture<T> phase) throws IOException {
+    try {
+      return phase.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private synchronized void record(String name, long nanos) {
+    timings.add(new Timing(name, nanos));
+  }
+
+  /**
+   * Get the time taken by the given phase, in milliseconds, or -1 if
+   * there hasn't been a phase with that name.
+   */
+  public synchronized long getMillis(String name) {
+    for (Timing timing : timings) {
+      if (timing.name.equals(name)) {
+        return TimeUnit.NANOSECONDS.toMillis(timing.nanos);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Describe how long startup has taken so far, phase by phase (in the
+   * order they finished).
+   *
+   * @return the report, one line per phase
+   */
+  public synchronized String report() {
+    StringBuilder report = new StringBuilder();
+    long totalMillis = TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - startNanos);
+    report.append(String.format("Started in %d ms (plus %d ms for the JVM to start)", totalMillis, jvmUptimeMillis));
+    for (Timing timing : timings) {
+      report.append(String.format("%n  %-20s %6d ms", timing.name, TimeUnit.NANOSECONDS.toMillis(timing.nanos)));
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,315 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Serves the client's static files (HTML, JavaScript, CSS, ...) from memory.
+ * <p>
+ * Everything in the client directory is read once when the server starts,
+ * and for each file we work out ahead of time:
+ * <ul>
+ * <li>a content hash, used as a strong `ETag` so browsers can ask "has
+ * this changed?" (`If-None-Match`) and get a tiny 304 (Not Modified) back
+ * if it hasn't;</li>
+ * <li>a gzipped copy (for text files, if it's actually smaller), sent to
+ * browsers that accept gzip. It's different bytes, so it has its own
+ * strong ETag (the hash with `-gz` on the end), but either ETag means the
+ * browser's copy is up to date;</li>
+ * <li>for files other than HTML, a "fingerprinted" name with the hash in
+ * it (e.g., `/javascript/todos.3f2a9c1b0d4e5f67.js`). The HTML files are
+ * rewritten to use those names, and since a fingerprinted file can never
+ * change (a new version gets a new name) browsers can cache it for a
+ * year without ever checking back.</li>
+ * </ul>
+ * Files under their plain names (including all the HTML) are sent with
+ * `Cache-Control: no-cache`, so browsers always check, but with the ETag
+ * that check is cheap.
+ */
+public class StaticAssets implements Controller {
+
+  // How long browsers may cache fingerprinted files: a year, the most
+  // that's generally honored
+  static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+  static final String REVALIDATE_CACHE_CONTROL = "no-cache";
+
+  // How many hex digits of the SHA-256 hash to use in ETags and names
+  private static final int HASH_DIGITS = 16;
+
+  private static final Map<String, String> CONTENT_TYPES = Map.of(
+      "html", "text/html; charset=utf-8",
+      "js", "text/javascript; charset=utf-8",
+      "css", "text/css; charset=utf-8",
+      "json", "application/json",
+      "txt", "text/plain; charset=utf-8",
+      "svg", "image/svg+xml",
+      "png", "image/png",
+      "ico", "image/x-icon");
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  /**
+   * One file, ready to send.
+   */
+  static final class Asset {
+    private final String contentType;
+    private final byte[] bytes;
+    // `null` if gzip doesn't make this file smaller (or it isn't text)
+    private final byte[] gzipped;
+    private final String hash;
+    private final String etag;
+    // The ETag of the gzipped copy, or `null` if there isn't one
+    private final String gzipEtag;
+
+    Asset(String contentType, byte[] bytes) throws IOException {
+      this.contentType = contentType;
+      this.bytes = bytes;
+      this.hash = hash(bytes);
+      this.etag = "\"" + hash + "\"";
+      byte[] compressed = isText(contentType) ? gzip(bytes) : null;
+      this.gzipped = compressed != null && compressed.length < bytes.length ? compressed : null;
+      this.gzipEtag = gzipped == null ? null : "\"" + hash + "-gz\"";
+    }
+
+    String getHash() {
+      return hash;
+    }
+
+    String getEtag() {
+      return etag;
+    }
+
+    String getGzipEtag() {
+      return gzipEtag;
+    }
+
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    byte[] getGzipped() {
+      return gzipped;
+    }
+  }
+
+  // The files, by the path they're served at. Files other than HTML are in
+  // here twice: under their plain path and their fingerprinted path.
+  private final Map<String, Asset> assets;
+  // The fingerprinted paths
+  private final Map<String, String> fingerprintedPaths;
+
+  private StaticAssets(Map<String, Asset> assets, Map<String, String> fingerprintedPaths) {
+    this.assets = assets;
+    this.fingerprintedPaths = fingerprintedPaths;
+  }
+
+  /**
+   * Read all the files in the given directory (and its subdirectories) into
+   * memory.
+   *
+   * @param directory the directory of static files (e.g., `../client`)
+   * @return the static files, ready to serve
+   * @throws IOException if the files can't be read
+   */
+  public static StaticAssets load(Path directory) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (Stream<Path> walk = Files.walk(directory)) {
+      walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+    }
+
+    Map<String, Asset> assets = new LinkedHashMap<>();
+    Map<String, String> fingerprintedPaths = new LinkedHashMap<>();
+    // First everything but the HTML, so we know the fingerprinted names
+    // before we rewrite the HTML to use them
+    List<Path> htmlFiles = new ArrayList<>();
+    for (Path file : files) {
+      String extension = extension(file);
+      if (extension.equals("html")) {
+        htmlFiles.add(file);
+        continue;
+      }
+      String path = urlPath(directory, file);
+      Asset asset = new Asset(CONTENT_TYPES.getOrDefault(extension, DEFAULT_CONTENT_TYPE), Files.readAllBytes(file));
+      String fingerprintedPath = path.substring(0, path.length() - extension.length())
+          + asset.getHash() + "." + extension;
+      assets.put(path, asset);
+      assets.put(fingerprintedPath, asset);
+      fingerprintedPaths.put(path, fingerprintedPath);
+    }
+    for (Path file : htmlFiles) {
+      String html = Files.readString(file, StandardCharsets.UTF_8);
+      for (Map.Entry<String, String> fingerprinted : fingerprintedPaths.entrySet()) {
+        // Only whole quoted paths (e.g., `src="/javascript/todos.js"`)
+        html = html.replace('"' + fingerprinted.getKey() + '"', '"' + fingerprinted.getValue() + '"');
+      }
+      byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+      assets.put(urlPath(directory, file), new Asset(CONTENT_TYPES.get("html"), bytes));
+    }
+    return new StaticAssets(assets, fingerprintedPaths);
+  }
+
+  /**
+   * Get the fingerprinted paths of the files other than HTML.
+   *
+   * @return a map from each file's plain path to its fingerprinted path
+   */
+  public Map<String, String> getFingerprintedPaths() {
+    return Collections.unmodifiableMap(fingerprintedPaths);
+  }
+
+  /**
+   * Get the file served at the given path.
+   *
+   * @param path the path (e.g., `/todos.html`)
+   * @return the file, or `null` if there isn't one
+   */
+  Asset getAsset(String path) {
+    return assets.get(path);
+  }
+
+  /**
+   * Send the given file, or just a 304 (Not Modified) if the browser's copy
+   * (given by its `If-None-Match`) is already up to date.
+   *
+   * @param ctx           a Javalin HTTP context
+   * @param asset         the file to send
+   * @param fingerprinted whether the file is being served under its
+   *                      fingerprinted name
+   */
+  void serve(Context ctx, Asset asset, boolean fingerprinted) {
+    boolean gzip = asset.gzipped != null && acceptsGzip(ctx.header("Accept-Encoding"));
+    ctx.header("ETag", gzip ? asset.gzipEtag : asset.etag);
+    ctx.header("Cache-Control", fingerprinted ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+    if (asset.gzipped != null) {
+      ctx.header("Vary", "Accept-Encoding");
+    }
+    if (matchesEtag(ctx.header("If-None-Match"), asset)) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+    ctx.contentType(asset.contentType);
+    if (gzip) {
+      ctx.header("Content-Encoding", "gzip");
+      ctx.result(asset.gzipped);
+    } else {
+      ctx.result(asset.bytes);
+    }
+  }
+
+  /**
+   * Check whether an `If-None-Match` header (a comma-separated list of
+   * ETags, or `*`) includes either of the given file's ETags. The gzipped
+   * and plain copies have the same contents, so a browser with either one
+   * is up to date, even if it's asking with a different `Accept-Encoding`.
+   */
+  static boolean matchesEtag(String ifNoneMatch, Asset asset) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      // A "weak" ETag (`W/"..."`) still matches for `If-None-Match`
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(asset.etag) || trimmed.equals(asset.gzipEtag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check whether an `Accept-Encoding` header allows gzip (and doesn't
+   * turn it off with `q=0`).
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String encoding : acceptEncoding.split(",")) {
+      String[] parts = encoding.trim().toLowerCase(Locale.ROOT).split(";");
+      if (parts[0].trim().equals("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String parameter = parts[i].replace(" ", "");
+          if (parameter.matches("q=0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String urlPath(Path directory, Path file) {
+    String path = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    return "/" + path;
+  }
+
+  private static String extension(Path file) {
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+  }
+
+  private static boolean isText(String contentType) {
+    return contentType.startsWith("text/") || contentType.equals("application/json")
+        || contentType.equals("image/svg+xml");
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(bytes);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      return HexFormat.of().formatHex(digest).substring(0, HASH_DIGITS);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds a route for each file, under its plain path and (for files other
+   * than HTML) its fingerprinted path, plus `/` for `index.html`.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    for (Map.Entry<String, Asset> entry : assets.entrySet()) {
+      String path = entry.getKey();
+      Asset asset = entry.getValue();
+      boolean fingerprinted = fingerprintedPaths.containsValue(path);
+      server.get(path, ctx -> serve(ctx, asset, fingerprinted));
+    }
+    Asset index = assets.get("/index.html");
+    if (index != null) {
+      server.get("/", ctx -> serve(ctx, index, false));
+    }
+  }
+}
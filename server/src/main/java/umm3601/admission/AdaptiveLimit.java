@@ -0,0 +1,170 @@
+package umm3601.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on how many requests can be handled at once that adapts to how
+ * long requests are taking.
+ * <p>
+ * This uses "additive increase, multiplicative decrease" (AIMD), just like
+ * TCP congestion control: every request that finishes within the target
+ * latency nudges the limit up (by about one per "round" of `limit`
+ * requests), and every request that takes longer than the target cuts it
+ * by a fixed fraction. If the server is keeping up the limit creeps up to
+ * use the spare capacity; as soon as requests start to pile up and slow
+ * down, the limit drops quickly so they stop piling up.
+ * <p>
+ * Requests over the limit wait (in a short queue) for a slot to free up,
+ * but only up to a budget. If the wait looks like it will be longer than
+ * that (judging by the number already waiting and how long requests are
+ * taking) they're turned away right away, rather than waiting only to be
+ * turned away later.
+ */
+class AdaptiveLimit {
+
+  // How much to cut the limit by when a request is too slow
+  private static final double DECREASE_FACTOR = 0.9;
+  // How much weight the latest latency has in the smoothed latency
+  private static final double SMOOTHING = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long targetLatencyNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition slotFreed = lock.newCondition();
+
+  // All guarded by `lock`
+  private double limit;
+  private int inFlight;
+  private int waiting;
+  private double smoothedLatencyNanos;
+
+  /**
+   * Make a limit.
+   *
+   * @param initialLimit       the limit to start with
+   * @param minLimit           the lowest the limit can go
+   * @param maxLimit           the highest the limit can go
+   * @param targetLatencyNanos how long requests should take
+   */
+  AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long targetLatencyNanos) {
+    if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException(
+          "Concurrency limits must have 1 <= min <= initial <= max, but were "
+          + minLimit + ", " + initialLimit + ", " + maxLimit);
+    }
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.targetLatencyNanos = targetLatencyNanos;
+    this.smoothedLatencyNanos = targetLatencyNanos;
+  }
+
+  /**
+   * Try to get a slot to handle a request in, waiting up to the budget if
+   * the limit has been reached. Every successful `acquire` must be followed
+   * by a `release`.
+   *
+   * @param budgetNanos the longest the request can wait for a slot
+   * @return whether the request got a slot
+   */
+  boolean acquire(long budgetNanos) {
+    lock.lock();
+    try {
+      if (inFlight < currentLimit()) {
+        inFlight++;
+        return true;
+      }
+      // Roughly, each of the `limit` slots frees up once every (smoothed)
+      // latency, so this is how long until it's our turn
+      double expectedWaitNanos = (waiting + 1) * smoothedLatencyNanos / currentLimit();
+      if (expectedWaitNanos > budgetNanos) {
+        return false;
+      }
+      waiting++;
+      try {
+        long remainingNanos = budgetNanos;
+        while (inFlight >= currentLimit()) {
+          if (remainingNanos <= 0) {
+            return false;
+          }
+          remainingNanos = slotFreed.awaitNanos(remainingNanos);
+        }
+        inFlight++;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        waiting--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give back a slot, and adjust the limit based on how long the request
+   * took.
+   *
+   * @param latencyNanos how long the request took
+   */
+  void release(long latencyNanos) {
+    lock.lock();
+    try {
+      inFlight--;
+      smoothedLatencyNanos += SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+      if (latencyNanos > targetLatencyNanos) {
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+      } else {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      slotFreed.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int currentLimit() {
+    return (int) limit;
+  }
+
+  int getLimit() {
+    lock.lock();
+    try {
+      return currentLimit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getWaiting() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long getSmoothedLatencyMicros() {
+    lock.lock();
+    try {
+      return TimeUnit.NANOSECONDS.toMicros((long) smoothedLatencyNanos);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package umm3601.admission;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.ServiceUnavailableResponse;
+
+import umm3601.BinaryFormats;
+import umm3601.Controller;
+
+/**
+ * Admission control for the API: decides, before any work is done, whether
+ * a request should be handled at all.
+ * <p>
+ * Without this, an overloaded server just queues requests up until every
+ * one of them is slow. Instead:
+ * <ul>
+ * <li>Each client (by IP address) has a token bucket, so no one client can
+ * use up the server; a client going over its rate gets a 429 (Too Many
+ * Requests). Behind a load balancer every request comes from the
+ * balancer's address, so the client's address has to come from a header
+ * the balancer adds (like `X-Forwarded-For`) instead.</li>
+ * <li>The number of requests handled at once is capped by an
+ * `AdaptiveLimit` that follows how long requests are taking; a request that
+ * would have to wait longer than the queueing budget for a slot gets a 503
+ * (Service Unavailable) straight away.</li>
+ * </ul>
+ * Both come with a `Retry-After` header saying when to try again.
+ * <p>
+ * Streams (the live todo queries and the exports) stay open for as long
+ * as the client keeps reading them, which can be minutes or hours, so they
+ * don't take one of the concurrency slots: a few open dashboards would
+ * otherwise use up the slots meant for ordinary requests, and their
+ * lifetimes would look like very slow requests and drive the limit down.
+ * They're still rate limited like everything else.
+ * <p>
+ * The counters are available at `/api/admission`, which is never turned
+ * away. Neither are the requests the instances in a cluster make to each
+ * other (`/api/cluster/...`), but only when they come from one of the
+ * configured peers' addresses: the request that caused them has already
+ * been through admission control on the instance it came in to. The same
+ * routes from anyone else are limited like any other request, so they
+ * can't be used to get around the limits.
+ */
+public class AdmissionControl implements Controller {
+
+  public static final String STATS_PATH = "/api/admission";
+
+  // The path for requests between the instances in a cluster, which don't
+  // go through admission control when they come from a peer
+  private static final String CLUSTER_PATH = "/api/cluster/";
+  // The long-lived streaming paths, which are rate limited but don't take
+  // a concurrency slot
+  private static final String[] STREAMING_PATHS = {"/api/todos/live", "/api/todos/export", "/api/users/export"};
+
+  // When to forget about clients whose buckets have refilled
+  private static final int MAX_IDLE_CLIENTS = 10_000;
+
+  // The request attribute holding when an admitted request started
+  static final String START_ATTRIBUTE = "umm3601.admission.start";
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final double ratePerSecond;
+  private final double burst;
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final AdaptiveLimit concurrencyLimit;
+  private final long queueBudgetNanos;
+  private final LongSupplier clock;
+  // The header a load balancer puts the client's address in, or `null` to
+  // use the address requests come from
+  private final String clientIpHeader;
+  // The addresses of the other instances in the cluster (if any)
+  private final Set<String> peerAddresses;
+
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder overloaded = new LongAdder();
+
+  /**
+   * Set up admission control.
+   *
+   * @param ratePerSecond       the requests per second each client may make,
+   *                            or 0 for no per-client limit
+   * @param burst               how many requests a client may make at once
+   *                            (beyond its rate)
+   * @param initialConcurrency  how many requests to handle at once to start
+   *                            with
+   * @param maxConcurrency      the most requests to ever handle at once
+   * @param targetLatencyMillis how long requests should take; the
+   *                            concurrency limit goes down when they take
+   *                            longer
+   * @param queueBudgetMillis   the longest a request may wait for a slot
+   */
+  public AdmissionControl(double ratePerSecond, int burst, int initialConcurrency, int maxConcurrency,
+      long targetLatencyMillis, long queueBudgetMillis) {
+    this(ratePerSecond, burst, initialConcurrency, maxConcurrency, targetLatencyMillis, queueBudgetMillis, null,
+        Set.of());
+  }
+
+  /**
+   * Set up admission control behind a load balancer.
+   *
+   * @param ratePerSecond       the requests per second each client may make,
+   *                            or 0 for no per-client limit
+   * @param burst               how many requests a client may make at once
+   *                            (beyond its rate)
+   * @param initialConcurrency  how many requests to handle at once to start
+   *                            with
+   * @param maxConcurrency      the most requests to ever handle at once
+   * @param targetLatencyMillis how long requests should take; the
+   *                            concurrency limit goes down when they take
+   *                            longer
+   * @param queueBudgetMillis   the longest a request may wait for a slot
+   * @param clientIpHeader      the header the load balancer puts each
+   *                            client's address in (e.g.,
+   *                            `X-Forwarded-For`), or `null` to use the
+   *                            address requests come from
+   * @param peerAddresses       the IP addresses of the other instances in
+   *                            the cluster, whose requests to each other
+   *                            aren't limited
+   */
+  public AdmissionControl(double ratePerSecond, int burst, int initialConcurrency, int maxConcurrency,
+      long targetLatencyMillis, long queueBudgetMillis, String clientIpHeader, Set<String> peerAddresses) {
+    this(ratePerSecond, burst, new AdaptiveLimit(initialConcurrency, 1, maxConcurrency,
+        TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis)), queueBudgetMillis, System::nanoTime, clientIpHeader,
+        peerAddresses);
+  }
+
+  // For testing, with a given limit and clock
+  AdmissionControl(double ratePerSecond, int burst, AdaptiveLimit concurrencyLimit, long queueBudgetMillis,
+      LongSupplier clock, String clientIpHeader, Set<String> peerAddresses) {
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    this.concurrencyLimit = concurrencyLimit;
+    this.queueBudgetNanos = TimeUnit.MILLISECONDS.toNanos(queueBudgetMillis);
+    this.clock = clock;
+    this.clientIpHeader = clientIpHeader;
+    this.peerAddresses = Set.copyOf(peerAddresses);
+  }
+
+  /**
+   * Decide whether to let a request through, turning it away (by throwing
+   * a 429 or 503) if not.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void admit(Context ctx) {
+    if (isExempt(ctx)) {
+      return;
+    }
+    long now = clock.getAsLong();
+
+    if (ratePerSecond > 0) {
+      if (buckets.size() > MAX_IDLE_CLIENTS) {
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+      }
+      TokenBucket bucket = buckets.computeIfAbsent(clientOf(ctx), ip -> new TokenBucket(ratePerSecond, burst, now));
+      long waitNanos = bucket.tryAcquire(now);
+      if (waitNanos > 0) {
+        rateLimited.increment();
+        ctx.header("Retry-After", Long.toString(retryAfterSeconds(waitNanos)));
+        throw new HttpResponseException(HttpStatus.TOO_MANY_REQUESTS,
+            "Too many requests; please slow down");
+      }
+    }
+
+    if (isStreaming(ctx.path())) {
+      // There's no slot to release, so `release` won't feed the stream's
+      // lifetime into the limit
+      admitted.increment();
+      return;
+    }
+
+    if (!concurrencyLimit.acquire(queueBudgetNanos)) {
+      overloaded.increment();
+      ctx.header("Retry-After", Long.toString(retryAfterSeconds(queueBudgetNanos)));
+      throw new ServiceUnavailableResponse("The server is too busy right now; please try again shortly");
+    }
+    admitted.increment();
+    ctx.attribute(START_ATTRIBUTE, clock.getAsLong());
+  }
+
+  /**
+   * Give back the slot of a request that was let through, once it's
+   * finished (successfully or not).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void release(Context ctx) {
+    Long start = ctx.attribute(START_ATTRIBUTE);
+    if (start != null) {
+      ctx.attribute(START_ATTRIBUTE, null);
+      concurrencyLimit.release(clock.getAsLong() - start);
+    }
+  }
+
+  /**
+   * Get a snapshot of the counters.
+   *
+   * @return the current counters
+   */
+  public AdmissionStats getStats() {
+    AdmissionStats stats = new AdmissionStats();
+    stats.admitted = admitted.sum();
+    stats.rateLimited = rateLimited.sum();
+    stats.overloaded = overloaded.sum();
+    stats.concurrencyLimit = concurrencyLimit.getLimit();
+    stats.inFlight = concurrencyLimit.getInFlight();
+    stats.waiting = concurrencyLimit.getWaiting();
+    stats.latencyMicros = concurrencyLimit.getSmoothedLatencyMicros();
+    stats.clients = buckets.size();
+    return stats;
+  }
+
+  /**
+   * Handles HTTP requests for the counters.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getAdmissionStats(Context ctx) {
+    BinaryFormats.json(ctx, getStats());
+  }
+
+  /**
+   * Get the address of the client a request is from: the one the load
+   * balancer gives, if we're behind one, or else the one it came from.
+   */
+  private String clientOf(Context ctx) {
+    if (clientIpHeader != null) {
+      String forwarded = ctx.header(clientIpHeader);
+      if (forwarded != null && !forwarded.isBlank()) {
+        // In `X-Forwarded-For: client, proxy1, proxy2` each proxy adds the
+        // address it got the request from to the end. Anything before that
+        // could have been made up by the client, so only the last address,
+        // added by our own load balancer, can be trusted.
+        return forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+      }
+    }
+    return ctx.ip();
+  }
+
+  private boolean isExempt(Context ctx) {
+    String path = ctx.path();
+    if (path.equals(STATS_PATH)) {
+      return true;
+    }
+    // This is the address the request really came from, not one from a
+    // header, since peers talk to each other directly
+    return path.startsWith(CLUSTER_PATH) && peerAddresses.contains(ctx.ip());
+  }
+
+  private static boolean isStreaming(String path) {
+    for (String streamingPath : STREAMING_PATHS) {
+      if (path.equals(streamingPath)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Round a wait up to whole seconds (at least one), as `Retry-After` needs.
+   */
+  private static long retryAfterSeconds(long waitNanos) {
+    return Math.max(1, (waitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND);
+  }
+
+  /**
+   * Adds admission control in front of all the API routes, and a route for
+   * its counters.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    // Before handlers run before any endpoint, and after handlers run after
+    // it, even if it threw an exception
+    server.before("/api/*", this::admit);
+    server.after("/api/*", this::release);
+
+    server.get(STATS_PATH, this::getAdmissionStats);
+  }
+}
@@ -0,0 +1,25 @@
+package umm3601.admission;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * A snapshot of the admission control counters, for monitoring.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class AdmissionStats {
+  // Requests let through, and turned away for going over their rate (429)
+  // or because the server was overloaded (503)
+  public long admitted;
+  public long rateLimited;
+  public long overloaded;
+  // The current concurrency limit, and the requests being handled and
+  // waiting for a slot right now
+  public int concurrencyLimit;
+  public int inFlight;
+  public int waiting;
+  // The (smoothed) time requests are taking
+  public long latencyMicros;
+  // The number of clients being rate limited
+  public int clients;
+}
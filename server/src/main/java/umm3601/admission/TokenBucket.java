@@ -0,0 +1,66 @@
+package umm3601.admission;
+
+/**
+ * A token bucket rate limiter for one client.
+ * <p>
+ * The bucket holds up to `capacity` tokens and refills at a steady rate.
+ * Each request takes a token; if there isn't one, the request is turned
+ * away. This lets a client make short bursts of requests (up to the
+ * capacity) while holding it to the rate over the long run.
+ */
+class TokenBucket {
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final double tokensPerNano;
+  private final double capacity;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Make a full bucket.
+   *
+   * @param ratePerSecond how many tokens are added each second
+   * @param capacity      the most tokens the bucket can hold
+   * @param now           the current time, in nanoseconds
+   */
+  TokenBucket(double ratePerSecond, double capacity, long now) {
+    this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.lastRefill = now;
+  }
+
+  /**
+   * Try to take a token from the bucket.
+   *
+   * @param now the current time, in nanoseconds
+   * @return 0 if a token was taken, otherwise how many nanoseconds until
+   *         there will be one
+   */
+  synchronized long tryAcquire(long now) {
+    refill(now);
+    if (tokens >= 1) {
+      tokens -= 1;
+      return 0;
+    }
+    return (long) Math.ceil((1 - tokens) / tokensPerNano);
+  }
+
+  /**
+   * Check whether the bucket has refilled completely, which means the client
+   * hasn't been making requests lately and we can forget about it.
+   *
+   * @param now the current time, in nanoseconds
+   * @return whether the bucket is full
+   */
+  synchronized boolean isFull(long now) {
+    refill(now);
+    return tokens >= capacity;
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+  }
+}
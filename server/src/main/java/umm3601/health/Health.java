@@ -0,0 +1,113 @@
+package umm3601.health;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import umm3601.Controller;
+
+/**
+ * Health checks for a load balancer (or anything else that starts and
+ * stops servers):
+ * <ul>
+ * <li>`/health/live` always answers 200 (OK) while the server is running
+ * at all, so a server that answers nothing is the only one that needs
+ * restarting.</li>
+ * <li>`/health/ready` answers 503 (Service Unavailable) until the server
+ * has warmed up (see `Warmup`), and 200 after that, so traffic is only sent
+ * to it once it can handle that traffic quickly.</li>
+ * </ul>
+ * These aren't under `/api`, so admission control never turns them away.
+ */
+public class Health implements Controller {
+
+  public static final String LIVE_PATH = "/health/live";
+  public static final String READY_PATH = "/health/ready";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Health.class);
+
+  private Warmup warmup;
+  private volatile boolean ready;
+  private volatile int warmupQueries;
+  private volatile long warmupMillis;
+
+  /**
+   * Give the server a warmup to run before it's ready. Without one it's
+   * ready as soon as `warmUp` is called.
+   *
+   * @param warmup the warmup to run
+   */
+  public void setWarmup(Warmup warmup) {
+    this.warmup = warmup;
+  }
+
+  /**
+   * Run the warmup (if there is one), and then mark the server as ready.
+   * This is called once the server has started, so the health checks
+   * answer while the warmup runs.
+   */
+  public void warmUp() {
+    if (warmup != null) {
+      long start = System.nanoTime();
+      warmupQueries = warmup.run();
+      warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      LOGGER.info("Warmed up with {} queries in {} ms", warmupQueries, warmupMillis);
+    }
+    ready = true;
+  }
+
+  /**
+   * Get whether the server has warmed up, and is ready for traffic.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Handles liveness checks: the server is running.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getLive(Context ctx) {
+    ctx.json(status("live"));
+  }
+
+  /**
+   * Handles readiness checks: 200 once the server has warmed up, 503 until
+   * then.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getReady(Context ctx) {
+    if (ready) {
+      ctx.json(status("ready"));
+    } else {
+      ctx.status(HttpStatus.SERVICE_UNAVAILABLE);
+      ctx.json(status("warming up"));
+    }
+  }
+
+  private HealthStatus status(String status) {
+    HealthStatus healthStatus = new HealthStatus();
+    healthStatus.status = status;
+    healthStatus.warmupQueries = warmupQueries;
+    healthStatus.warmupMillis = warmupMillis;
+    return healthStatus;
+  }
+
+  /**
+   * Add the health check routes.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(LIVE_PATH, this::getLive);
+    server.get(READY_PATH, this::getReady);
+  }
+}
@@ -0,0 +1,17 @@
+package umm3601.health;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * The answer to a health check, for `/health/live` and `/health/ready`.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class HealthStatus {
+  // "live", "ready", or "warming up"
+  public String status;
+  // How many queries the warmup ran, and how long it took (both 0 until
+  // it's done, or if there wasn't one)
+  public int warmupQueries;
+  public long warmupMillis;
+}
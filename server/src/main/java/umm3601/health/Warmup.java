@@ -0,0 +1,236 @@
+package umm3601.health;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Warms up the JIT compiler by running a mix of typical queries against the
+ * databases, and turning their results into JSON, before the server takes
+ * any real traffic.
+ * <p>
+ * When the server has just started, all our code (and Jackson's) runs in
+ * the interpreter, which is many times slower than the compiled code the
+ * JIT makes once a method has been run enough times. Without a warmup the
+ * first few thousand requests after every deploy are the ones that pay for
+ * that, which shows up as a spike in our slowest response times. Running
+ * the queries ourselves first means that by the time `/health/ready` says
+ * we're ready (see `Health`), the hot paths are already compiled.
+ * <p>
+ * The queries are made from the data itself (real owners, categories,
+ * companies, words from todo bodies, ...), and change from round to round,
+ * so the JIT sees the same kinds of values it will see from real clients.
+ * The warmup stops after a given number of rounds, or once it has taken
+ * longer than its time budget (finishing the round it's on), whichever
+ * comes first.
+ */
+public class Warmup {
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  // How many different owners, categories, etc. to cycle through
+  private static final int SAMPLES = 16;
+  // The `limit` for the "one page" queries, like the client's
+  private static final int PAGE_SIZE = 20;
+  // The shortest word from a todo body to search for
+  private static final int MIN_WORD_LENGTH = 4;
+
+  private static final String[] TODO_ORDERS = {"owner", "category", "body", "status"};
+  private static final String[] TODO_GROUPS = {"owner", "category", "status"};
+
+  private final TodoDatabase todoDatabase;
+  private final UserDatabase userDatabase;
+  private final int rounds;
+  private final long budgetNanos;
+
+  // Values from the data to put in the queries
+  private final List<String> owners = new ArrayList<>();
+  private final List<String> categories = new ArrayList<>();
+  private final List<String> words = new ArrayList<>();
+  private final List<String> todoIds = new ArrayList<>();
+  private final List<String> companies = new ArrayList<>();
+  private final List<String> ages = new ArrayList<>();
+  private final List<String> namePrefixes = new ArrayList<>();
+  private final List<String> userIds = new ArrayList<>();
+
+  // How many queries have been run, and how many bytes of JSON they made
+  // (which is only kept so the JSON is actually used)
+  private int queriesRun;
+  private long bytesWritten;
+
+  /**
+   * Get ready to warm up with the given databases.
+   *
+   * @param todoDatabase the todos to query
+   * @param userDatabase the users to query
+   * @param rounds       the most rounds of queries to run
+   * @param budgetMillis roughly the longest the warmup may take
+   */
+  public Warmup(TodoDatabase todoDatabase, UserDatabase userDatabase, int rounds, long budgetMillis) {
+    this.todoDatabase = todoDatabase;
+    this.userDatabase = userDatabase;
+    this.rounds = rounds;
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    sampleTodos();
+    sampleUsers();
+  }
+
+  private void sampleTodos() {
+    for (String owner : todoDatabase.getOwners()) {
+      if (owners.size() == SAMPLES) {
+        break;
+      }
+      owners.add(owner);
+    }
+    Set<String> distinctCategories = new LinkedHashSet<>();
+    for (Todo[] partition : todoDatabase.getAllTodos()) {
+      for (int i = 0; i < partition.length && todoIds.size() < SAMPLES; i++) {
+        Todo todo = partition[i];
+        todoIds.add(todo._id);
+        if (todo.category != null) {
+          distinctCategories.add(todo.category);
+        }
+        String word = firstLongWord(todo.body);
+        if (word != null) {
+          words.add(word);
+        }
+      }
+    }
+    categories.addAll(distinctCategories);
+  }
+
+  private void sampleUsers() {
+    Set<String> distinctCompanies = new LinkedHashSet<>();
+    Set<String> distinctAges = new LinkedHashSet<>();
+    User[] users = userDatabase.getAllUsers();
+    for (int i = 0; i < users.length && userIds.size() < SAMPLES; i++) {
+      userIds.add(users[i]._id);
+      if (users[i].company != null) {
+        distinctCompanies.add(users[i].company);
+      }
+      distinctAges.add(Integer.toString(users[i].age));
+      if (users[i].name != null && users[i].name.length() >= 2) {
+        namePrefixes.add(users[i].name.substring(0, 2));
+      }
+    }
+    companies.addAll(distinctCompanies);
+    ages.addAll(distinctAges);
+  }
+
+  private static String firstLongWord(String body) {
+    if (body == null) {
+      return null;
+    }
+    for (String word : body.split("\\W+")) {
+      if (word.length() >= MIN_WORD_LENGTH) {
+        return word;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Run the warmup.
+   *
+   * @return how many queries were run
+   */
+  public int run() {
+    long start = System.nanoTime();
+    int queriesBefore = queriesRun;
+    for (int round = 0; round < rounds && System.nanoTime() - start < budgetNanos; round++) {
+      runTodoQueries(round);
+      runUserQueries(round);
+    }
+    return queriesRun - queriesBefore;
+  }
+
+  /**
+   * Get how many bytes of JSON the warmup has made so far.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  // One round of the kinds of todo queries the client (and others) make
+  private void runTodoQueries(int round) {
+    if (todoIds.isEmpty()) {
+      return;
+    }
+    String owner = pick(owners, round);
+    String category = categories.isEmpty() ? null : pick(categories, round);
+    String order = TODO_ORDERS[round % TODO_ORDERS.length];
+    String page = Integer.toString(PAGE_SIZE);
+
+    write(todoDatabase.getTodos(Map.of()));
+    write(todoDatabase.getTodos(params("limit", page)));
+    write(todoDatabase.getTodos(params("owner", owner)));
+    if (category != null) {
+      write(todoDatabase.getTodos(params("category", category)));
+    }
+    write(todoDatabase.getTodos(params("status", round % 2 == 0 ? "complete" : "incomplete")));
+    write(todoDatabase.getTodos(params("owner", owner, "status", "complete", "orderBy", order)));
+    write(todoDatabase.getTodos(params("orderBy", order, "limit", page)));
+    write(todoDatabase.getTodoStats(params("groupBy", TODO_GROUPS[round % TODO_GROUPS.length])));
+    write(todoDatabase.getTodo(pick(todoIds, round)));
+    if (!words.isEmpty()) {
+      write(todoDatabase.getTodos(params("contains", pick(words, round))));
+    }
+    if (!companies.isEmpty()) {
+      String company = pick(companies, round);
+      write(todoDatabase.getTodos(params("ownerCompany", company, "limit", page),
+          userDatabase.getNamesInCompany(company)));
+    }
+  }
+
+  // One round of user queries
+  private void runUserQueries(int round) {
+    if (userIds.isEmpty()) {
+      return;
+    }
+    write(userDatabase.listUsers(Map.of()));
+    write(userDatabase.listUsers(params("age", pick(ages, round))));
+    if (!companies.isEmpty()) {
+      write(userDatabase.listUsers(params("company", pick(companies, round))));
+    }
+    write(userDatabase.listUsers(params("minAge", pick(ages, round), "orderBy", "age")));
+    write(userDatabase.getUser(pick(userIds, round)));
+    if (!namePrefixes.isEmpty()) {
+      write(userDatabase.searchUsers(pick(namePrefixes, round), PAGE_SIZE));
+    }
+  }
+
+  private static String pick(List<String> values, int round) {
+    return values.get(round % values.size());
+  }
+
+  // Query parameters from names and values, one after the other
+  private static Map<String, List<String>> params(String... namesAndValues) {
+    Map<String, List<String>> params = new HashMap<>();
+    for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+    }
+    return params;
+  }
+
+  // Turn a query's result into JSON, the way the controllers send it
+  private void write(Object result) {
+    queriesRun++;
+    try {
+      bytesWritten += JSON_MAPPER.writeValueAsBytes(result).length;
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not serialize warmup results", e);
+    }
+  }
+}
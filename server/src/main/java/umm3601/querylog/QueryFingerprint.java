@@ -0,0 +1,52 @@
+package umm3601.querylog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Turns a request into the "shape" of its query, so that requests that
+ * only differ in the values they filter on count as the same kind of
+ * query. For example, `/api/todos?owner=Fry&limit=5` and
+ * `/api/todos?limit=20&owner=Blanche` both have the fingerprint
+ * `/api/todos?limit=?&owner=?`.
+ * <p>
+ * The parameters are sorted by name, and the values of filters are all
+ * replaced by `?`. The values of the parameters that change how the
+ * query is answered rather than which records it finds (like `orderBy`,
+ * which picks the index to sort with) are kept, so
+ * `/api/todos?orderBy=body` and `/api/todos?orderBy=owner` are different
+ * shapes.
+ */
+public final class QueryFingerprint {
+
+  // The parameters whose values are part of the query's shape
+  private static final Set<String> SHAPE_PARAMS = Set.of("orderBy", "groupBy", "expand", "fields");
+
+  private QueryFingerprint() {
+  }
+
+  /**
+   * Get the fingerprint of a request.
+   *
+   * @param path        the request's path (e.g., `/api/todos`)
+   * @param queryParams the request's query parameters
+   * @return the path, followed by the shape of the parameters (if it has
+   *         any)
+   */
+  public static String of(String path, Map<String, List<String>> queryParams) {
+    StringBuilder fingerprint = new StringBuilder(path);
+    char separator = '?';
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+      fingerprint.append(separator).append(param.getKey()).append('=');
+      if (SHAPE_PARAMS.contains(param.getKey())) {
+        fingerprint.append(String.join(",", param.getValue()));
+      } else {
+        fingerprint.append('?');
+      }
+      separator = '&';
+    }
+    return fingerprint.toString();
+  }
+}
@@ -0,0 +1,24 @@
+package umm3601.querylog;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * How often queries of one shape (see `QueryFingerprint`) have been made,
+ * and how long they've taken, for working out which kinds of queries are
+ * worth speeding up (e.g., with a new index).
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class QueryShapeStats {
+  public String fingerprint;
+  // How many queries of this shape there have been, and how many of them
+  // were slow
+  public long count;
+  public long slowCount;
+  // The total, average, and longest time they've taken, in milliseconds
+  public double totalMillis;
+  public double meanMillis;
+  public double maxMillis;
+  // The average number of records they returned
+  public double meanRows;
+}
@@ -0,0 +1,25 @@
+package umm3601.querylog;
+
+import java.util.Map;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * One query that took longer than the slow query threshold.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class SlowQuery {
+  // When the query finished (in milliseconds since the epoch)
+  public long timestamp;
+  // The query's shape (see `QueryFingerprint`), and the query itself
+  public String fingerprint;
+  public String query;
+  // How long the query took, and how long each phase of it took (see
+  // `ServerTiming`), in milliseconds
+  public double millis;
+  public Map<String, Double> phases;
+  // How many records the query returned, or -1 if it didn't get that far
+  // (e.g., it was a bad request)
+  public long rows;
+}
@@ -0,0 +1,238 @@
+package umm3601.querylog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+import umm3601.BinaryFormats;
+import umm3601.Controller;
+import umm3601.ServerTiming;
+
+/**
+ * A log of the `/api/todos` and `/api/users` queries that take longer than
+ * a threshold, so we can find out which queries are slow, and why.
+ * <p>
+ * Each of those requests is timed phase by phase (with the same timings
+ * as the `Server-Timing` header; see `ServerTiming`). Once it's done:
+ * <ul>
+ * <li>Its time is added to the counts for its query's shape (see
+ * `QueryFingerprint`), so we can see which kinds of queries take the most
+ * time overall, and so deserve an index.</li>
+ * <li>If it took longer than the threshold, it's kept in a ring buffer of
+ * the most recent slow queries, and logged (along with its timings and how
+ * many records it returned). With lots of slow queries of the same shape
+ * only one in every `logEvery` of them is logged, so the log isn't flooded;
+ * they're all still counted and kept in the ring buffer.</li>
+ * </ul>
+ * All of this is at `/api/admin/slow-queries`.
+ * <p>
+ * The log is off unless it's given a threshold (with
+ * `-Dumm3601.slowQueryMillis`); when it's off it isn't added to the server
+ * at all, so requests aren't timed and there's nothing to pay for it.
+ */
+public class SlowQueryLog implements Controller {
+
+  public static final String REPORT_PATH = "/api/admin/slow-queries";
+
+  // The routes whose queries are logged
+  private static final String[] LOGGED_PATHS = {"/api/todos", "/api/users"};
+
+  // The most query shapes to keep counts for; after that, any new shapes
+  // are all counted together, so a client making up lots of parameter
+  // names can't use up our memory
+  static final int MAX_SHAPES = 1000;
+  static final String OTHER_SHAPES = "(other)";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  // The counts for one query shape
+  private static final class Shape {
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong slowCount = new AtomicLong();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder totalRows = new LongAdder();
+  }
+
+  private final long thresholdNanos;
+  private final int logEvery;
+  private final LongSupplier wallClock;
+
+  // The most recent slow queries: `recent[next]` is the oldest once the
+  // buffer is full
+  private final SlowQuery[] recent;
+  private int next;
+  private int recentCount;
+
+  private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+  /**
+   * Make a slow query log.
+   *
+   * @param thresholdMillis how long a query has to take to be slow
+   * @param capacity        how many recent slow queries to keep
+   * @param logEvery        log one in every this many slow queries of each
+   *                        shape (1 logs them all)
+   */
+  public SlowQueryLog(long thresholdMillis, int capacity, int logEvery) {
+    this(thresholdMillis, capacity, logEvery, System::currentTimeMillis);
+  }
+
+  // For testing, with a given clock for the timestamps
+  SlowQueryLog(long thresholdMillis, int capacity, int logEvery, LongSupplier wallClock) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.recent = new SlowQuery[Math.max(1, capacity)];
+    this.logEvery = Math.max(1, logEvery);
+    this.wallClock = wallClock;
+  }
+
+  /**
+   * Start timing a request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void startRequest(Context ctx) {
+    ServerTiming.begin(ctx);
+  }
+
+  /**
+   * Count a finished request, and log it if it was slow.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void finishRequest(Context ctx) {
+    ServerTiming.Timings timings = ServerTiming.of(ctx);
+    if (timings != null) {
+      record(ctx.path(), ctx.queryParamMap(), ctx.queryString(), timings);
+    }
+  }
+
+  /**
+   * Count a finished query, and log it if it was slow.
+   *
+   * @param path        the request's path
+   * @param queryParams the request's query parameters
+   * @param queryString the request's query string, or `null` if it didn't
+   *                    have one
+   * @param timings     how long the query took
+   * @return whether the query was slow
+   */
+  boolean record(String path, Map<String, List<String>> queryParams, String queryString,
+      ServerTiming.Timings timings) {
+    long nanos = timings.getTotalNanos();
+    // The controllers note how many records they sent back when they
+    // serialize them
+    long rows = timings.getRows("serialize");
+    String fingerprint = QueryFingerprint.of(path, queryParams);
+
+    Shape shape = shapes.get(fingerprint);
+    if (shape == null) {
+      if (shapes.size() >= MAX_SHAPES) {
+        fingerprint = OTHER_SHAPES;
+      }
+      shape = shapes.computeIfAbsent(fingerprint, key -> new Shape());
+    }
+    shape.count.increment();
+    shape.totalNanos.add(nanos);
+    shape.maxNanos.accumulate(nanos);
+    shape.totalRows.add(Math.max(rows, 0));
+    if (nanos < thresholdNanos) {
+      return false;
+    }
+
+    SlowQuery slowQuery = new SlowQuery();
+    slowQuery.timestamp = wallClock.getAsLong();
+    slowQuery.fingerprint = fingerprint;
+    slowQuery.query = queryString == null ? path : path + "?" + queryString;
+    slowQuery.millis = nanos / NANOS_PER_MILLI;
+    slowQuery.phases = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> phase : timings.getPhaseNanos().entrySet()) {
+      slowQuery.phases.put(phase.getKey(), phase.getValue() / NANOS_PER_MILLI);
+    }
+    slowQuery.rows = rows;
+    synchronized (recent) {
+      recent[next] = slowQuery;
+      next = (next + 1) % recent.length;
+      recentCount = Math.min(recentCount + 1, recent.length);
+    }
+
+    // Log the first slow query of each shape, and then every `logEvery`th
+    long slowCount = shape.slowCount.incrementAndGet();
+    if ((slowCount - 1) % logEvery == 0) {
+      String millis = String.format(Locale.ROOT, "%.1f", slowQuery.millis);
+      LOGGER.warn("Slow query ({} ms, {} rows, {} of this shape so far): {} [{}] {}",
+          millis, rows, slowCount, fingerprint, timings.header(), slowQuery.query);
+    }
+    return true;
+  }
+
+  /**
+   * Get the recent slow queries, and the counts for every query shape.
+   *
+   * @return what the log has seen
+   */
+  public SlowQueryReport getReport() {
+    SlowQueryReport report = new SlowQueryReport();
+    report.thresholdMillis = TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    report.recent = new ArrayList<>();
+    synchronized (recent) {
+      for (int i = 1; i <= recentCount; i++) {
+        report.recent.add(recent[Math.floorMod(next - i, recent.length)]);
+      }
+    }
+    report.shapes = new ArrayList<>();
+    for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+      Shape shape = entry.getValue();
+      QueryShapeStats stats = new QueryShapeStats();
+      stats.fingerprint = entry.getKey();
+      stats.count = shape.count.sum();
+      stats.slowCount = shape.slowCount.get();
+      stats.totalMillis = shape.totalNanos.sum() / NANOS_PER_MILLI;
+      stats.meanMillis = stats.count == 0 ? 0 : stats.totalMillis / stats.count;
+      stats.maxMillis = shape.maxNanos.get() / NANOS_PER_MILLI;
+      stats.meanRows = stats.count == 0 ? 0 : (double) shape.totalRows.sum() / stats.count;
+      report.shapes.add(stats);
+    }
+    report.shapes.sort((a, b) -> Double.compare(b.totalMillis, a.totalMillis));
+    return report;
+  }
+
+  /**
+   * Handles HTTP requests for what the log has seen.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getSlowQueries(Context ctx) {
+    BinaryFormats.json(ctx, getReport());
+  }
+
+  /**
+   * Time the requests to the query routes, and add a route for the report.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    for (String path : LOGGED_PATHS) {
+      server.before(path, this::startRequest);
+      server.after(path, this::finishRequest);
+    }
+    server.get(REPORT_PATH, this::getSlowQueries);
+  }
+}
@@ -0,0 +1,20 @@
+package umm3601.querylog;
+
+import java.util.List;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+/**
+ * What the slow query log has seen, for `/api/admin/slow-queries`.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class SlowQueryReport {
+  // How long a query has to take to count as slow
+  public long thresholdMillis;
+  // The most recent slow queries, newest first
+  public List<SlowQuery> recent;
+  // Every query shape seen, the ones that have taken the most time in
+  // total first
+  public List<QueryShapeStats> shapes;
+}
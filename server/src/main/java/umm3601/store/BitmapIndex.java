@@ -0,0 +1,123 @@
+package umm3601.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * A "bitmap index" on one field: for each distinct value, a `BitSet` with
+ * bit `i` set if record `i` has that value. Filtering on the field is then
+ * just and-ing with the right bitmap, and counting the records with some
+ * combination of values is just the cardinality of the and of their
+ * bitmaps.
+ * <p>
+ * The values are kept in a `TreeMap`, so they come out in sorted order
+ * when we iterate over them (e.g., when computing stats). Records with a
+ * `null` value aren't in any bitmap.
+ *
+ * @param <K> the type of the field's values
+ */
+public final class BitmapIndex<K extends Comparable<? super K>> {
+
+  private final Map<K, BitSet> bitmaps;
+  private final int recordCount;
+
+  BitmapIndex(List<K> keys) {
+    this(new TreeMap<>(), keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      K key = keys.get(i);
+      if (key != null) {
+        bitmaps.computeIfAbsent(key, k -> new BitSet(recordCount)).set(i);
+      }
+    }
+  }
+
+  private BitmapIndex(Map<K, BitSet> bitmaps, int recordCount) {
+    this.bitmaps = bitmaps;
+    this.recordCount = recordCount;
+  }
+
+  /**
+   * Get the bitmap of the records with the given value. This is the
+   * index's own bitmap, so it mustn't be changed.
+   *
+   * @param key the value to look for
+   * @return the bitmap (which is empty if no record has that value)
+   */
+  public BitSet get(K key) {
+    BitSet bitmap = key == null ? null : bitmaps.get(key);
+    return bitmap == null ? new BitSet() : bitmap;
+  }
+
+  /**
+   * Get a new bitmap of the records with any of the given values.
+   *
+   * @param keys the values to look for
+   * @return the union of those values' bitmaps
+   */
+  public BitSet union(Collection<K> keys) {
+    BitSet union = new BitSet(recordCount);
+    for (K key : keys) {
+      union.or(get(key));
+    }
+    return union;
+  }
+
+  /**
+   * Get the distinct values, in sorted order.
+   */
+  public Set<K> keys() {
+    return Collections.unmodifiableSet(bitmaps.keySet());
+  }
+
+  /**
+   * Get each distinct value along with its bitmap, in sorted order. The
+   * bitmaps mustn't be changed.
+   */
+  public Map<K, BitSet> asMap() {
+    return Collections.unmodifiableMap(bitmaps);
+  }
+
+  /**
+   * Get, for each record, the position of its value in `keys()`, or -1 if
+   * it doesn't have one. This is a new array, with one `int` per record,
+   * for looking up many records' values by their position (e.g., to count
+   * them in groups) without and-ing bitmaps for every value.
+   */
+  public int[] ordinals() {
+    int[] ordinals = new int[recordCount];
+    Arrays.fill(ordinals, -1);
+    int ordinal = 0;
+    for (BitSet bitmap : bitmaps.values()) {
+      for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+        ordinals[i] = ordinal;
+      }
+      ordinal++;
+    }
+    return ordinals;
+  }
+
+  /**
+   * Make a new bitmap index over the same records with each value mapped
+   * to another (e.g., lowercased). Values that map to the same thing have
+   * their bitmaps or-ed together. This only has to do work for each
+   * distinct value, not for each record.
+   *
+   * @param mapping maps each value to its new value
+   * @return the new index
+   */
+  public <V extends Comparable<? super V>> BitmapIndex<V> mapKeys(Function<K, V> mapping) {
+    BitmapIndex<V> mapped = new BitmapIndex<V>(new TreeMap<V, BitSet>(), recordCount);
+    for (Map.Entry<K, BitSet> entry : bitmaps.entrySet()) {
+      mapped.bitmaps.computeIfAbsent(mapping.apply(entry.getKey()), k -> new BitSet(recordCount))
+          .or(entry.getValue());
+    }
+    return mapped;
+  }
+}
@@ -0,0 +1,40 @@
+package umm3601.store;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index from a key (e.g., an ID) to the position of the record with
+ * that key, for constant-time lookups. If two records have the same key,
+ * the first one wins. Records with a `null` key aren't indexed.
+ *
+ * @param <K> the type of the keys
+ */
+public final class HashIndex<K> {
+
+  private final Map<K, Integer> positions = new HashMap<>();
+
+  HashIndex(List<K> keys) {
+    for (int i = 0; i < keys.size(); i++) {
+      if (keys.get(i) != null) {
+        positions.putIfAbsent(keys.get(i), i);
+      }
+    }
+  }
+
+  /**
+   * Get the position of the record with the given key.
+   *
+   * @param key the key to look for
+   * @return the record's position, or -1 if there isn't one
+   */
+  public int get(K key) {
+    Integer position = positions.get(key);
+    return position == null ? -1 : position;
+  }
+
+  public int size() {
+    return positions.size();
+  }
+}
@@ -0,0 +1,34 @@
+package umm3601.store;
+
+import java.util.function.Function;
+
+/**
+ * One index in a `Schema`: its name and how to build it. This is also the
+ * typed handle used to get the built index back out of an `IndexedStore`.
+ *
+ * @param <T> the type of the records
+ * @param <I> the type of the index (e.g., `BitmapIndex<String>`)
+ */
+public final class IndexDefinition<T, I> {
+
+  private final String name;
+  private final Function<T[], I> build;
+
+  IndexDefinition(String name, Function<T[], I> build) {
+    this.name = name;
+    this.build = build;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  I build(T[] records) {
+    return build.apply(records);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,149 @@
+package umm3601.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An immutable, in-memory collection of records along with every index its
+ * `Schema` declares, all built once when the store is made.
+ * <p>
+ * Records are identified by their position in the array the store was made
+ * from, and the indexes all answer in terms of positions: bitmap indexes
+ * and range filters give a `BitSet` of positions (so filters on several
+ * fields can be combined by and-ing them), and sorting gives an `int[]` of
+ * positions in order. `select` then turns positions back into records.
+ *
+ * @param <T> the type of the records
+ */
+public final class IndexedStore<T> {
+
+  private final T[] records;
+  private final Map<IndexDefinition<T, ?>, Object> indexes = new IdentityHashMap<>();
+
+  /**
+   * Make a store holding the given records, and build all the indexes in
+   * the schema over them.
+   *
+   * @param schema  the indexes to build
+   * @param records the records; the store keeps this array, so it mustn't
+   *                be changed afterwards
+   */
+  public IndexedStore(Schema<T> schema, T[] records) {
+    this.records = records;
+    for (IndexDefinition<T, ?> definition : schema.getDefinitions()) {
+      indexes.put(definition, definition.build(records));
+    }
+  }
+
+  private IndexedStore(T[] records, Map<IndexDefinition<T, ?>, Object> indexes) {
+    this.records = records;
+    this.indexes.putAll(indexes);
+  }
+
+  /**
+   * Make a store with the same indexes as this one, but holding other
+   * records in their place. Record `i` of the new records must stand for
+   * record `i` of these ones; this is for swapping in smaller copies of the
+   * records once the indexes have been built (e.g., without fields that
+   * are kept somewhere else), so the originals can be garbage collected.
+   *
+   * @param replacements the records to use instead
+   * @return the new store
+   */
+  public IndexedStore<T> withRecords(T[] replacements) {
+    if (replacements.length != records.length) {
+      throw new IllegalArgumentException(
+          "Expected " + records.length + " records in place of these, but got " + replacements.length);
+    }
+    return new IndexedStore<>(replacements, indexes);
+  }
+
+  public int size() {
+    return records.length;
+  }
+
+  /**
+   * Get the record at the given position.
+   */
+  public T get(int position) {
+    return records[position];
+  }
+
+  /**
+   * Get all the records, in their original order, without copying them.
+   * The array mustn't be changed.
+   */
+  public T[] records() {
+    return records;
+  }
+
+  /**
+   * Get a bitmap with every record's position set, as the starting point
+   * for filtering.
+   */
+  public BitSet all() {
+    BitSet all = new BitSet(records.length);
+    all.set(0, records.length);
+    return all;
+  }
+
+  /**
+   * Get one of this store's indexes.
+   *
+   * @param definition the index, as declared in the store's schema
+   * @return the built index
+   * @throws IllegalArgumentException if the index isn't in the schema
+   */
+  @SuppressWarnings("unchecked")
+  public <I> I index(IndexDefinition<T, I> definition) {
+    if (!indexes.containsKey(definition)) {
+      throw new IllegalArgumentException("The index " + definition + " isn't part of this store's schema");
+    }
+    return (I) indexes.get(definition);
+  }
+
+  /**
+   * Find the record with the given key in a hash index.
+   *
+   * @param definition the hash index
+   * @param key        the key to look for
+   * @return the (first) record with that key, or `null` if there isn't one
+   */
+  public <K> T find(IndexDefinition<T, HashIndex<K>> definition, K key) {
+    int position = index(definition).get(key);
+    return position < 0 ? null : records[position];
+  }
+
+  /**
+   * Get the records at the positions set in a bitmap, in their original
+   * order.
+   *
+   * @param positions the positions of the records
+   * @return a new array of those records
+   */
+  public T[] select(BitSet positions) {
+    T[] selected = Arrays.copyOf(records, positions.cardinality());
+    int count = 0;
+    for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+      selected[count++] = records[i];
+    }
+    return selected;
+  }
+
+  /**
+   * Get the records at the given positions, in the given order (e.g., as
+   * sorted by a `SortedIndex`).
+   *
+   * @param positions the positions of the records
+   * @return a new array of those records
+   */
+  public T[] select(int[] positions) {
+    T[] selected = Arrays.copyOf(records, positions.length);
+    for (int i = 0; i < positions.length; i++) {
+      selected[i] = records[positions[i]];
+    }
+    return selected;
+  }
+}
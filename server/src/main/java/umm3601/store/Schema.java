@@ -0,0 +1,148 @@
+package umm3601.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * The indexes to build over one kind of record (e.g., users or todos).
+ * <p>
+ * A database declares its schema once, as static fields, by naming each
+ * field it wants to query and the kind of index that suits it:
+ * <ul>
+ * <li>`hash` for looking up one record by a (unique) key, like an ID</li>
+ * <li>`bitmap` for equality filters and grouping on fields with a modest
+ * number of distinct values, like a company or a status</li>
+ * <li>`sorted` for range filters and sorting, or `sortedInts` for the
+ * same on an `int` field, like ages, or `ordering` for just sorting</li>
+ * <li>`text` for prefix ("typeahead") searches over words</li>
+ * </ul>
+ * Each of these returns an `IndexDefinition`, which is then the typed
+ * handle for getting at that index in an `IndexedStore` built from this
+ * schema. For example:
+ *
+ * <pre>
+ * static final Schema&lt;User&gt; SCHEMA = new Schema&lt;&gt;();
+ * static final IndexDefinition&lt;User, SortedIndex&lt;Integer&gt;&gt; AGE =
+ *     SCHEMA.sortedInts("age", user -&gt; user.age);
+ * ...
+ * IndexedStore&lt;User&gt; store = new IndexedStore&lt;&gt;(SCHEMA, users);
+ * User[] adults = store.select(store.index(AGE).range(18, null, null));
+ * </pre>
+ *
+ * @param <T> the type of the records
+ */
+public final class Schema<T> {
+
+  private final List<IndexDefinition<T, ?>> definitions = new ArrayList<>();
+
+  /**
+   * Get every index in this schema, in the order they were declared.
+   */
+  public List<IndexDefinition<T, ?>> getDefinitions() {
+    return Collections.unmodifiableList(definitions);
+  }
+
+  /**
+   * Declare an index for looking up a record by a key. If two records
+   * have the same key, the first one wins.
+   *
+   * @param name the name of the index (e.g., the field it's on)
+   * @param key  gets the key of a record
+   * @return the handle for the index
+   */
+  public <K> IndexDefinition<T, HashIndex<K>> hash(String name, Function<T, K> key) {
+    return add(name, records -> new HashIndex<>(keys(records, key)));
+  }
+
+  /**
+   * Declare a bitmap index, with a bitmap of the records for each distinct
+   * value of a field.
+   *
+   * @param name the name of the index (e.g., the field it's on)
+   * @param key  gets the value of a record's field
+   * @return the handle for the index
+   */
+  public <K extends Comparable<? super K>> IndexDefinition<T, BitmapIndex<K>> bitmap(String name,
+      Function<T, K> key) {
+    return add(name, records -> new BitmapIndex<>(keys(records, key)));
+  }
+
+  /**
+   * Declare a sorted index, for range filters and sorting on a field.
+   *
+   * @param name the name of the index (e.g., the field it's on)
+   * @param key  gets the value of a record's field
+   * @return the handle for the index
+   */
+  public <K extends Comparable<? super K>> IndexDefinition<T, SortedIndex<K>> sorted(String name,
+      Function<T, K> key) {
+    return add(name, records -> new SortedIndex<>(keys(records, key), true));
+  }
+
+  /**
+   * Declare a sorted index on an `int` field. This works just like
+   * `sorted`, but keeps the values unboxed, which makes it quicker to
+   * build and to search.
+   *
+   * @param name the name of the index (e.g., the field it's on)
+   * @param key  gets the value of a record's field
+   * @return the handle for the index
+   */
+  public IndexDefinition<T, SortedIndex<Integer>> sortedInts(String name, ToIntFunction<T> key) {
+    return add(name, records -> {
+      int[] keys = new int[records.length];
+      for (int i = 0; i < records.length; i++) {
+        keys[i] = key.applyAsInt(records[i]);
+      }
+      return new SortedIndex<>(keys);
+    });
+  }
+
+  /**
+   * Declare an index just for sorting on a field. This is a sorted index
+   * that doesn't keep the field's values, so it can't do range filters,
+   * but it also doesn't hold on to (e.g.) every record's long text.
+   *
+   * @param name the name of the index (e.g., the field it's on)
+   * @param key  gets the value of a record's field
+   * @return the handle for the index
+   */
+  public <K extends Comparable<? super K>> IndexDefinition<T, SortedIndex<K>> ordering(String name,
+      Function<T, K> key) {
+    return add(name, records -> new SortedIndex<>(keys(records, key), false));
+  }
+
+  /**
+   * Declare a text index, for prefix searches over some words (terms) of
+   * each record, ignoring case.
+   *
+   * @param name  the name of the index
+   * @param terms gets the terms a record can be found by
+   * @return the handle for the index
+   */
+  public IndexDefinition<T, TextIndex> text(String name, Function<T, List<String>> terms) {
+    return add(name, records -> new TextIndex(keys(records, terms)));
+  }
+
+  private <I> IndexDefinition<T, I> add(String name, Function<T[], I> build) {
+    for (IndexDefinition<T, ?> definition : definitions) {
+      if (definition.getName().equals(name)) {
+        throw new IllegalArgumentException("There is already an index named " + name);
+      }
+    }
+    IndexDefinition<T, I> definition = new IndexDefinition<>(name, build);
+    definitions.add(definition);
+    return definition;
+  }
+
+  private static <T, K> List<K> keys(T[] records, Function<T, K> key) {
+    List<K> keys = new ArrayList<>(records.length);
+    for (T record : records) {
+      keys.add(key.apply(record));
+    }
+    return keys;
+  }
+}
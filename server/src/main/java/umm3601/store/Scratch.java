@@ -0,0 +1,68 @@
+package umm3601.store;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+/**
+ * Reusable "scratch" bitmaps for working out the answer to a query, so that
+ * a query doesn't have to allocate (and the garbage collector later clean
+ * up) a bitmap the size of the whole collection every time it runs.
+ * <p>
+ * Each thread keeps a few bitmaps of its own, so there's no locking. A
+ * bitmap is borrowed for the length of one query and then released, and
+ * it mustn't be used (or kept anywhere) after it's been released:
+ *
+ * <pre>
+ * BitSet matches = Scratch.borrowBits();
+ * try {
+ *   ...
+ * } finally {
+ *   Scratch.release(matches);
+ * }
+ * </pre>
+ *
+ * We can't just keep one bitmap per thread, because a thread can start
+ * another query before it's finished with the first one: a query that's
+ * waiting on a parallel scan in a `ForkJoinPool` may well run some other
+ * query's work while it waits. If a thread has nothing to lend, it just
+ * makes a new bitmap.
+ */
+public final class Scratch {
+
+  // How many released bitmaps each thread keeps. One query needs at most
+  // two at once (one of matches and one of ranks, when sorting), and we
+  // don't want every request thread to hold on to lots of big bitmaps.
+  private static final int KEPT_PER_THREAD = 2;
+
+  private static final ThreadLocal<ArrayDeque<BitSet>> FREE_BITS =
+      ThreadLocal.withInitial(() -> new ArrayDeque<>(KEPT_PER_THREAD));
+
+  private Scratch() {
+  }
+
+  /**
+   * Borrow an empty bitmap. It grows as needed like any other `BitSet`,
+   * and keeps its size when it's reused, so after the first few queries
+   * it's already big enough.
+   *
+   * @return an empty bitmap, which must be given back with `release`
+   */
+  public static BitSet borrowBits() {
+    BitSet bits = FREE_BITS.get().pollFirst();
+    return bits == null ? new BitSet() : bits;
+  }
+
+  /**
+   * Give back a bitmap from `borrowBits`, so this thread can reuse it.
+   *
+   * @param bits the bitmap, which mustn't be used again
+   */
+  public static void release(BitSet bits) {
+    // `clear` keeps the bitmap's storage, it just zeroes the bits in use
+    bits.clear();
+    ArrayDeque<BitSet> free = FREE_BITS.get();
+    if (free.size() < KEPT_PER_THREAD) {
+      free.addFirst(bits);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package umm3601.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A sorted index on one field, for range filters and for sorting.
+ * <p>
+ * The positions of the records are kept sorted by the field's value (with
+ * records that have equal values staying in their original order), along
+ * with the values in the same order. A range of values can then be found
+ * with two binary searches, so a range filter costs O(log N) plus the size
+ * of the result rather than a scan through every record.
+ * <p>
+ * We also keep each record's "rank" (its place in that sorted order). Since
+ * ranks are distinct, sorting some records by the field is just setting
+ * their ranks in a bitmap and reading the bits back in order, which is
+ * much quicker than sorting the records with a comparator (and doesn't
+ * need any boxed values or comparators at all), and still keeps ties in
+ * their original order. The bitmap is a reused `Scratch` one, so sorting
+ * only allocates the array it returns.
+ * <p>
+ * `null` values sort before everything else. An index made just for
+ * sorting (see `Schema.ordering`) doesn't keep the values once it's built,
+ * and so can't do range filters.
+ * <p>
+ * An index on an `int` field (see `Schema.sortedInts`) keeps its values
+ * in an `int[]` instead, so it's built with a primitive sort, and each step
+ * of a range's binary search is a plain `int` comparison rather than an
+ * unboxing and a call through the comparator.
+ *
+ * @param <K> the type of the field's values
+ */
+public final class SortedIndex<K extends Comparable<? super K>> {
+
+  private final Comparator<K> order = Comparator.nullsFirst(Comparator.naturalOrder());
+
+  // `positions[r]` is the position of the record with rank `r`, and
+  // `keys[r]` (or `intKeys[r]`, for an `int` field) its value. Whichever
+  // of these isn't used is `null`, as are both if we don't keep values.
+  private final int[] positions;
+  private final Object[] keys;
+  private final int[] intKeys;
+  // `ranks[i]` is the rank of the record at position `i`
+  private final int[] ranks;
+
+  SortedIndex(List<K> recordKeys, boolean keepKeys) {
+    Integer[] sorted = new Integer[recordKeys.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = i;
+    }
+    // `Arrays.sort` on objects is stable, so records with equal values keep
+    // their original order
+    Arrays.sort(sorted, (a, b) -> order.compare(recordKeys.get(a), recordKeys.get(b)));
+
+    positions = new int[sorted.length];
+    keys = keepKeys ? new Object[sorted.length] : null;
+    intKeys = null;
+    ranks = new int[sorted.length];
+    for (int r = 0; r < sorted.length; r++) {
+      positions[r] = sorted[r];
+      if (keepKeys) {
+        keys[r] = recordKeys.get(sorted[r]);
+      }
+      ranks[sorted[r]] = r;
+    }
+  }
+
+  /**
+   * Make an index on an `int` field (so `K` must be `Integer`).
+   */
+  SortedIndex(int[] recordKeys) {
+    // Sort each value together with its record's position, as one `long`
+    // with the value in the high half, so equal values are ordered by
+    // position and keep their original order without a stable sort
+    long[] sorted = new long[recordKeys.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = (long) recordKeys[i] << Integer.SIZE | i;
+    }
+    Arrays.sort(sorted);
+
+    positions = new int[sorted.length];
+    keys = null;
+    intKeys = new int[sorted.length];
+    ranks = new int[sorted.length];
+    for (int r = 0; r < sorted.length; r++) {
+      positions[r] = (int) sorted[r];
+      intKeys[r] = (int) (sorted[r] >> Integer.SIZE);
+      ranks[positions[r]] = r;
+    }
+  }
+
+  /**
+   * Get the positions of the records whose value is between `min` and
+   * `max` (inclusive), sorted by value.
+   *
+   * @param min    the smallest value to include, or `null` for no minimum
+   * @param max    the largest value to include, or `null` for no maximum
+   * @param within only include these records, or `null` for any record
+   * @return the positions of the matching records, in order
+   * @throws IllegalStateException if this index is just for sorting
+   */
+  public int[] range(K min, K max, BitSet within) {
+    if (keys == null && intKeys == null && (min != null || max != null)) {
+      throw new IllegalStateException("This index is just for sorting, and can't do range filters");
+    }
+    int from = min == null ? 0 : firstRankAtLeast(min, false);
+    int to = max == null ? positions.length : firstRankAtLeast(max, true);
+    if (from >= to) {
+      return new int[0];
+    }
+    if (within == null) {
+      return Arrays.copyOfRange(positions, from, to);
+    }
+    if (within.cardinality() < to - from) {
+      // There are fewer records to keep than in the range, so it's quicker
+      // to sort the ones we keep and take the ones in range
+      BitSet rankBits = Scratch.borrowBits();
+      try {
+        setRanks(within, rankBits);
+        int count = 0;
+        for (int r = rankBits.nextSetBit(from); r >= 0 && r < to; r = rankBits.nextSetBit(r + 1)) {
+          count++;
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int r = rankBits.nextSetBit(from); r >= 0 && r < to; r = rankBits.nextSetBit(r + 1)) {
+          result[count++] = positions[r];
+        }
+        return result;
+      } finally {
+        Scratch.release(rankBits);
+      }
+    }
+    int[] result = new int[to - from];
+    int count = 0;
+    for (int r = from; r < to; r++) {
+      if (within.get(positions[r])) {
+        result[count++] = positions[r];
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Get a bitmap of the records whose value is between `min` and `max`
+   * (inclusive), for and-ing with other filters.
+   *
+   * @param min the smallest value to include, or `null` for no minimum
+   * @param max the largest value to include, or `null` for no maximum
+   * @return a new bitmap of the matching records
+   */
+  public BitSet rangeBits(K min, K max) {
+    BitSet bits = new BitSet(positions.length);
+    for (int position : range(min, max, null)) {
+      bits.set(position);
+    }
+    return bits;
+  }
+
+  /**
+   * Sort some of the records by value, keeping records with equal values
+   * in their original order.
+   *
+   * @param matches the records to sort
+   * @param limit   the most positions to return
+   * @return the positions of (up to `limit` of) the records, in order
+   */
+  public int[] sort(BitSet matches, int limit) {
+    BitSet rankBits = Scratch.borrowBits();
+    try {
+      setRanks(matches, rankBits);
+      int[] sorted = new int[Math.min(matches.cardinality(), limit)];
+      int count = 0;
+      for (int r = rankBits.nextSetBit(0); r >= 0 && count < sorted.length; r = rankBits.nextSetBit(r + 1)) {
+        sorted[count++] = positions[r];
+      }
+      return sorted;
+    } finally {
+      Scratch.release(rankBits);
+    }
+  }
+
+  /**
+   * Set the ranks of the records in `matches` in `rankBits`, so reading
+   * `rankBits` in order gives the records in sorted order.
+   */
+  private void setRanks(BitSet matches, BitSet rankBits) {
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      rankBits.set(ranks[i]);
+    }
+  }
+
+  /**
+   * Binary search for the first rank whose value is at least `key` (or,
+   * if `after` is true, greater than `key`), or the number of records if
+   * there isn't one.
+   */
+  @SuppressWarnings("unchecked")
+  private int firstRankAtLeast(K key, boolean after) {
+    if (intKeys != null) {
+      return firstRankAtLeast((Integer) key, after);
+    }
+    int low = 0;
+    int high = keys.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int comparison = order.compare((K) keys[mid], key);
+      if (comparison < 0 || after && comparison == 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int firstRankAtLeast(int key, boolean after) {
+    int low = 0;
+    int high = intKeys.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (intKeys[mid] < key || after && intKeys[mid] == key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
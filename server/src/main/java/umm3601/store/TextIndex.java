@@ -0,0 +1,102 @@
+package umm3601.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A sorted-string index for prefix ("typeahead") searches.
+ * <p>
+ * Every record contributes some terms (e.g., a user's name, each word of
+ * their name, and their email), which are lowercased and kept in one sorted
+ * array, so all the terms starting with a given prefix are next to each
+ * other and can be found with a binary search followed by a short scan.
+ * Finding the top N matches therefore costs O(log K + N) for K terms, no
+ * matter how many records there are.
+ */
+public final class TextIndex {
+
+  private final int recordCount;
+  // Sorted terms, and the position of the record each term came from
+  private final String[] terms;
+  private final int[] positions;
+
+  TextIndex(List<List<String>> recordTerms) {
+    recordCount = recordTerms.size();
+
+    List<String> allTerms = new ArrayList<>();
+    List<Integer> allPositions = new ArrayList<>();
+    for (int i = 0; i < recordTerms.size(); i++) {
+      for (String term : recordTerms.get(i)) {
+        if (term != null && !term.isEmpty()) {
+          allTerms.add(term.toLowerCase(Locale.ROOT));
+          allPositions.add(i);
+        }
+      }
+    }
+
+    // Sort the positions of the terms by term, and then lay both out in
+    // that order in plain arrays
+    Integer[] order = new Integer[allTerms.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparing(allTerms::get));
+    terms = new String[order.length];
+    positions = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      terms[i] = allTerms.get(order[i]);
+      positions[i] = allPositions.get(order[i]);
+    }
+  }
+
+  /**
+   * Find (up to) the first `limit` distinct records with a term starting
+   * with the given prefix, ignoring case. Records are returned in order of
+   * the term that matched.
+   *
+   * @param prefix the prefix to search for
+   * @param limit  the most records to return
+   * @return the positions of the matching records
+   */
+  public int[] search(String prefix, int limit) {
+    String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+    int[] matches = new int[Math.min(limit, recordCount)];
+    int count = 0;
+    // A record can match on more than one term, but should only be
+    // returned once
+    BitSet seen = new BitSet(recordCount);
+    for (int i = firstIndexAtLeast(lowerPrefix); i < terms.length && count < matches.length; i++) {
+      if (!terms[i].startsWith(lowerPrefix)) {
+        break;
+      }
+      int position = positions[i];
+      if (!seen.get(position)) {
+        seen.set(position);
+        matches[count++] = position;
+      }
+    }
+    return Arrays.copyOf(matches, count);
+  }
+
+  /**
+   * Binary search for the first term that is at least `term` (or the
+   * number of terms if there isn't one).
+   */
+  private int firstIndexAtLeast(String term) {
+    int low = 0;
+    int high = terms.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (terms[mid].compareTo(term) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,71 @@
+package umm3601.todo;
+
+import java.util.regex.Pattern;
+
+/**
+ * A `CharSequence` that only lets itself be read a limited number of times.
+ * <p>
+ * Java's regular expression engine backtracks, so a badly written pattern
+ * (like `(a+)+b`) can take exponential time on some inputs. The engine
+ * reads its input through `charAt`, so counting those calls gives us a
+ * cheap measure of how much work a match is doing, and lets us give up
+ * (with a `BudgetExceededException`) once it's clearly gone wrong instead
+ * of tying up a server thread forever.
+ */
+final class BudgetedCharSequence implements CharSequence {
+
+  private final CharSequence text;
+  // Shared with any subsequences, so they all draw on the same budget
+  private final int[] remaining;
+
+  private BudgetedCharSequence(CharSequence text, int[] remaining) {
+    this.text = text;
+    this.remaining = remaining;
+  }
+
+  /**
+   * Check whether the pattern can be found anywhere in the text, reading
+   * characters at most `budget` times.
+   *
+   * @param pattern the pattern to look for
+   * @param text    the text to look in
+   * @param budget  the most characters the match may read
+   * @return true if the pattern is found in the text
+   * @throws BudgetExceededException if the match reads too many characters
+   */
+  static boolean find(Pattern pattern, CharSequence text, int budget) {
+    return pattern.matcher(new BudgetedCharSequence(text, new int[] {budget})).find();
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (--remaining[0] < 0) {
+      throw new BudgetExceededException();
+    }
+    return text.charAt(index);
+  }
+
+  @Override
+  public int length() {
+    return text.length();
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new BudgetedCharSequence(text.subSequence(start, end), remaining);
+  }
+
+  @Override
+  public String toString() {
+    return text.toString();
+  }
+
+  /**
+   * Thrown when a match reads more characters than its budget allows.
+   */
+  static class BudgetExceededException extends RuntimeException {
+    BudgetExceededException() {
+      super("Regular expression took too many steps to evaluate");
+    }
+  }
+}
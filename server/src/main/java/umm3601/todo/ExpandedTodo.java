@@ -0,0 +1,25 @@
+package umm3601.todo;
+
+import umm3601.user.User;
+
+// A todo along with the full `User` record of its owner, which is what
+// we send back when a request asks for `expand=owner`. It extends `Todo`
+// so clients that just look at the usual todo fields (including the
+// `owner` name) don't need to care whether they asked for the expansion.
+//
+// Like `Todo`, this is serialized by Jackson, so the field is public
+// and we suppress the Visibility Modifier check in CheckStyle.
+@SuppressWarnings({"VisibilityModifier"})
+public class ExpandedTodo extends Todo {
+  // `null` if there is no user whose name matches the todo's owner
+  public User ownerUser;
+
+  public ExpandedTodo(Todo todo, User ownerUser) {
+    this._id = todo._id;
+    this.owner = todo.owner;
+    this.status = todo.status;
+    this.body = todo.body;
+    this.category = todo.category;
+    this.ownerUser = ownerUser;
+  }
+}
@@ -0,0 +1,87 @@
+package umm3601.todo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash "ring" for deciding which of several nodes (e.g.,
+ * instances of the server in a cluster) owns a key (e.g., a todo owner).
+ * <p>
+ * Each node is placed at many ("virtual") points around the ring, and a key
+ * belongs to the first node at or after the key's own point. Adding or
+ * removing a node then only moves the keys next to that node's points,
+ * rather than reshuffling nearly everything like `hash % nodeCount` would.
+ * <p>
+ * The hashes come from MD5 rather than `String.hashCode()`, since they're
+ * much better spread out, which keeps the slices close to the same size.
+ */
+public class HashRing {
+
+  // How many points each node gets on the ring. More points make the
+  // slices more even, at the cost of a (slightly) bigger ring.
+  static final int VIRTUAL_NODES = 128;
+
+  // The number of bytes of the MD5 digest used for each point
+  private static final int HASH_BYTES = 8;
+  private static final int BITS_PER_BYTE = 8;
+  private static final int BYTE_MASK = 0xff;
+
+  private final List<String> nodes;
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  /**
+   * Make a ring with the given nodes.
+   *
+   * @param nodes the (names of the) nodes; there must be at least one
+   */
+  public HashRing(List<String> nodes) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A hash ring needs at least one node");
+    }
+    this.nodes = List.copyOf(nodes);
+    for (String node : nodes) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        ring.put(hash(node + "#" + v), node);
+      }
+    }
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Get the node that owns the given key.
+   *
+   * @param key the key to look up
+   * @return the node owning that key
+   */
+  public String nodeFor(String key) {
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    // Wrap around to the start of the ring
+    return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+  }
+
+  /**
+   * The point on the ring for the given string: the first 8 bytes of its
+   * MD5 digest. (`MessageDigest`s aren't thread safe, so we make a new one
+   * each time; they're cheap.)
+   */
+  static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < HASH_BYTES; i++) {
+        hash = (hash << BITS_PER_BYTE) | (digest[i] & BYTE_MASK);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support MD5
+      throw new IllegalStateException(e);
+    }
+  }
+}
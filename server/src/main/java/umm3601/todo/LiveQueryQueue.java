@@ -0,0 +1,127 @@
+package umm3601.todo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The changes waiting to be sent to one live query's client (see
+ * `TodoController.subscribeToTodos`).
+ * <p>
+ * Changes are published while `TodoSubscriptions` (and the controller's
+ * reload lock) are locked, so the subscription just adds them to this
+ * queue, which never blocks; they're sent to the client later, on one of
+ * the writer threads, once nothing is locked. That way a slow client only
+ * holds up its own changes, not the reload or the other subscribers.
+ * <p>
+ * The queue is bounded. A client that falls so far behind that its queue
+ * fills up is given up on (the rest of its changes are dropped, and
+ * `onOverflow` is run, e.g., to close it), since it would otherwise keep
+ * more and more changes in memory, and could only ever be shown a partial
+ * picture of them anyway.
+ * <p>
+ * Nothing is sent until `start` is called, so the subscription can be
+ * registered (and start collecting changes) before the snapshot is sent,
+ * and the changes still come after the snapshot.
+ */
+final class LiveQueryQueue implements TodoSubscriptions.Listener {
+
+  private static final class Change {
+    private final String event;
+    private final Todo todo;
+
+    Change(String event, Todo todo) {
+      this.event = event;
+      this.todo = todo;
+    }
+  }
+
+  private final BlockingQueue<Change> changes;
+  private final Executor writer;
+  private final TodoSubscriptions.Listener client;
+  private final Runnable onOverflow;
+
+  private volatile boolean started;
+  private volatile boolean overflowed;
+  // Whether a writer thread is (or is about to be) sending changes, so
+  // there's never more than one, and the changes go out in order
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  /**
+   * Make a queue of changes for a live query.
+   *
+   * @param capacity   how many changes can be waiting to be sent before the
+   *                   client is given up on
+   * @param writer     the threads to send changes on
+   * @param client     where to send the changes
+   * @param onOverflow what to do if the queue fills up
+   */
+  LiveQueryQueue(int capacity, Executor writer, TodoSubscriptions.Listener client, Runnable onOverflow) {
+    this.changes = new ArrayBlockingQueue<>(capacity);
+    this.writer = writer;
+    this.client = client;
+    this.onOverflow = onOverflow;
+  }
+
+  /**
+   * Queue a change to be sent. This never blocks.
+   */
+  @Override
+  public void onChange(String event, Todo todo) {
+    if (overflowed) {
+      return;
+    }
+    if (!changes.offer(new Change(event, todo))) {
+      overflowed = true;
+      changes.clear();
+    }
+    write();
+  }
+
+  /**
+   * Start sending the changes, including any that have already been
+   * queued.
+   */
+  void start() {
+    started = true;
+    write();
+  }
+
+  /**
+   * Get whether the queue has filled up, and the client been given up on.
+   */
+  boolean isOverflowed() {
+    return overflowed;
+  }
+
+  /**
+   * Get the number of changes waiting to be sent.
+   */
+  int size() {
+    return changes.size();
+  }
+
+  private void write() {
+    if (started && writing.compareAndSet(false, true)) {
+      writer.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    do {
+      Change change;
+      while (!overflowed && (change = changes.poll()) != null) {
+        client.onChange(change.event, change.todo);
+      }
+      if (overflowed) {
+        // Leave `writing` set, so nothing is ever sent again
+        onOverflow.run();
+        return;
+      }
+      writing.set(false);
+      // A change may have been queued after the last `poll`, but before
+      // `writing` was cleared, without starting another writer
+    } while (!changes.isEmpty() && writing.compareAndSet(false, true));
+  }
+}
@@ -0,0 +1,342 @@
+package umm3601.todo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The bodies of all the todos, laid out one after another in a single
+ * Latin-1 `byte[]`, with `offsets[i]` the start of the body of todo `i`
+ * (and `offsets[i + 1]` its end).
+ * <p>
+ * Having the bodies in one contiguous array lets the `contains` filter
+ * look for the needle in a whole run of todos at once. We first look for
+ * places where both the first and the last bytes of the needle line up,
+ * which can be done many bytes at a time using SIMD instructions (through
+ * the incubating Vector API) when that's available, and only then check
+ * the rest of the needle. When the Vector API isn't available (or is
+ * turned off with `-Dumm3601.vectorContains=false`) the same search is
+ * done a byte at a time.
+ * <p>
+ * This only works if every body can be represented in Latin-1; if not,
+ * `of()` returns `null` and the database sticks to `String.contains`.
+ * <p>
+ * The bytes can also be kept off the Java heap, in a direct `ByteBuffer`
+ * (see `offHeap()`). With tens of millions of todos the bodies are most of
+ * the heap, and every full GC has to trace (and may have to copy) all of
+ * them; the garbage collector never looks inside a direct buffer, so
+ * keeping the bodies there makes the heap, and full GC pauses, much
+ * smaller. Bodies can then be turned back into `String`s one at a time
+ * (`get()`) for the todos we actually return. The Vector API can't search
+ * a `ByteBuffer` (only arrays, or the `MemorySegment`s that are still a
+ * preview feature in Java 21), so off-heap bodies are always searched a
+ * byte at a time. The memory is freed when the `TodoBodies` is garbage
+ * collected, and how much of it there can be is limited by
+ * `-XX:MaxDirectMemorySize` (which defaults to the largest heap size).
+ */
+class TodoBodies {
+
+  // Whether we can (and should) use the Vector API
+  static final boolean VECTOR_AVAILABLE =
+      ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+      && !"false".equals(System.getProperty("umm3601.vectorContains"));
+
+  private static final int LATIN_1_MAX = 0xFF;
+
+  // Where the bytes are: in an ordinary array on the heap, or in a direct
+  // buffer off the heap. Exactly one of these is `null`.
+  private final byte[] bytes;
+  private final ByteBuffer buffer;
+  private final int[] offsets;
+
+  private TodoBodies(byte[] bytes, ByteBuffer buffer, int[] offsets) {
+    this.bytes = bytes;
+    this.buffer = buffer;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Lay out the bodies of the given todos as contiguous Latin-1 bytes.
+   *
+   * @param todos the todos whose bodies we want
+   * @return the laid out bodies, or `null` if some body isn't Latin-1
+   */
+  static TodoBodies of(Todo[] todos) {
+    String[] texts = new String[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      texts[i] = todos[i].body;
+    }
+    return of(texts);
+  }
+
+  /**
+   * Lay out the given strings (e.g., lowercased todo bodies) as contiguous
+   * Latin-1 bytes.
+   *
+   * @param texts the strings to lay out
+   * @return the laid out strings, or `null` if some string isn't Latin-1
+   */
+  static TodoBodies of(String[] texts) {
+    int[] bodyOffsets = offsetsOf(texts);
+    if (bodyOffsets == null) {
+      return null;
+    }
+    byte[] bodyBytes = new byte[bodyOffsets[texts.length]];
+    for (int i = 0; i < texts.length; i++) {
+      byte[] text = texts[i].getBytes(StandardCharsets.ISO_8859_1);
+      System.arraycopy(text, 0, bodyBytes, bodyOffsets[i], text.length);
+    }
+    return new TodoBodies(bodyBytes, null, bodyOffsets);
+  }
+
+  /**
+   * Lay out the given strings as contiguous Latin-1 bytes in a direct
+   * buffer, off the Java heap.
+   *
+   * @param texts the strings to lay out
+   * @return the laid out strings, or `null` if some string isn't Latin-1
+   */
+  static TodoBodies offHeap(String[] texts) {
+    int[] bodyOffsets = offsetsOf(texts);
+    if (bodyOffsets == null) {
+      return null;
+    }
+    ByteBuffer bodyBuffer = ByteBuffer.allocateDirect(bodyOffsets[texts.length]);
+    for (int i = 0; i < texts.length; i++) {
+      bodyBuffer.put(bodyOffsets[i], texts[i].getBytes(StandardCharsets.ISO_8859_1));
+    }
+    return new TodoBodies(null, bodyBuffer, bodyOffsets);
+  }
+
+  /**
+   * Work out where each string will start once they're laid out one after
+   * another, with one more offset at the end for where the last one ends.
+   *
+   * @return the offsets, or `null` if some string isn't Latin-1 or they
+   *         won't all fit in one array
+   */
+  private static int[] offsetsOf(String[] texts) {
+    int[] textOffsets = new int[texts.length + 1];
+    long totalLength = 0;
+    for (int i = 0; i < texts.length; i++) {
+      if (!isLatin1(texts[i])) {
+        return null;
+      }
+      totalLength += texts[i].length();
+      if (totalLength > Integer.MAX_VALUE) {
+        return null;
+      }
+      textOffsets[i + 1] = (int) totalLength;
+    }
+    return textOffsets;
+  }
+
+  /**
+   * Whether the bytes are kept off the heap.
+   */
+  boolean isOffHeap() {
+    return buffer != null;
+  }
+
+  /**
+   * Get the number of bytes the laid out strings take up.
+   */
+  int byteSize() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Turn the body of todo `i` back into a `String`.
+   */
+  String get(int i) {
+    int length = offsets[i + 1] - offsets[i];
+    if (bytes != null) {
+      return new String(bytes, offsets[i], length, StandardCharsets.ISO_8859_1);
+    }
+    byte[] text = new byte[length];
+    buffer.get(offsets[i], text);
+    return new String(text, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Get the body of todo `i` as a `CharSequence` that reads the laid out
+   * bytes directly, e.g., for matching a regular expression against an
+   * off-heap body without first copying it into a `String`.
+   */
+  CharSequence text(int i) {
+    return new Latin1Text(offsets[i], offsets[i + 1]);
+  }
+
+  private byte byteAt(int position) {
+    return bytes != null ? bytes[position] : buffer.get(position);
+  }
+
+  /**
+   * A view of the laid out bytes from `start` (inclusive) to `end`
+   * (exclusive) as characters. Each Latin-1 byte is exactly one character.
+   */
+  private final class Latin1Text implements CharSequence {
+    private final int start;
+    private final int end;
+
+    Latin1Text(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      return (char) (byteAt(start + index) & LATIN_1_MAX);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      if (from < 0 || to > length() || from > to) {
+        throw new IndexOutOfBoundsException("Can't take " + from + " to " + to + " of " + length());
+      }
+      return new Latin1Text(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+      byte[] text = new byte[length()];
+      for (int i = 0; i < text.length; i++) {
+        text[i] = byteAt(start + i);
+      }
+      return new String(text, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Check whether every character in the given string fits in Latin-1.
+   *
+   * @param text the string to check
+   * @return true if the string can be encoded as Latin-1 without loss
+   */
+  static boolean isLatin1(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) > LATIN_1_MAX) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find which of the candidate todos in positions `from` (inclusive) to `to`
+   * (exclusive) have a body containing the given needle.
+   *
+   * @param candidates the todos to check (this isn't modified)
+   * @param from       the first position to check
+   * @param to         one past the last position to check
+   * @param needle     the Latin-1 bytes to look for
+   * @param useVector  whether to use the Vector API (if it's available)
+   * @return a bitmap of the candidates whose bodies contain the needle
+   */
+  BitSet contains(BitSet candidates, int from, int to, byte[] needle, boolean useVector) {
+    BitSet matches = new BitSet(to);
+    boolean vector = useVector && VECTOR_AVAILABLE && bytes != null;
+    // Search each run of consecutive candidates as a single region of bytes
+    int runStart = candidates.nextSetBit(from);
+    while (runStart >= 0 && runStart < to) {
+      int runEnd = Math.min(candidates.nextClearBit(runStart), to);
+      searchRun(runStart, runEnd, needle, vector, matches);
+      runStart = candidates.nextSetBit(runEnd);
+    }
+    return matches;
+  }
+
+  /**
+   * Search the bodies of todos `runStart` (inclusive) to `runEnd` (exclusive)
+   * for the needle, setting the bits in `matches` for the todos that have it.
+   */
+  private void searchRun(int runStart, int runEnd, byte[] needle, boolean vector, BitSet matches) {
+    if (needle.length == 0) {
+      matches.set(runStart, runEnd);
+      return;
+    }
+    int lastOffset = needle.length - 1;
+    int lastStart = offsets[runEnd] - needle.length;
+    byte first = needle[0];
+    byte last = needle[lastOffset];
+
+    int todo = runStart;
+    int position = offsets[runStart];
+    while (position <= lastStart) {
+      if (bytes == null) {
+        position = nextCandidate(buffer, position, lastStart, first, last, lastOffset);
+      } else if (vector) {
+        position = VectorByteSearch.nextCandidate(bytes, position, lastStart, first, last, lastOffset);
+      } else {
+        position = nextCandidate(bytes, position, lastStart, first, last, lastOffset);
+      }
+      if (position < 0) {
+        break;
+      }
+      // Move along to the todo whose body this position is in
+      while (offsets[todo + 1] <= position) {
+        todo++;
+      }
+      int bodyEnd = offsets[todo + 1];
+      if (position + needle.length <= bodyEnd && matchesAt(position, needle)) {
+        matches.set(todo);
+        // No need to look at the rest of this body
+        position = bodyEnd;
+      } else {
+        position++;
+      }
+    }
+  }
+
+  /**
+   * The scalar version of `VectorByteSearch.nextCandidate`: find the first
+   * position `p` from `from` to `lastStart` (inclusive) where
+   * `bytes[p] == first` and `bytes[p + lastOffset] == last`.
+   *
+   * @return the position, or -1 if there isn't one
+   */
+  static int nextCandidate(byte[] bytes, int from, int lastStart, byte first, byte last, int lastOffset) {
+    for (int p = from; p <= lastStart; p++) {
+      if (bytes[p] == first && bytes[p + lastOffset] == last) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * `nextCandidate` for bytes in a (direct) buffer.
+   */
+  static int nextCandidate(ByteBuffer bytes, int from, int lastStart, byte first, byte last, int lastOffset) {
+    for (int p = from; p <= lastStart; p++) {
+      if (bytes.get(p) == first && bytes.get(p + lastOffset) == last) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check whether the whole needle is at the given position.
+   */
+  private boolean matchesAt(int position, byte[] needle) {
+    if (bytes != null) {
+      return Arrays.equals(bytes, position, position + needle.length, needle, 0, needle.length);
+    }
+    for (int i = 0; i < needle.length; i++) {
+      if (buffer.get(position + i) != needle[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
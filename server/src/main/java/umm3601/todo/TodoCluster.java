@@ -0,0 +1,214 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Several instances of the server working together on todo queries.
+ * <p>
+ * Every instance still loads all the todos (so things like a single todo by
+ * ID or the stats can be answered by any instance on its own), but the
+ * owners are split between the instances with a consistent-hash ring, and
+ * each instance only searches the todos of the owners it owns. Any instance
+ * can answer `/api/todos` by sending the same query to all the instances
+ * (itself included), which each return their slice of the results, and
+ * merging those slices. Since each instance only searches its own slice,
+ * adding instances adds search capacity. It doesn't add memory, though:
+ * every instance still holds the whole dataset, so a cluster can't hold
+ * any more todos than one instance can.
+ * <p>
+ * A query for a single owner only goes to the instance owning that owner.
+ */
+public class TodoCluster {
+
+  // The route each instance answers its slice of a query on
+  public static final String SLICE_PATH = "/api/cluster/todos";
+
+  // How long to wait to connect to, or hear back from, another instance
+  private static final Duration PEER_TIMEOUT = Duration.ofSeconds(5);
+
+  private static final int HTTP_OK = 200;
+  private static final int HTTP_BAD_REQUEST = 400;
+
+  // The `host:port` of this instance, and of all the instances (this one
+  // included)
+  private final String self;
+  private final HashRing ring;
+  // The owners (in the todo "database") whose todos this instance searches
+  private final Set<String> ownedOwners;
+
+  private final HttpClient httpClient;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  /**
+   * Set up this instance's part in a cluster.
+   *
+   * @param self         the `host:port` of this instance
+   * @param peers        the `host:port` of every instance in the cluster,
+   *                     including this one
+   * @param todoDatabase this instance's todos
+   */
+  public TodoCluster(String self, List<String> peers, TodoDatabase todoDatabase) {
+    if (!peers.contains(self)) {
+      throw new IllegalArgumentException("This instance (" + self + ") must be one of the peers " + peers);
+    }
+    this.self = self;
+    this.ring = new HashRing(peers);
+
+    Set<String> owned = new TreeSet<>();
+    for (String owner : todoDatabase.getOwners()) {
+      if (ring.nodeFor(owner).equals(self)) {
+        owned.add(owner);
+      }
+    }
+    this.ownedOwners = Collections.unmodifiableSet(owned);
+
+    this.httpClient = HttpClient.newBuilder().connectTimeout(PEER_TIMEOUT).build();
+  }
+
+  public String getSelf() {
+    return self;
+  }
+
+  public List<String> getPeers() {
+    return ring.getNodes();
+  }
+
+  /**
+   * Get the owners whose todos this instance searches.
+   *
+   * @return the (sorted) owners owned by this instance
+   */
+  public Set<String> getOwnedOwners() {
+    return ownedOwners;
+  }
+
+  /**
+   * Get the instances that have to be asked about a query: just the one
+   * owning the owner if the query is for a single `owner`, otherwise all of
+   * them.
+   *
+   * @param query the (parsed) query
+   * @return the `host:port` of each instance to send the query to
+   */
+  public List<String> peersFor(TodoQuery query) {
+    if (query.getOwner() != null) {
+      return List.of(ring.nodeFor(query.getOwner()));
+    }
+    return ring.getNodes();
+  }
+
+  /**
+   * Answer a todo query by sending it to the instances that need to see it
+   * and merging their slices of the results.
+   * <p>
+   * The requests to other instances are all sent first, and then this
+   * instance works on its own slice (if it has one) while it waits for them.
+   *
+   * @param queryString the (raw) query string to send to the other instances
+   * @param query       the (parsed) query
+   * @param localSlice  computes this instance's slice of the results
+   * @return an array of all the todos matching the query
+   */
+  public Todo[] getTodos(String queryString, TodoQuery query, Supplier<TodoSlice> localSlice) {
+    List<CompletableFuture<TodoSlice>> remoteSlices = new ArrayList<>();
+    boolean includeSelf = false;
+    for (String peer : peersFor(query)) {
+      if (peer.equals(self)) {
+        includeSelf = true;
+      } else {
+        remoteSlices.add(fetchSlice(peer, queryString));
+      }
+    }
+
+    List<TodoSlice> slices = new ArrayList<>();
+    if (includeSelf) {
+      slices.add(localSlice.get());
+    }
+    try {
+      for (CompletableFuture<TodoSlice> remoteSlice : remoteSlices) {
+        slices.add(remoteSlice.join());
+      }
+    } catch (CompletionException e) {
+      // Rethrow the original exception (e.g., a `BadRequestResponse` from
+      // another instance) so it's handled as if it happened here
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return TodoDatabase.mergeSlices(query, slices);
+  }
+
+  /**
+   * Ask another instance for its slice of the results of a query.
+   * <p>
+   * If it says the query is bad we pass that along (it's the same query,
+   * so it would be bad here too); if it can't be reached, or fails in some
+   * other way, the cluster can't answer the query right now.
+   *
+   * @param peer        the `host:port` of the instance to ask
+   * @param queryString the (raw) query string of the query
+   * @return the slice of the results from that instance
+   */
+  CompletableFuture<TodoSlice> fetchSlice(String peer, String queryString) {
+    String query = queryString == null || queryString.isEmpty() ? "" : "?" + queryString;
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + peer + SLICE_PATH + query))
+        .timeout(PEER_TIMEOUT)
+        .header("Accept", "application/json")
+        .GET()
+        .build();
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+        .handle((response, error) -> {
+          if (error != null) {
+            throw new ServiceUnavailableResponse("Cluster peer " + peer + " is unavailable");
+          }
+          if (response.statusCode() == HTTP_BAD_REQUEST) {
+            throw new BadRequestResponse(errorTitle(response.body()));
+          }
+          if (response.statusCode() != HTTP_OK) {
+            throw new ServiceUnavailableResponse(
+                "Cluster peer " + peer + " failed with status " + response.statusCode());
+          }
+          try {
+            return objectMapper.readValue(response.body(), TodoSlice.class);
+          } catch (IOException e) {
+            throw new ServiceUnavailableResponse("Cluster peer " + peer + " sent an unreadable response");
+          }
+        });
+  }
+
+  /**
+   * Get the message out of a Javalin JSON error response (its `title`).
+   */
+  private String errorTitle(byte[] body) {
+    try {
+      Object title = objectMapper.readValue(body, Map.class).get("title");
+      if (title != null) {
+        return title.toString();
+      }
+    } catch (IOException e) {
+      // Fall through and use the whole body
+    }
+    return new String(body, StandardCharsets.UTF_8);
+  }
+}
@@ -1,22 +1,90 @@
 package umm3601.todo;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.UnauthorizedResponse;
+import io.javalin.http.sse.SseClient;
 
+import umm3601.BinaryFormats;
+import umm3601.ComputeExecutor;
 import umm3601.Controller;
+import umm3601.FieldProjection;
+import umm3601.NdjsonExport;
+import umm3601.QueryCache;
+import umm3601.ServerTiming;
+import umm3601.SingleFlight;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
 
 /**
  * Controller that manages requests for info about todos.
  */
 public class TodoController implements Controller {
 
-  private TodoDatabase todoDatabase;
+  // How many parsed queries to keep
+  private static final int QUERY_CACHE_SIZE = 1024;
+  // How many changes a live query's client can fall behind by before it's
+  // closed (see `LiveQueryQueue`)
+  private static final int LIVE_QUERY_BACKLOG = 1024;
+
+  // Where an administrator can replace all the todos (see `replaceTodos`)
+  public static final String RELOAD_PATH = "/api/admin/todos";
+
+  // The todos can be replaced (see `reloadTodos`) while requests are
+  // using them, so this is `volatile`
+  private volatile TodoDatabase todoDatabase;
+  // The users, used to join todos with their owners. This is `null` if
+  // the controller was built without any user data.
+  private UserDatabase userDatabase;
+  // This instance's part in a cluster of servers, or `null` if this server
+  // is running on its own.
+  private TodoCluster todoCluster;
+  // The threads that lists of todos are found (and serialized) on, or
+  // `null` to do that on the request threads (see `ComputeExecutor`)
+  private ComputeExecutor computeExecutor;
+
+  // Identical `/api/todos` requests that arrive at the same time share one
+  // computation (and serialization) of their results
+  private final SingleFlight<String, SharedTodos> todoFlights = new SingleFlight<>();
+
+  // Parsed queries, by their canonical query string, so requests with the
+  // same parameters skip parsing them all over again
+  private final QueryCache<TodoQuery> todoQueries = new QueryCache<>(QUERY_CACHE_SIZE, TodoQuery::parse);
+
+  // Streams all the todos for `/api/todos/export`
+  private final NdjsonExport<Todo> todoExport = new NdjsonExport<>(Todo.class);
+
+  // Live queries over Server-Sent Events, and a lock so that subscribing
+  // (which picks the todos for the snapshot) and replacing the todos
+  // happen one at a time, so no subscriber misses or repeats a change
+  private final TodoSubscriptions todoSubscriptions = new TodoSubscriptions();
+  private final Object reloadLock = new Object();
+  // The token an administrator has to give to replace the todos, or `null`
+  // if they can't be replaced over HTTP at all
+  private String reloadToken;
+  // The threads that send live queries' snapshots and changes to their
+  // clients, so that's never done while anything is locked. A slow client
+  // can block one of these for a while, so there's no fixed number of them.
+  private Executor liveQueryWriter = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "live-query-writer");
+    // These threads mustn't keep the JVM running once the server stops
+    thread.setDaemon(true);
+    return thread;
+  });
 
   /**
    * Construct a controller for todos.
@@ -28,7 +96,51 @@ public class TodoController implements Controller {
    * @param database the `Database` containing todo data
    */
   public TodoController(TodoDatabase todoDatabase) {
+    this(todoDatabase, null);
+  }
+
+  /**
+   * Construct a controller for todos that can also join todos with the
+   * `User` records of their owners (`expand=owner` and `ownerCompany=`).
+   *
+   * @param todoDatabase the `Database` containing todo data
+   * @param userDatabase the `Database` containing user data
+   */
+  public TodoController(TodoDatabase todoDatabase, UserDatabase userDatabase) {
+    this(todoDatabase, userDatabase, null);
+  }
+
+  /**
+   * Construct a controller for todos that is one instance in a cluster of
+   * servers. Lists of todos are found by asking every instance (see
+   * `TodoCluster`) for its slice of them.
+   *
+   * @param todoDatabase the `Database` containing todo data
+   * @param userDatabase the `Database` containing user data
+   * @param todoCluster  this instance's part in the cluster, or `null` if
+   *                     it's running on its own
+   */
+  public TodoController(TodoDatabase todoDatabase, UserDatabase userDatabase, TodoCluster todoCluster) {
+    this(todoDatabase, userDatabase, todoCluster, null);
+  }
+
+  /**
+   * Construct a controller for todos that finds lists of todos (and counts
+   * of them) on its own compute threads, rather than the request threads.
+   *
+   * @param todoDatabase    the `Database` containing todo data
+   * @param userDatabase    the `Database` containing user data
+   * @param todoCluster     this instance's part in the cluster, or `null`
+   *                        if it's running on its own
+   * @param computeExecutor the threads to find todos on, or `null` to find
+   *                        them on the request threads
+   */
+  public TodoController(TodoDatabase todoDatabase, UserDatabase userDatabase, TodoCluster todoCluster,
+      ComputeExecutor computeExecutor) {
     this.todoDatabase = todoDatabase;
+    this.userDatabase = userDatabase;
+    this.todoCluster = todoCluster;
+    this.computeExecutor = computeExecutor;
   }
 
   /**
@@ -59,7 +171,7 @@ public class TodoController implements Controller {
     String id = ctx.pathParam("id");
     Todo todo = todoDatabase.getTodo(id);
     if (todo != null) {
-      ctx.json(todo);
+      BinaryFormats.json(ctx, todo);
       ctx.status(HttpStatus.OK);
     } else {
       throw new NotFoundResponse("No todo with id " + id + " was found.");
@@ -71,31 +183,505 @@ public class TodoController implements Controller {
    * the request, uses them to filter and sort the todos in the database, and
    * sends the
    * resulting list of todos as a JSON response.
+   * <p>
+   * With `ownerCompany=COMPANY` only todos whose owner works for that company
+   * are returned, and with `expand=owner` each todo comes back along with its
+   * owner's full `User` record. Both are done here on the server with a hash
+   * join (looking owners up by name in the `UserDatabase`), so clients don't
+   * have to download all the users and do the join themselves.
+   * <p>
+   * In a cluster, the todos come from every instance's slice of the results
+   * (the owners are joined once they're all merged together).
+   * <p>
+   * Identical requests (the same parameters, in any order) that arrive
+   * while the todos for one of them are still being found wait for and
+   * share those todos, and their JSON, rather than each doing it all again.
+   * <p>
+   * With `fields=_id,owner,status` (say) each todo only has those fields,
+   * written from pieces of JSON kept from earlier requests (see
+   * `FieldProjection`), which is much less to send than the whole todos.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getTodos(Context ctx) {
+    // How long each step takes, if we're keeping track (see `ServerTiming`)
+    ServerTiming.Timings timings = ServerTiming.of(ctx);
+    long start = ServerTiming.start(timings);
     Map<String, List<String>> queryParams = ctx.queryParamMap();
-    Todo[] todos = todoDatabase.getTodos(queryParams);
-    ctx.json(todos);
+    String canonicalQuery = QueryCache.canonicalQuery(queryParams);
+    TodoQuery query = todoQueries.get(canonicalQuery, queryParams);
+    if (timings != null) {
+      timings.add("parse", start);
+      start = System.nanoTime();
+    }
+    // The todos may be found by (and shared with) another request, so
+    // everything that's needed from this one is worked out here first
+    Set<String> owners = ownersInCompany(query);
+    boolean timed = timings != null;
+    SingleFlight.Outcome<SharedTodos> outcome = todoFlights.run(canonicalQuery,
+        () -> findTodos(canonicalQuery, query, owners, timed));
+    if (timings != null) {
+      if (outcome.isComputed()) {
+        timings.addAll(outcome.getValue().timings);
+      } else {
+        // Another request found the todos; this is how long we waited for it
+        timings.add("shared", start);
+      }
+    }
+    start = ServerTiming.start(timings);
+    if (outcome.isShared() || query.getFields() != null) {
+      // Other requests got the same todos, so they're only serialized once
+      // (for each encoding asked for); or only some fields were asked for,
+      // which we write ourselves
+      BinaryFormats.Format format = BinaryFormats.formatOf(ctx);
+      BinaryFormats.result(ctx, format, outcome.getValue().encode(format));
+    } else {
+      BinaryFormats.json(ctx, outcome.getValue().todos);
+    }
+    if (timings != null) {
+      timings.add("serialize", start, outcome.getValue().todos.length);
+    }
+  }
+
+  /**
+   * Get the number of `/api/todos` requests that shared another request's
+   * results.
+   */
+  long getCoalescedCount() {
+    return todoFlights.getCoalescedCount();
+  }
+
+  /**
+   * Get the cache of parsed todo queries.
+   */
+  QueryCache<TodoQuery> getQueryCache() {
+    return todoQueries;
+  }
+
+  /**
+   * Find the todos for a query: filtered, sorted, and limited by the
+   * database (or the cluster), and joined with their owners if asked.
+   * <p>
+   * The todos are shared by every identical request that arrives while
+   * they're being found, so this doesn't touch any one request: its steps
+   * are timed on their own, and added to the timings of the request that
+   * ran it (see `getTodos`).
+   *
+   * @param canonicalQuery the query's parameters as a query string, to send
+   *                       to the other instances in a cluster
+   * @param query          the (parsed) query
+   * @param owners         the owners in the query's `ownerCompany`, or
+   *                       `null` for any owner
+   * @param timed          whether to time the steps
+   * @return the todos, along with how long each step took
+   */
+  private SharedTodos findTodos(String canonicalQuery, TodoQuery query, Set<String> owners, boolean timed) {
+    if (query.isExpandOwner()) {
+      requireUserDatabase();
+    }
+    ServerTiming.Timings timings = timed ? new ServerTiming.Timings() : null;
+    // The todos could be reloaded at any time, so stick to one database
+    TodoDatabase database = todoDatabase;
+    Todo[] todos;
+    if (todoCluster == null) {
+      todos = database.getTodos(query, owners, timings);
+    } else {
+      long start = ServerTiming.start(timings);
+      todos = todoCluster.getTodos(canonicalQuery, query, () -> localSlice(database, query, owners));
+      if (timings != null) {
+        timings.add("cluster", start, todos.length);
+      }
+    }
+    if (query.isExpandOwner()) {
+      long start = ServerTiming.start(timings);
+      todos = joinOwners(todos);
+      if (timings != null) {
+        timings.add("join", start, todos.length);
+      }
+    }
+    return new SharedTodos(todos, timings, query, database.getFieldProjection(), keepFragments(database, query));
+  }
+
+  /**
+   * The todos found for one or more identical requests, along with their
+   * JSON (or CBOR, or Smile; see `BinaryFormats`), each of which is only
+   * made (once) if it's needed.
+   */
+  private static final class SharedTodos {
+    private final Todo[] todos;
+    // How long finding the todos took, or `null` if it wasn't timed
+    private final ServerTiming.Timings timings;
+    private final TodoQuery query;
+    private final FieldProjection<Todo> fieldProjection;
+    private final boolean keepFragments;
+    private final Map<BinaryFormats.Format, byte[]> encoded = new EnumMap<>(BinaryFormats.Format.class);
+
+    SharedTodos(Todo[] todos, ServerTiming.Timings timings, TodoQuery query, FieldProjection<Todo> fieldProjection,
+        boolean keepFragments) {
+      this.todos = todos;
+      this.timings = timings;
+      this.query = query;
+      this.fieldProjection = fieldProjection;
+      this.keepFragments = keepFragments;
+    }
+
+    synchronized byte[] encode(BinaryFormats.Format format) {
+      byte[] bytes = encoded.get(format);
+      if (bytes == null) {
+        if (query.getFields() == null) {
+          bytes = format.encode(todos);
+        } else if (format == BinaryFormats.Format.JSON) {
+          bytes = fieldProjection.write(todos, query.getFields(), keepFragments);
+        } else {
+          bytes = fieldProjection.write(todos, query.getFields(), format.getMapper());
+        }
+        encoded.put(format, bytes);
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Handles requests from other instances in a cluster for this instance's
+   * slice of the todos matching a query: those (matching todos) whose owner
+   * is owned by this instance, along with their positions so they can be
+   * merged with the other slices.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoSlice(Context ctx) {
+    TodoQuery query = todoQueries.get(ctx.queryParamMap());
+    ctx.json(localSlice(todoDatabase, query, ownersInCompany(query)));
+  }
+
+  /**
+   * Get this instance's slice of the todos matching a query. If there's an
+   * `ownerCompany` too, only the owners in both count.
+   *
+   * @param database      the todos to search
+   * @param query         the (parsed) query
+   * @param companyOwners the owners in the query's `ownerCompany`, or
+   *                      `null` for any owner
+   */
+  private TodoSlice localSlice(TodoDatabase database, TodoQuery query, Set<String> companyOwners) {
+    Set<String> owners = new HashSet<>(todoCluster.getOwnedOwners());
+    if (companyOwners != null) {
+      owners.retainAll(companyOwners);
+    }
+    return database.getTodoSlice(query, owners);
+  }
+
+  /**
+   * Get the names of the users at the company given by `ownerCompany`, or
+   * `null` if the request doesn't have an `ownerCompany`.
+   */
+  private Set<String> ownersInCompany(TodoQuery query) {
+    if (query.getOwnerCompany() == null) {
+      return null;
+    }
+    return requireUserDatabase().getNamesInCompany(query.getOwnerCompany());
+  }
+
+  private UserDatabase requireUserDatabase() {
+    if (userDatabase == null) {
+      throw new BadRequestResponse("This server has no user data to join todos with");
+    }
+    return userDatabase;
+  }
+
+  /**
+   * Join each of the given todos with its owner's `User` record. Each owner
+   * is a single hash lookup, so this is linear in the number of todos.
+   *
+   * @param todos the todos to join
+   * @return the todos, each along with its owner's record
+   */
+  private ExpandedTodo[] joinOwners(Todo[] todos) {
+    ExpandedTodo[] expandedTodos = new ExpandedTodo[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      User ownerUser = userDatabase.getUserByName(todos[i].owner);
+      expandedTodos[i] = new ExpandedTodo(todos[i], ownerUser);
+    }
+    return expandedTodos;
+  }
+
+  /**
+   * Handles HTTP requests for counts of todos. The same filters as
+   * `getTodos` can be used, and `groupBy` picks which of owner, category,
+   * and status to break the counts down by.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoStats(Context ctx) {
+    TodoQuery query = todoQueries.get(ctx.queryParamMap());
+    TodoGroupCount[] stats = todoDatabase.getTodoStats(query, ownersInCompany(query));
+    BinaryFormats.json(ctx, stats);
+  }
+
+  /**
+   * Stream every todo to the client as newline-delimited JSON (one todo
+   * per line), for bulk exports. This goes straight through the todos in
+   * the database (a partition at a time), rather than building a list of
+   * them first. See `NdjsonExport`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the todos can't be written to the client
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    todoExport.export(ctx, todoDatabase.getAllTodos());
+  }
+
+  /**
+   * Handles a live query: the client (using Server-Sent Events) subscribes
+   * with the same query parameters as `getTodos`, first gets a `snapshot`
+   * event with the todos `getTodos` would return, and then gets `add`,
+   * `remove`, and `update` events (each with a single todo) whenever the
+   * todos matching the query change, instead of having to poll. The todos
+   * change when they're reloaded (see `reloadTodos`), e.g., by an
+   * administrator with `replaceTodos`.
+   * <p>
+   * Changes are only checked against the subscriptions that could care
+   * about them (see `TodoSubscriptions`), not by running every query again.
+   * `orderBy` and `limit` only apply to the snapshot. Any problems with
+   * the query are sent as an `error` event, since by then the response has
+   * already started.
+   * <p>
+   * The subscription is registered, and the todos for the snapshot picked,
+   * while holding the reload lock, so the changes start exactly where the
+   * snapshot ends; but nothing is sent to the client until the lock has
+   * been let go, and the changes are sent on their own threads (see
+   * `LiveQueryQueue`). A client that falls too far behind is sent an
+   * `error` event and closed.
+   *
+   * @param client the client subscribing
+   */
+  public void subscribeToTodos(SseClient client) {
+    Context ctx = client.ctx();
+    TodoQuery query;
+    Set<String> owners;
+    TodoDatabase database;
+    LiveQueryQueue changes;
+    TodoSubscriptions.Subscription subscription;
+    try {
+      if (todoCluster != null) {
+        throw new BadRequestResponse("Live queries aren't supported in a cluster");
+      }
+      query = todoQueries.get(ctx.queryParamMap());
+      if (query.isExpandOwner()) {
+        requireUserDatabase();
+      }
+      owners = ownersInCompany(query);
+    } catch (BadRequestResponse e) {
+      client.sendEvent("error", e.getMessage());
+      client.close();
+      return;
+    }
+    changes = new LiveQueryQueue(LIVE_QUERY_BACKLOG, liveQueryWriter,
+        (event, todo) -> client.sendEvent(event, eventData(query, todo)),
+        () -> {
+          client.sendEvent("error", "Too many changes were waiting to be sent");
+          client.close();
+        });
+    synchronized (reloadLock) {
+      database = todoDatabase;
+      subscription = todoSubscriptions.subscribe(query, owners, changes);
+    }
+    client.onClose(() -> todoSubscriptions.unsubscribe(subscription));
+
+    // The database the subscription started with is never changed, so the
+    // snapshot can be found and sent without the lock
+    Todo[] snapshot = database.getTodos(query, owners, null);
+    if (query.isExpandOwner()) {
+      snapshot = joinOwners(snapshot);
+    }
+    client.sendEvent("snapshot", eventData(query, snapshot, database));
+    changes.start();
+    client.keepAlive();
+  }
+
+  /**
+   * Whether to keep the pieces of JSON written for the todos found by a
+   * query (see `FieldProjection`). That's only worth it for the database's
+   * own todos, which will be found again; expanded todos, todos from other
+   * instances in a cluster, and todos with off-heap bodies are all made
+   * just for this request. The pieces are kept by the database, so they go
+   * away when the todos are reloaded.
+   */
+  private boolean keepFragments(TodoDatabase database, TodoQuery query) {
+    return !query.isExpandOwner() && todoCluster == null && !database.isOffHeap();
+  }
+
+  /**
+   * Get the data for a live query event about the given todos (from the
+   * given database): the todos themselves, or their JSON with just the
+   * fields asked for.
+   */
+  private Object eventData(TodoQuery query, Todo[] todos, TodoDatabase database) {
+    if (query.getFields() == null) {
+      return todos;
+    }
+    return new String(database.getFieldProjection().write(todos, query.getFields(), keepFragments(database, query)),
+        StandardCharsets.UTF_8);
+  }
+
+  private Object eventData(TodoQuery query, Todo todo) {
+    Todo eventTodo = todo;
+    if (query.isExpandOwner()) {
+      eventTodo = new ExpandedTodo(todo, userDatabase.getUserByName(todo.owner));
+    }
+    if (query.getFields() == null) {
+      return eventTodo;
+    }
+    // A change's todo may be from the database before a reload, so its
+    // pieces of JSON aren't kept in the current one's projection
+    return new String(todoDatabase.getFieldProjection().writeOne(eventTodo, query.getFields(), false),
+        StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the database with the current todos.
+   */
+  TodoDatabase getTodoDatabase() {
+    return todoDatabase;
+  }
+
+  /**
+   * Get the live queries.
+   */
+  TodoSubscriptions getSubscriptions() {
+    return todoSubscriptions;
+  }
+
+  /**
+   * Send live queries' snapshots and changes on the given threads instead
+   * of the usual ones (e.g., on the calling thread, in tests).
+   */
+  void setLiveQueryWriter(Executor liveQueryWriter) {
+    this.liveQueryWriter = liveQueryWriter;
+  }
+
+  /**
+   * Let an administrator replace the todos over HTTP (see `replaceTodos`),
+   * with the given token.
+   *
+   * @param reloadToken the token, or `null` to not allow it
+   */
+  public void setReloadToken(String reloadToken) {
+    this.reloadToken = reloadToken;
+  }
+
+  /**
+   * Replace all the todos with the ones in the given database, and tell
+   * the live queries about every todo that was added, removed, or changed.
+   * <p>
+   * This can't be done in a cluster, since which owners each instance
+   * looks after (see `TodoCluster`) was worked out from the todos it
+   * started with.
+   *
+   * @param newDatabase the database with the new todos
+   * @throws IllegalStateException if this instance is in a cluster
+   */
+  public void reloadTodos(TodoDatabase newDatabase) {
+    if (todoCluster != null) {
+      throw new IllegalStateException("Todos can't be reloaded in a cluster");
+    }
+    synchronized (reloadLock) {
+      TodoDatabase oldDatabase = todoDatabase;
+      todoDatabase = newDatabase;
+      todoSubscriptions.publishChanges(oldDatabase, newDatabase);
+    }
+  }
+
+  /**
+   * Handles an administrator's HTTP request to replace all the todos with
+   * the (JSON array of) todos in the request body. The request needs an
+   * `Authorization: Bearer TOKEN` header with the token the server was
+   * started with. Todos are matched up with the old ones by `_id`, so live
+   * queries get told what changed.
+   * <p>
+   * The new todos' indexes are built before the reload lock is taken, and
+   * the live queries' clients are sent the changes on their own threads,
+   * so this only holds the lock while the changes are worked out.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void replaceTodos(Context ctx) {
+    String authorization = ctx.header("Authorization");
+    if (reloadToken == null || authorization == null || !MessageDigest.isEqual(
+        ("Bearer " + reloadToken).getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8))) {
+      throw new UnauthorizedResponse("Replacing the todos needs the administrator's token");
+    }
+    if (todoCluster != null) {
+      throw new BadRequestResponse("Todos can't be replaced in a cluster");
+    }
+    Todo[] todos = ctx.bodyAsClass(Todo[].class);
+    Set<String> ids = new HashSet<>();
+    for (Todo todo : todos) {
+      if (todo._id == null || todo.owner == null || todo.body == null || todo.category == null) {
+        throw new BadRequestResponse("Every todo needs an _id, owner, body, and category");
+      }
+      if (!ids.add(todo._id)) {
+        throw new BadRequestResponse("More than one todo has the _id " + todo._id);
+      }
+    }
+    reloadTodos(todoDatabase.withTodos(todos));
+    ctx.status(HttpStatus.NO_CONTENT);
   }
 
   /**
    * * Adds route handlers to the Javalin server instance.
    *
-   * Defines two GET routes:
-   * 1. "/api/todos/{id}" - Retrieves a single todo item by its ID.
-   * 2. "/api/todos" - Retrieves a list of todo items, with optional filtering
+   * Defines five GET routes (plus a sixth when in a cluster):
+   * 1. "/api/todos/stats" - Retrieves counts of todo items, grouped by
+   * owner, category, and/or status.
+   * 2. "/api/todos/export" - Streams every todo item as newline-delimited
+   * JSON.
+   * 3. "/api/todos/live" - Subscribes (with Server-Sent Events) to the todo
+   * items matching the query parameters, and changes to them.
+   * 4. "/api/todos/{id}" - Retrieves a single todo item by its ID.
+   * 5. "/api/todos" - Retrieves a list of todo items, with optional filtering
    * based on query parameters.
+   * 6. "/api/cluster/todos" - Retrieves this instance's slice of a list of
+   * todo items, for the other instances in the cluster.
+   * 7. PUT "/api/admin/todos" - Replaces all the todo items, if the server
+   * was given a token for it.
    *
    * @param server The Javalin server instance
    */
   @Override
   public void addRoutes(Javalin server) {
+    // Gets counts of todos, grouped by the given fields. This has to
+    // be added before "/api/todos/{id}" since Javalin uses the first
+    // route that matches, and "stats" would otherwise be taken as an ID.
+    // Like lists of todos, counts look at a lot of todos, so they're done
+    // on the compute threads if there are any.
+    server.get("/api/todos/stats", ComputeExecutor.wrap(computeExecutor, this::getTodoStats));
+
+    // Exports all the todos; this also has to come before "/api/todos/{id}"
+    server.get("/api/todos/export", this::exportTodos);
+
+    // Live queries, which also have to come before "/api/todos/{id}"
+    server.sse("/api/todos/live", this::subscribeToTodos);
+
     // Gets the single todo with the given ID
     server.get("/api/todos/{id}", this::getTodo);
 
-    // Gets todos with any given filters
-    server.get("/api/todos", this::getTodos);
+    // Gets todos with any given filters. This can be a lot of work, so
+    // it's done on the compute threads if there are any; looking up a
+    // single todo (above) is quick, so it stays on the request thread.
+    server.get("/api/todos", ComputeExecutor.wrap(computeExecutor, this::getTodos));
+
+    // Gets this instance's slice of the todos with any given filters, for
+    // other instances in the cluster
+    if (todoCluster != null) {
+      server.get(TodoCluster.SLICE_PATH, this::getTodoSlice);
+    }
+
+    // Replaces all the todos, for an administrator with the token. Building
+    // the new todos' indexes is a lot of work, so it's done on the compute
+    // threads if there are any.
+    if (reloadToken != null) {
+      server.put(RELOAD_PATH, ComputeExecutor.wrap(computeExecutor, this::replaceTodos));
+    }
   }
 }
@@ -3,14 +3,25 @@ package umm3601.todo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import io.javalin.http.BadRequestResponse;
+import umm3601.FieldProjection;
+import umm3601.ServerTiming;
 
 /**
  * A fake "database" of todo info
@@ -19,17 +30,158 @@ import io.javalin.http.BadRequestResponse;
  * to instead just read a bunch of todo data from a specified JSON file, and
  * then provide various database-like methods that allow the `TodoController` to
  * "query" the "database".
+ * <p>
+ * The todos are split into one or more `TodoPartition`s by (a hash of) their
+ * owner, and each partition has its own indexes. A query is run against all
+ * the partitions it could possibly match in parallel ("scatter"), and their
+ * results are merged back together ("gather"). Since all of an owner's todos
+ * are in the same partition, a query for a single owner only ever touches one
+ * partition. With a single partition (the default) this is just a plain
+ * indexed "database".
+ * <p>
+ * The todo bodies can optionally be kept off the Java heap (see
+ * `TodoBodies`), which makes the heap much smaller for large numbers of
+ * todos. The todos that queries return then get new copies of their bodies
+ * each time.
  */
 public class TodoDatabase {
 
-  private Todo[] allTodos;
+  private final TodoPartition[] partitions;
+  private final int size;
+  private final boolean offHeapBodies;
+
+  // Used for filters that have to look at every (remaining) todo, and for
+  // running queries against the partitions in parallel
+  private final TodoScanner scanner;
 
+  // Writes these todos with just some of their fields, keeping the pieces
+  // of JSON for next time
+  private final FieldProjection<Todo> fieldProjection = TodoQuery.newFieldProjection();
+
+  /**
+   * Load the todos from the given JSON file, using a scanner with one thread
+   * per available processor for filters that can't use an index.
+   *
+   * @param todoDataFile the name of the JSON resource with the todos
+   * @throws IOException if the file can't be found or read
+   */
   public TodoDatabase(String todoDataFile) throws IOException {
+    this(todoDataFile, new TodoScanner(Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Load the todos from the given JSON file into a single partition.
+   *
+   * @param todoDataFile the name of the JSON resource with the todos
+   * @param scanner      the scanner to use for filters that can't use an index
+   * @throws IOException if the file can't be found or read
+   */
+  public TodoDatabase(String todoDataFile, TodoScanner scanner) throws IOException {
+    this(todoDataFile, scanner, 1);
+  }
+
+  /**
+   * Load the todos from the given JSON file, splitting them into the given
+   * number of partitions by owner.
+   *
+   * @param todoDataFile   the name of the JSON resource with the todos
+   * @param scanner        the scanner to use for filters that can't use an
+   *                       index and for querying partitions in parallel
+   * @param partitionCount the number of partitions to split the todos into
+   * @throws IOException if the file can't be found or read
+   */
+  public TodoDatabase(String todoDataFile, TodoScanner scanner, int partitionCount) throws IOException {
+    this(todoDataFile, scanner, partitionCount, false);
+  }
+
+  /**
+   * Load the todos from the given JSON file, splitting them into the given
+   * number of partitions by owner, and maybe keeping their bodies off the
+   * heap.
+   *
+   * @param todoDataFile   the name of the JSON resource with the todos
+   * @param scanner        the scanner to use for filters that can't use an
+   *                       index and for querying partitions in parallel
+   * @param partitionCount the number of partitions to split the todos into
+   * @param offHeapBodies  whether to keep the bodies off the heap
+   * @throws IOException if the file can't be found or read
+   */
+  public TodoDatabase(String todoDataFile, TodoScanner scanner, int partitionCount, boolean offHeapBodies)
+      throws IOException {
+    this(loadTodos(todoDataFile), scanner, partitionCount, offHeapBodies);
+  }
+
+  /**
+   * Make a database holding the given todos, splitting them into the given
+   * number of partitions by owner.
+   *
+   * @param todos          the todos
+   * @param scanner        the scanner to use for filters that can't use an
+   *                       index and for querying partitions in parallel
+   * @param partitionCount the number of partitions to split the todos into
+   */
+  public TodoDatabase(Todo[] todos, TodoScanner scanner, int partitionCount) {
+    this(todos, scanner, partitionCount, false);
+  }
+
+  /**
+   * Make a database holding the given todos, splitting them into the given
+   * number of partitions by owner, and maybe keeping their bodies off the
+   * heap.
+   *
+   * @param todos          the todos
+   * @param scanner        the scanner to use for filters that can't use an
+   *                       index and for querying partitions in parallel
+   * @param partitionCount the number of partitions to split the todos into
+   * @param offHeapBodies  whether to keep the bodies off the heap (which
+   *                       only happens for partitions whose bodies are all
+   *                       Latin-1)
+   */
+  public TodoDatabase(Todo[] todos, TodoScanner scanner, int partitionCount, boolean offHeapBodies) {
+    if (partitionCount < 1) {
+      throw new IllegalArgumentException("A todo database needs at least one partition");
+    }
+    this.scanner = scanner;
+    this.size = todos.length;
+    this.offHeapBodies = offHeapBodies;
+
+    // Work out which partition each todo goes in, and then hand each
+    // partition its todos (still in database order) and their positions
+    int[] partitionOf = new int[todos.length];
+    int[] partitionSizes = new int[partitionCount];
+    for (int i = 0; i < todos.length; i++) {
+      partitionOf[i] = partitionFor(todos[i].owner, partitionCount);
+      partitionSizes[partitionOf[i]]++;
+    }
+    partitions = new TodoPartition[partitionCount];
+    for (int p = 0; p < partitionCount; p++) {
+      Todo[] partitionTodos = new Todo[partitionSizes[p]];
+      int[] positions = new int[partitionSizes[p]];
+      int count = 0;
+      for (int i = 0; i < todos.length; i++) {
+        if (partitionOf[i] == p) {
+          partitionTodos[count] = todos[i];
+          positions[count] = i;
+          count++;
+        }
+      }
+      partitions[p] = new TodoPartition(partitionTodos, positions, scanner, offHeapBodies);
+    }
+  }
+
+  /**
+   * Read the todos from the given JSON file.
+   *
+   * @param todoDataFile the name of the JSON resource with the todos
+   * @return the todos in the file
+   * @throws IOException if the file can't be found or read
+   */
+  private static Todo[] loadTodos(String todoDataFile) throws IOException {
     // The `.getResourceAsStream` method searches for the given resource in
     // the classpath, and returns `null` if it isn't found. We want to throw
     // an IOException if the data file isn't found, so we need to check for
     // `null` ourselves, and throw an IOException if necessary.
-    InputStream resourceAsStream = getClass().getResourceAsStream(todoDataFile);
+    InputStream resourceAsStream = TodoDatabase.class.getResourceAsStream(todoDataFile);
     if (resourceAsStream == null) {
       throw new IOException("Could not find " + todoDataFile);
     }
@@ -38,11 +190,107 @@ public class TodoDatabase {
     // objects.
     ObjectMapper objectMapper = new ObjectMapper();
     // Read our todo data file into an array of todo objects.
-    allTodos = objectMapper.readValue(reader, Todo[].class);
+    return objectMapper.readValue(reader, Todo[].class);
+  }
+
+  /**
+   * The partition that todos with the given owner go in.
+   */
+  private static int partitionFor(String owner, int partitionCount) {
+    return owner == null ? 0 : Math.floorMod(owner.hashCode(), partitionCount);
   }
 
   public int size() {
-    return allTodos.length;
+    return size;
+  }
+
+  public int getPartitionCount() {
+    return partitions.length;
+  }
+
+  /**
+   * Make a new database with the given todos in place of these ones, split
+   * up into the same number of partitions, using the same scanner, and
+   * keeping their bodies in the same place.
+   *
+   * @param todos the new todos
+   * @return the new database
+   */
+  public TodoDatabase withTodos(Todo[] todos) {
+    return new TodoDatabase(todos, scanner, partitions.length, offHeapBodies);
+  }
+
+  /**
+   * Get the projection for writing these todos with just some of their
+   * fields (see `FieldProjection`).
+   */
+  public FieldProjection<Todo> getFieldProjection() {
+    return fieldProjection;
+  }
+
+  /**
+   * Whether the todos returned by this database are made fresh for each
+   * query (because some of their bodies are kept off the heap), rather than
+   * being the database's own todos.
+   */
+  public boolean isOffHeap() {
+    for (TodoPartition partition : partitions) {
+      if (partition.isOffHeap()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get all the todos, as the (unsorted, unfiltered) todos of each
+   * partition in turn, in chunks. This is for exporting every todo; the
+   * arrays mustn't be changed. Normally each chunk is a whole partition's
+   * own array of todos, without copying them; with off-heap bodies the
+   * chunks are smaller, and are made each time they're got from the list.
+   *
+   * @return chunks of all the todos, in database order for each partition
+   */
+  public List<Todo[]> getAllTodos() {
+    List<List<Todo[]>> partitionChunks = new ArrayList<>(partitions.length);
+    int chunkCount = 0;
+    for (TodoPartition partition : partitions) {
+      List<Todo[]> chunks = partition.getAllTodos();
+      partitionChunks.add(chunks);
+      chunkCount += chunks.size();
+    }
+    int totalChunks = chunkCount;
+    return new AbstractList<>() {
+      @Override
+      public Todo[] get(int index) {
+        int chunk = index;
+        for (List<Todo[]> chunks : partitionChunks) {
+          if (chunk < chunks.size()) {
+            return chunks.get(chunk);
+          }
+          chunk -= chunks.size();
+        }
+        throw new IndexOutOfBoundsException(index);
+      }
+
+      @Override
+      public int size() {
+        return totalChunks;
+      }
+    };
+  }
+
+  /**
+   * Get the names of all the owners of todos.
+   *
+   * @return the (sorted) set of all the owners
+   */
+  public Set<String> getOwners() {
+    Set<String> owners = new TreeSet<>();
+    for (TodoPartition partition : partitions) {
+      owners.addAll(partition.getOwners());
+    }
+    return owners;
   }
 
   /**
@@ -53,7 +301,13 @@ public class TodoDatabase {
    * @return the todo with the given ID, or null if there is no todo with that ID
    */
   public Todo getTodo(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    for (TodoPartition partition : partitions) {
+      Todo todo = partition.getTodo(id);
+      if (todo != null) {
+        return todo;
+      }
+    }
+    return null;
   }
 
   /**
@@ -63,78 +317,268 @@ public class TodoDatabase {
    * @return an array of all the todos matching the given criteria
    */
   public Todo[] getTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = this.allTodos;
-
-    // contains filter
-    if (queryParams.containsKey("contains")) {
-      String containsParam = queryParams.get("contains").get(0);
-      filteredTodos = Arrays.stream(filteredTodos)
-          .filter(t -> t.body.contains(containsParam))
-          .toArray(Todo[]::new);
-    }
-
-    // Filter owner if defined
-    if (queryParams.containsKey("owner")) {
-      String targetOwner = queryParams.get("owner").get(0);
-      filteredTodos = filterTodosByOwner(filteredTodos, targetOwner);
-    }
-
-    // Filter status if defined
-    if (queryParams.containsKey("status")) { // if the query contains status
-      String statusParam = queryParams.get("status").get(0); // get the status
-      boolean targetStatus = "complete".equalsIgnoreCase(statusParam); // parse the status to a boolean
-      filteredTodos = Arrays.stream(filteredTodos) // filter the todos by the status
-          .filter(todo -> todo.status == targetStatus) // if the status is the same as the target status
-          .toArray(Todo[]::new); // return the filtered todos
-    }
-
-    // Filter category if defined
-    if (queryParams.containsKey("category")) {
-      String targetCategory = queryParams.get("category").get(0);
-      filteredTodos = filterTodosByCategory(filteredTodos, targetCategory);
-    }
-
-    // Sorts the todos by the given parameter (orderBy, body, status, category,
-    // owner)
-    if (queryParams.containsKey("orderBy")) {
-      String orderBy = queryParams.get("orderBy").get(0);
-      Comparator<Todo> comparator = null;
-      // Switch statement to determine which comparator to use
-      switch (orderBy) {
-        case "body":
-          comparator = Comparator.comparing(todo -> todo.body);
-          break;
-        case "status":
-          comparator = Comparator.comparing(todo -> Boolean.toString(todo.status));
-          break;
-        case "category":
-          comparator = Comparator.comparing(todo -> todo.category);
-          break;
-        case "owner":
-          comparator = Comparator.comparing(todo -> todo.owner);
-          break;
-        default:
-          // Do nothing
-          break;
+    return getTodos(queryParams, null);
+  }
+
+  /**
+   * Get an array of all the todos satisfying the queries in the params
+   * whose owner is one of the given owners.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param owners      the owners to restrict the todos to, or `null` for
+   *                    any owner
+   * @return an array of all the todos matching the given criteria
+   */
+  public Todo[] getTodos(Map<String, List<String>> queryParams, Collection<String> owners) {
+    return getTodos(TodoQuery.parse(queryParams), owners);
+  }
+
+  /**
+   * Get an array of all the todos satisfying the query whose owner is one
+   * of the given owners.
+   * <p>
+   * Each partition that might have matches filters, sorts, and limits its
+   * own todos, and then we do a k-way merge of those (already sorted)
+   * results, stopping as soon as we have `limit` todos.
+   *
+   * @param query  the (parsed) query
+   * @param owners the owners to restrict the todos to, or `null` for any
+   *               owner
+   * @return an array of all the todos matching the given criteria
+   */
+  public Todo[] getTodos(TodoQuery query, Collection<String> owners) {
+    return getTodos(query, owners, null);
+  }
+
+  /**
+   * Get an array of all the todos satisfying the query whose owner is one
+   * of the given owners, adding how long each step took to the timings.
+   *
+   * @param query   the (parsed) query
+   * @param owners  the owners to restrict the todos to, or `null` for any
+   *                owner
+   * @param timings where to add how long filtering, sorting, and merging
+   *                took, or `null` if we aren't timing them
+   * @return an array of all the todos matching the given criteria
+   */
+  public Todo[] getTodos(TodoQuery query, Collection<String> owners, ServerTiming.Timings timings) {
+    return getTodoSlice(query, owners, timings).todos;
+  }
+
+  /**
+   * Get all the todos satisfying the query whose owner is one of the given
+   * owners, along with their positions in the database, so they can be
+   * merged with the results of the same query from other instances in a
+   * cluster (see `mergeSlices`).
+   *
+   * @param query  the (parsed) query
+   * @param owners the owners to restrict the todos to, or `null` for any
+   *               owner
+   * @return the todos matching the given criteria, and their positions
+   */
+  public TodoSlice getTodoSlice(TodoQuery query, Collection<String> owners) {
+    return getTodoSlice(query, owners, null);
+  }
+
+  /**
+   * Get all the todos satisfying the query whose owner is one of the given
+   * owners, along with their positions in the database, as in
+   * `getTodoSlice(TodoQuery, Collection)`, adding how long each step took
+   * to the timings.
+   *
+   * @param query   the (parsed) query
+   * @param owners  the owners to restrict the todos to, or `null` for any
+   *                owner
+   * @param timings where to add how long filtering, sorting, and merging
+   *                took, or `null` if we aren't timing them
+   * @return the todos matching the given criteria, and their positions
+   */
+  public TodoSlice getTodoSlice(TodoQuery query, Collection<String> owners, ServerTiming.Timings timings) {
+    List<TodoPartition> targets = partitionsFor(query, owners);
+    if (targets.size() == 1) {
+      // Nothing to run in parallel or merge (e.g., a query for one owner),
+      // so go straight to the partition
+      return targets.get(0).getTodos(query, owners, timings);
+    }
+    List<Supplier<TodoSlice>> queries = new ArrayList<>();
+    for (TodoPartition partition : targets) {
+      queries.add(() -> partition.getTodos(query, owners, timings));
+    }
+    List<TodoSlice> results = scanner.runAll(queries);
+    long start = ServerTiming.start(timings);
+    TodoSlice merged = merge(results, query.getComparator(), query.getLimit());
+    if (timings != null) {
+      timings.add("merge", start, merged.todos.length);
+    }
+    return merged;
+  }
+
+  /**
+   * Merge the results of the same query from several places (e.g., each
+   * instance in a cluster) into the todos that query would have gotten from
+   * one database holding all the todos.
+   *
+   * @param query  the (parsed) query
+   * @param slices the results of running the query in each place
+   * @return an array of all the todos matching the given criteria
+   */
+  public static Todo[] mergeSlices(TodoQuery query, List<TodoSlice> slices) {
+    return merge(slices, query.getComparator(), query.getLimit()).todos;
+  }
+
+  /**
+   * The partitions that could have todos matching the query. If the query is
+   * for particular owners, only their partitions can; otherwise any might.
+   */
+  private List<TodoPartition> partitionsFor(TodoQuery query, Collection<String> owners) {
+    if (partitions.length == 1) {
+      return List.of(partitions[0]);
+    }
+    if (query.getOwner() != null) {
+      // Any `owners` restriction is applied within the partition
+      return List.of(partitions[partitionFor(query.getOwner(), partitions.length)]);
+    }
+    Set<Integer> indexes = new HashSet<>();
+    if (owners != null) {
+      for (String owner : owners) {
+        indexes.add(partitionFor(owner, partitions.length));
       }
-      if (comparator != null) {
-        Arrays.sort(filteredTodos, comparator);
+    } else {
+      return Arrays.asList(partitions);
+    }
+    List<TodoPartition> targets = new ArrayList<>();
+    for (int p = 0; p < partitions.length; p++) {
+      if (indexes.contains(p)) {
+        targets.add(partitions[p]);
       }
     }
+    return targets;
+  }
 
-    // Filter limit if defined
-    if (queryParams.containsKey("limit")) {
-      String limitParam = queryParams.get("limit").get(0);
-      try {
-        int limit = Integer.parseInt(limitParam);
-        filteredTodos = Arrays.stream(filteredTodos)
-            .limit(limit)
-            .toArray(Todo[]::new);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
+  /**
+   * How many partitions a query would touch.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the number of partitions the query would be run against
+   */
+  int partitionCountFor(Map<String, List<String>> queryParams) {
+    return partitionsFor(TodoQuery.parse(queryParams), null).size();
+  }
+
+  /**
+   * Merge the (sorted) results from each partition into one slice, in the
+   * order given by the comparator (with ties, or everything if there's no
+   * comparator, in database order), stopping after `limit` todos.
+   */
+  private static TodoSlice merge(List<TodoSlice> results, Comparator<Todo> comparator, int limit) {
+    if (results.size() == 1) {
+      return results.get(0);
+    }
+    int total = 0;
+    for (TodoSlice result : results) {
+      total += result.todos.length;
+    }
+    Todo[] merged = new Todo[Math.min(total, limit)];
+    int[] mergedPositions = new int[merged.length];
+
+    // A heap of cursors, one per partition, ordered by the todo each is
+    // pointing at. Each step takes the smallest and moves that cursor along.
+    Comparator<int[]> cursorOrder = Comparator.comparingInt(cursor -> results.get(cursor[0]).positions[cursor[1]]);
+    if (comparator != null) {
+      cursorOrder = Comparator.<int[], Todo>comparing(cursor -> results.get(cursor[0]).todos[cursor[1]], comparator)
+          .thenComparing(cursorOrder);
+    }
+    PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, results.size()), cursorOrder);
+    for (int r = 0; r < results.size(); r++) {
+      if (results.get(r).todos.length > 0) {
+        heap.add(new int[] {r, 0});
+      }
+    }
+    for (int count = 0; count < merged.length; count++) {
+      int[] cursor = heap.poll();
+      TodoSlice result = results.get(cursor[0]);
+      merged[count] = result.todos[cursor[1]];
+      mergedPositions[count] = result.positions[cursor[1]];
+      cursor[1]++;
+      if (cursor[1] < result.todos.length) {
+        heap.add(cursor);
+      }
+    }
+    return new TodoSlice(merged, mergedPositions);
+  }
+
+  /**
+   * Count the todos satisfying the filters in the params, grouped by any
+   * combination of owner, category, and status.
+   * <p>
+   * The fields to group by are given by the `groupBy` parameter, either
+   * repeated (`groupBy=owner&groupBy=status`) or comma separated
+   * (`groupBy=owner,status`). The counts are computed by intersecting the
+   * bitmap indexes, so no todos are ever copied out of the "database".
+   * Groups with no todos in them are left out. If there is no `groupBy`
+   * we return a single group with the total count.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return an array of the counts for each (non-empty) group
+   */
+  public TodoGroupCount[] getTodoStats(Map<String, List<String>> queryParams) {
+    return getTodoStats(queryParams, null);
+  }
+
+  /**
+   * Count the todos satisfying the filters in the params whose owner is one
+   * of the given owners, grouped as in `getTodoStats(Map)`.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param owners      the owners to restrict the todos to, or `null` for
+   *                    any owner
+   * @return an array of the counts for each (non-empty) group
+   */
+  public TodoGroupCount[] getTodoStats(Map<String, List<String>> queryParams, Collection<String> owners) {
+    return getTodoStats(TodoQuery.parse(queryParams), owners);
+  }
+
+  /**
+   * Count the todos satisfying the query whose owner is one of the given
+   * owners, grouped by the query's `groupBy` fields as in
+   * `getTodoStats(Map)`.
+   *
+   * @param query  the (parsed) query
+   * @param owners the owners to restrict the todos to, or `null` for any
+   *               owner
+   * @return an array of the counts for each (non-empty) group
+   */
+  public TodoGroupCount[] getTodoStats(TodoQuery query, Collection<String> owners) {
+    List<Supplier<List<TodoGroupCount>>> queries = new ArrayList<>();
+    for (TodoPartition partition : partitionsFor(query, owners)) {
+      queries.add(() -> partition.getTodoStats(query, owners));
+    }
+
+    // Add up the counts for each group across the partitions
+    Map<List<Object>, TodoGroupCount> totals = new LinkedHashMap<>();
+    for (List<TodoGroupCount> partitionGroups : scanner.runAll(queries)) {
+      for (TodoGroupCount group : partitionGroups) {
+        List<Object> key = Arrays.asList(group.owner, group.category, group.status);
+        TodoGroupCount total = totals.putIfAbsent(key, group);
+        if (total != null) {
+          total.count += group.count;
+        }
       }
     }
-    return filteredTodos;
+    if (query.getGroupBy().isEmpty() && totals.isEmpty()) {
+      // Without a `groupBy` there's always exactly one group, even if
+      // nothing matched
+      totals.put(Collections.emptyList(), new TodoGroupCount());
+    }
+
+    // Sort by owner, then category, then status (complete first), so the
+    // groups come out in the same order however the todos are partitioned
+    TodoGroupCount[] groups = totals.values().toArray(TodoGroupCount[]::new);
+    Arrays.sort(groups, Comparator
+        .comparing((TodoGroupCount group) -> group.owner, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+        .thenComparing(group -> group.category, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+        .thenComparing(group -> group.status, Comparator.nullsFirst(Comparator.<Boolean>reverseOrder())));
+    return groups;
   }
 
   /**
@@ -145,16 +589,41 @@ public class TodoDatabase {
    * @return an array of all the todos from the given list that have the target
    *         Owner
    */
-  // Filter owner method
+  // Filter owner method. This (and the category one below) counts the
+  // matches first, so the array it returns is the only thing it allocates.
   public Todo[] filterTodosByOwner(Todo[] todos, String targetOwner) {
-    return Arrays.stream(todos).filter(x -> x.owner.equals(targetOwner)).toArray(Todo[]::new);
+    int count = 0;
+    for (Todo todo : todos) {
+      if (todo.owner.equals(targetOwner)) {
+        count++;
+      }
+    }
+    Todo[] filtered = new Todo[count];
+    count = 0;
+    for (Todo todo : todos) {
+      if (todo.owner.equals(targetOwner)) {
+        filtered[count++] = todo;
+      }
+    }
+    return filtered;
   }
 
   // Filter category method
   public Todo[] filterTodosByCategory(Todo[] todos, String targetCategory) {
-    return Arrays.stream(todos)
-        .filter(todo -> todo.category.equals(targetCategory))
-        .toArray(Todo[]::new);
+    int count = 0;
+    for (Todo todo : todos) {
+      if (todo.category.equals(targetCategory)) {
+        count++;
+      }
+    }
+    Todo[] filtered = new Todo[count];
+    count = 0;
+    for (Todo todo : todos) {
+      if (todo.category.equals(targetCategory)) {
+        filtered[count++] = todo;
+      }
+    }
+    return filtered;
   }
 
 }
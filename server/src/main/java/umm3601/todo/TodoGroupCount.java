@@ -0,0 +1,18 @@
+package umm3601.todo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// Like `Todo`, this class is serialized by Jackson, so its fields
+// need to be public and we suppress the Visibility Modifier check
+// in CheckStyle.
+//
+// Only the fields that the request grouped by are filled in; the
+// rest are left `null` and are left out of the JSON entirely.
+@SuppressWarnings({"VisibilityModifier"})
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TodoGroupCount {
+  public String owner;
+  public String category;
+  public Boolean status;
+  public int count;
+}
@@ -0,0 +1,524 @@
+package umm3601.todo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.ServerTiming;
+import umm3601.store.BitmapIndex;
+import umm3601.store.HashIndex;
+import umm3601.store.IndexDefinition;
+import umm3601.store.IndexedStore;
+import umm3601.store.Schema;
+import umm3601.store.Scratch;
+import umm3601.store.SortedIndex;
+
+/**
+ * One partition of the todos in a `TodoDatabase`, along with its own indexes.
+ * <p>
+ * For every owner and category (and for each status) we keep a "bitmap
+ * index": a `BitSet` with bit `i` set if `todos[i]` has that value. Filtering
+ * on those fields is then just a matter of and-ing bitmaps together. For
+ * counting the todos in groups we also keep each todo's owner and category
+ * as a position in the sorted values, so the matches can be counted in one
+ * pass. We also keep a sorted index on each field that can be used for
+ * `orderBy`, so sorting the matches is just sorting their ranks. The
+ * indexes are declared in `SCHEMA` and built by an `IndexedStore`.
+ * <p>
+ * The bodies are also laid out as contiguous bytes (see `TodoBodies`) for
+ * a faster `contains`. With `offHeapBodies` those bytes are kept off the
+ * heap, and the partition's own todos don't keep their bodies at all: a
+ * body is only turned back into a `String` when its todo is returned.
+ * <p>
+ * Each todo also remembers its position in the whole database, so that the
+ * results from several partitions can be merged back into the same order
+ * they'd have had if there was just one partition.
+ */
+class TodoPartition {
+
+  // The most characters a `match` may read from any one field before we
+  // decide it's backtracking out of control
+  static final int MATCH_STEP_BUDGET = 1_000_000;
+
+  private static final Schema<Todo> SCHEMA = new Schema<>();
+  private static final IndexDefinition<Todo, HashIndex<String>> ID = SCHEMA.hash("_id", todo -> todo._id);
+  private static final IndexDefinition<Todo, BitmapIndex<String>> OWNER = SCHEMA.bitmap("owner", todo -> todo.owner);
+  private static final IndexDefinition<Todo, BitmapIndex<String>> CATEGORY =
+      SCHEMA.bitmap("category", todo -> todo.category);
+  private static final IndexDefinition<Todo, BitmapIndex<Boolean>> STATUS =
+      SCHEMA.bitmap("status", todo -> todo.status);
+  // The indexes for sorting on each field we can `orderBy`, keyed by its
+  // name. These don't keep the values they sort on, so the sorted bodies
+  // aren't kept on the heap.
+  private static final Map<String, IndexDefinition<Todo, ? extends SortedIndex<?>>> ORDER_BY = Map.of(
+      "body", SCHEMA.ordering("sorted body", todo -> todo.body),
+      "status", SCHEMA.ordering("sorted status", todo -> todo.status),
+      "category", SCHEMA.ordering("sorted category", todo -> todo.category),
+      "owner", SCHEMA.ordering("sorted owner", todo -> todo.owner));
+
+  // How many todos to turn back into whole todos at a time when getting
+  // all of them with off-heap bodies
+  static final int CHUNK_SIZE = 1024;
+
+  private final IndexedStore<Todo> store;
+  private final Todo[] todos;
+  // `positions[i]` is the position of `todos[i]` in the whole database
+  private final int[] positions;
+
+  // Used for filters that have to look at every (remaining) todo
+  private final TodoScanner scanner;
+
+  // The indexes we use most, taken out of the store once here
+  private final BitmapIndex<String> ownerIndex;
+  private final BitmapIndex<String> categoryIndex;
+  private final BitmapIndex<Boolean> statusIndex;
+  // Each owner and category, in order, and the position of each todo's
+  // owner and category in them (or -1 if it hasn't got one), for counting
+  // todos in groups
+  private final String[] ownerKeys;
+  private final int[] ownerOrdinals;
+  private final String[] categoryKeys;
+  private final int[] categoryOrdinals;
+
+  // The todo bodies as contiguous Latin-1 bytes, for a faster `contains`
+  // (or `null` if some body isn't Latin-1), and whether those are the only
+  // copy of the bodies (in which case `todos` don't have theirs)
+  private final TodoBodies bodies;
+  private final boolean bodiesOffHeap;
+
+  // Lowercased ("folded") copies of the bodies, owners, and categories for
+  // `containsIgnoreCase`, made once here so searches don't have to lowercase
+  // anything but the needle. The bodies are kept as contiguous bytes when
+  // possible, just like `bodies`, and only as `String`s when they can't be.
+  // The owner and category indexes only need to lowercase each distinct
+  // owner and category.
+  private final String[] foldedBodies;
+  private final TodoBodies foldedBodyBytes;
+  private final BitmapIndex<String> foldedOwnerIndex;
+  private final BitmapIndex<String> foldedCategoryIndex;
+
+  /**
+   * Make a partition holding the given todos, and build its indexes.
+   *
+   * @param todos     the todos in this partition, in database order
+   * @param positions the position of each of those todos in the database
+   * @param scanner   the scanner to use for filters that can't use an index
+   * @param offHeap   whether to keep the bodies off the heap (if they're
+   *                  all Latin-1)
+   */
+  TodoPartition(Todo[] todos, int[] positions, TodoScanner scanner, boolean offHeap) {
+    IndexedStore<Todo> indexed = new IndexedStore<>(SCHEMA, todos);
+    this.positions = positions;
+    this.scanner = scanner;
+
+    ownerIndex = indexed.index(OWNER);
+    categoryIndex = indexed.index(CATEGORY);
+    statusIndex = indexed.index(STATUS);
+    ownerKeys = ownerIndex.keys().toArray(new String[0]);
+    ownerOrdinals = ownerIndex.ordinals();
+    categoryKeys = categoryIndex.keys().toArray(new String[0]);
+    categoryOrdinals = categoryIndex.ordinals();
+
+    String[] bodyTexts = new String[todos.length];
+    String[] foldedTexts = new String[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      bodyTexts[i] = todos[i].body;
+      foldedTexts[i] = todos[i].body.toLowerCase(Locale.ROOT);
+    }
+    bodies = offHeap ? TodoBodies.offHeap(bodyTexts) : TodoBodies.of(bodyTexts);
+    foldedBodyBytes = offHeap ? TodoBodies.offHeap(foldedTexts) : TodoBodies.of(foldedTexts);
+    foldedBodies = foldedBodyBytes == null ? foldedTexts : null;
+
+    // With the bodies safely off the heap, keep copies of the todos without
+    // them, so the originals (and their bodies) can be garbage collected
+    bodiesOffHeap = bodies != null && bodies.isOffHeap();
+    if (bodiesOffHeap) {
+      Todo[] compactTodos = new Todo[todos.length];
+      for (int i = 0; i < todos.length; i++) {
+        compactTodos[i] = copyOf(todos[i], null);
+      }
+      this.todos = compactTodos;
+      this.store = indexed.withRecords(compactTodos);
+    } else {
+      this.todos = todos;
+      this.store = indexed;
+    }
+
+    foldedOwnerIndex = ownerIndex.mapKeys(owner -> owner.toLowerCase(Locale.ROOT));
+    foldedCategoryIndex = categoryIndex.mapKeys(category -> category.toLowerCase(Locale.ROOT));
+  }
+
+  private static Todo copyOf(Todo todo, String body) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  int size() {
+    return todos.length;
+  }
+
+  /**
+   * Whether the bodies are only kept off the heap.
+   */
+  boolean isOffHeap() {
+    return bodiesOffHeap;
+  }
+
+  /**
+   * Get the todo at position `i` in this partition, with its body. With
+   * off-heap bodies this is a new todo each time.
+   */
+  private Todo todoAt(int i) {
+    return bodiesOffHeap ? copyOf(todos[i], bodies.get(i)) : todos[i];
+  }
+
+  /**
+   * Get the body of the todo at position `i`, without copying it onto the
+   * heap if it's off-heap.
+   */
+  private CharSequence bodyAt(int i) {
+    return bodiesOffHeap ? bodies.text(i) : todos[i].body;
+  }
+
+  /**
+   * Get all the todos in this partition, in database order, in one or
+   * more chunks. Normally this is just the partition's own array, which
+   * mustn't be changed. With off-heap bodies the todos are made (with
+   * their bodies) a chunk at a time, as each chunk is got from the list,
+   * so there are never more than a chunk's worth of bodies on the heap.
+   */
+  List<Todo[]> getAllTodos() {
+    if (!bodiesOffHeap) {
+      return Collections.singletonList(todos);
+    }
+    return new AbstractList<>() {
+      @Override
+      public Todo[] get(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        if (chunk < 0 || from >= todos.length) {
+          throw new IndexOutOfBoundsException(chunk);
+        }
+        Todo[] chunkTodos = new Todo[Math.min(CHUNK_SIZE, todos.length - from)];
+        for (int i = 0; i < chunkTodos.length; i++) {
+          chunkTodos[i] = todoAt(from + i);
+        }
+        return chunkTodos;
+      }
+
+      @Override
+      public int size() {
+        return (todos.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      }
+    };
+  }
+
+  /**
+   * Get the owners of the todos in this partition.
+   */
+  Set<String> getOwners() {
+    return ownerIndex.keys();
+  }
+
+  /**
+   * Get the todo in this partition with the given ID, or `null` if there
+   * isn't one.
+   */
+  Todo getTodo(String id) {
+    int position = store.index(ID).get(id);
+    return position < 0 ? null : todoAt(position);
+  }
+
+  /**
+   * Get the todos in this partition satisfying the query's filters,
+   * sorted and limited.
+   * <p>
+   * Since the final result only has (at most) `limit` todos in it, no one
+   * partition ever needs to return more than that many.
+   *
+   * @param query   the query
+   * @param owners  the owners to restrict the todos to, or `null` for any
+   *                owner
+   * @param timings where to add how long filtering and sorting took, or
+   *                `null` if we aren't timing them
+   * @return the matching todos, with their database positions
+   */
+  TodoSlice getTodos(TodoQuery query, Collection<String> owners, ServerTiming.Timings timings) {
+    BitSet scratch = Scratch.borrowBits();
+    try {
+      long start = ServerTiming.start(timings);
+      BitSet matches = filterTodos(query, owners, scratch);
+      if (timings != null) {
+        timings.add("filter", start, matches.cardinality());
+        start = System.nanoTime();
+      }
+      int limit = query.getLimit();
+
+      Todo[] resultTodos;
+      int[] resultPositions;
+      if (query.getOrderBy() != null) {
+        // Get the positions (in this partition) of the matches, sorted, with
+        // todos that have the same value staying in database order
+        int[] order = store.index(ORDER_BY.get(query.getOrderBy())).sort(matches, limit);
+        resultTodos = new Todo[order.length];
+        resultPositions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+          resultTodos[i] = todoAt(order[i]);
+          resultPositions[i] = positions[order[i]];
+        }
+      } else {
+        // Otherwise the matches are already in database order, so we can
+        // copy them straight out of the bitmap
+        resultTodos = new Todo[Math.min(matches.cardinality(), limit)];
+        resultPositions = new int[resultTodos.length];
+        int count = 0;
+        for (int i = matches.nextSetBit(0); i >= 0 && count < resultTodos.length; i = matches.nextSetBit(i + 1)) {
+          resultTodos[count] = todoAt(i);
+          resultPositions[count] = positions[i];
+          count++;
+        }
+      }
+      if (timings != null) {
+        timings.add(query.getOrderBy() != null ? "sort" : "select", start, resultTodos.length);
+      }
+      return new TodoSlice(resultTodos, resultPositions);
+    } finally {
+      Scratch.release(scratch);
+    }
+  }
+
+  /**
+   * Count the todos in this partition satisfying the query's filters,
+   * grouped by the query's `groupBy` fields. Groups with no todos in them
+   * are left out.
+   *
+   * @param query  the query
+   * @param owners the owners to restrict the todos to, or `null` for any
+   *               owner
+   * @return the counts for each (non-empty) group
+   */
+  List<TodoGroupCount> getTodoStats(TodoQuery query, Collection<String> owners) {
+    BitSet scratch = Scratch.borrowBits();
+    try {
+      return countGroups(query, filterTodos(query, owners, scratch));
+    } finally {
+      Scratch.release(scratch);
+    }
+  }
+
+  /**
+   * Count the matching todos in each of the query's groups, in one pass
+   * over the matches: each todo's group is worked out from its owner's and
+   * category's ordinals, so we never look at a group with nothing in it,
+   * or touch the index's bitmaps at all.
+   */
+  private List<TodoGroupCount> countGroups(TodoQuery query, BitSet matches) {
+    Set<String> groupBy = query.getGroupBy();
+    boolean byOwner = groupBy.contains("owner");
+    boolean byCategory = groupBy.contains("category");
+    boolean byStatus = groupBy.contains("status");
+    int owners = byOwner ? ownerKeys.length : 1;
+    int categories = byCategory ? categoryKeys.length : 1;
+    int statuses = byStatus ? 2 : 1;
+
+    // Each group's number is its place in (owner, category, status) order,
+    // with `true` before `false`. When there are more possible groups than
+    // todos (so most would be empty) they're counted in a map instead.
+    long groupsPossible = (long) owners * categories * statuses;
+    int[] denseCounts = groupsPossible <= todos.length ? new int[(int) groupsPossible] : null;
+    Map<Long, int[]> sparseCounts = denseCounts == null ? new TreeMap<>() : null;
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      int owner = byOwner ? ownerOrdinals[i] : 0;
+      int category = byCategory ? categoryOrdinals[i] : 0;
+      if (owner < 0 || category < 0) {
+        // Todos without an owner (or category) aren't in any of its groups
+        continue;
+      }
+      int status = byStatus && !todos[i].status ? 1 : 0;
+      long group = ((long) owner * categories + category) * statuses + status;
+      if (denseCounts != null) {
+        denseCounts[(int) group]++;
+      } else {
+        sparseCounts.computeIfAbsent(group, g -> new int[1])[0]++;
+      }
+    }
+
+    List<TodoGroupCount> groups = new ArrayList<>();
+    if (denseCounts != null) {
+      for (int group = 0; group < denseCounts.length; group++) {
+        if (denseCounts[group] > 0) {
+          groups.add(groupCount(group, denseCounts[group], groupBy, categories, statuses));
+        }
+      }
+    } else {
+      for (Map.Entry<Long, int[]> entry : sparseCounts.entrySet()) {
+        groups.add(groupCount(entry.getKey(), entry.getValue()[0], groupBy, categories, statuses));
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Make the count for one group, given its number from `countGroups`.
+   */
+  private TodoGroupCount groupCount(long group, int count, Set<String> groupBy, int categories, int statuses) {
+    TodoGroupCount groupCount = new TodoGroupCount();
+    if (groupBy.contains("owner")) {
+      groupCount.owner = ownerKeys[(int) (group / statuses / categories)];
+    }
+    if (groupBy.contains("category")) {
+      groupCount.category = categoryKeys[(int) (group / statuses % categories)];
+    }
+    if (groupBy.contains("status")) {
+      groupCount.status = group % statuses == 0;
+    }
+    groupCount.count = count;
+    return groupCount;
+  }
+
+  /**
+   * Compute the bitmap of todos that satisfy the query's filters (`owner`,
+   * `status`, `category`, `contains`, `containsIgnoreCase`, and `match`).
+   * <p>
+   * The indexed filters are applied first since they are just bitmap
+   * operations; `contains` has to actually look at the body of each todo,
+   * so we only check the todos that are still left after that.
+   * <p>
+   * `containsIgnoreCase` and `match` (a regular expression) keep the todos
+   * whose body, owner, or category matches. Owners and categories are
+   * checked once per distinct value using the indexes, and only the bodies
+   * of the todos that didn't already match on one of those are searched.
+   * <p>
+   * The indexed filters are worked out in a bitmap the caller lends us
+   * (normally a reused `Scratch` one), so a query on just the indexed
+   * fields doesn't allocate a new bitmap the size of the partition.
+   *
+   * @param query   the query
+   * @param owners  the owners to restrict the todos to, or `null` for any
+   *                owner
+   * @param scratch an empty bitmap to work in
+   * @return a bitmap with bit `i` set if `todos[i]` matches; this is either
+   *         `scratch` or a new bitmap
+   */
+  private BitSet filterTodos(TodoQuery query, Collection<String> owners, BitSet scratch) {
+    BitSet matches = scratch;
+    matches.set(0, todos.length);
+
+    // Restrict to the given owners if there are any; this is the union
+    // of those owners' bitmaps
+    if (owners != null) {
+      matches.and(ownerIndex.union(owners));
+    }
+
+    // Filter owner if defined
+    if (query.getOwner() != null) {
+      matches.and(ownerIndex.get(query.getOwner()));
+    }
+
+    // Filter status if defined
+    if (query.getStatus() != null) {
+      matches.and(statusIndex.get(query.getStatus()));
+    }
+
+    // Filter category if defined
+    if (query.getCategory() != null) {
+      matches.and(categoryIndex.get(query.getCategory()));
+    }
+
+    // contains filter. This can't use an index, so we hand it to the
+    // scanner, which will split it up across threads if there are a lot
+    // of todos left to check.
+    if (query.getContains() != null) {
+      String needle = query.getContains();
+      byte[] needleBytes = query.getContainsBytes();
+      if (bodies == null) {
+        matches = scanner.filter(matches, i -> todos[i].body.contains(needle));
+      } else if (needleBytes == null) {
+        // A needle that isn't Latin-1 can't be in bodies that are
+        matches = new BitSet();
+      } else {
+        // Search the contiguous body bytes, a whole run of todos at a time
+        matches = scanner.filterRanges(matches, (candidates, from, to) ->
+            bodies.contains(candidates, from, to, needleBytes, true));
+      }
+    }
+
+    // Case-insensitive contains, over body, owner, and category
+    if (query.getContainsIgnoreCase() != null) {
+      String needle = query.getContainsIgnoreCase();
+      byte[] needleBytes = query.getContainsIgnoreCaseBytes();
+      UnaryOperator<BitSet> bodyFilter;
+      if (foldedBodyBytes == null) {
+        bodyFilter = candidates -> scanner.filter(candidates, i -> foldedBodies[i].contains(needle));
+      } else if (needleBytes == null) {
+        bodyFilter = candidates -> new BitSet();
+      } else {
+        bodyFilter = candidates -> scanner.filterRanges(candidates, (rangeCandidates, from, to) ->
+            foldedBodyBytes.contains(rangeCandidates, from, to, needleBytes, true));
+      }
+      matches = filterAnyField(matches, foldedOwnerIndex, foldedCategoryIndex, key -> key.contains(needle), bodyFilter);
+    }
+
+    // Regular expression match, over body, owner, and category
+    if (query.getMatch() != null) {
+      Pattern pattern = query.getMatch();
+      try {
+        matches = filterAnyField(matches, ownerIndex, categoryIndex,
+            key -> BudgetedCharSequence.find(pattern, key, MATCH_STEP_BUDGET),
+            candidates -> scanner.filter(candidates,
+                i -> BudgetedCharSequence.find(pattern, bodyAt(i), MATCH_STEP_BUDGET)));
+      } catch (BudgetedCharSequence.BudgetExceededException e) {
+        throw new BadRequestResponse("Specified match '" + query.getMatchRegex() + "' took too long to evaluate");
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Keep the todos whose owner, category, or body passes a test.
+   *
+   * @param matches    the todos to consider (this isn't modified)
+   * @param owners     the index of owners to test
+   * @param categories the index of categories to test
+   * @param keyTest    the test for owners and categories
+   * @param bodyFilter given some candidates, returns those whose body passes
+   * @return the todos in `matches` that pass the test on some field
+   */
+  private BitSet filterAnyField(BitSet matches, BitmapIndex<String> owners, BitmapIndex<String> categories,
+      Predicate<String> keyTest, UnaryOperator<BitSet> bodyFilter) {
+    BitSet fieldMatches = new BitSet(todos.length);
+    for (Map.Entry<String, BitSet> owner : owners.asMap().entrySet()) {
+      if (keyTest.test(owner.getKey())) {
+        fieldMatches.or(owner.getValue());
+      }
+    }
+    for (Map.Entry<String, BitSet> category : categories.asMap().entrySet()) {
+      if (keyTest.test(category.getKey())) {
+        fieldMatches.or(category.getValue());
+      }
+    }
+    fieldMatches.and(matches);
+
+    // Only search the bodies of the todos that haven't already matched
+    BitSet bodyCandidates = (BitSet) matches.clone();
+    bodyCandidates.andNot(fieldMatches);
+    BitSet bodyMatches = bodyFilter.apply(bodyCandidates);
+    bodyMatches.or(fieldMatches);
+    return bodyMatches;
+  }
+}
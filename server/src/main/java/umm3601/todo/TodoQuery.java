@@ -0,0 +1,310 @@
+package umm3601.todo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import io.javalin.http.BadRequestResponse;
+
+import umm3601.FieldProjection;
+
+/**
+ * A query for todos, parsed and checked once from the request's query
+ * parameters.
+ * <p>
+ * Everything that doesn't depend on the todos themselves is worked out
+ * here, ahead of time: numbers are parsed, the comparator for `orderBy`
+ * is picked, the `match` regular expression is compiled, and the
+ * `contains` needles are encoded into the bytes the body search uses.
+ * A query can't be changed once it's made, so the same `TodoQuery` can be
+ * cached (see `QueryCache`) and used by any number of requests at once.
+ */
+public final class TodoQuery {
+
+  // The fields that can be used with `groupBy`
+  private static final Set<String> GROUP_BY_FIELDS = Set.of("owner", "category", "status");
+
+  // The fields that can be picked with `fields`, in the order `Todo` and
+  // `ExpandedTodo` have them. `ownerUser` is only there with `expand=owner`.
+  // This one is just for parsing `fields`; the todos are written by their
+  // database's own projection (see `newFieldProjection`).
+  private static final FieldProjection<Todo> TODO_FIELDS = new FieldProjection<>(todoFields());
+
+  private final String owner;
+  private final String category;
+  // `null` if we aren't filtering on status
+  private final Boolean status;
+  private final String contains;
+  // The `contains` needle as Latin-1 bytes, or `null` if it isn't Latin-1
+  private final byte[] containsBytes;
+  // The lowercased `containsIgnoreCase` needle, and its bytes
+  private final String containsIgnoreCase;
+  private final byte[] containsIgnoreCaseBytes;
+  private final String matchRegex;
+  private final Pattern match;
+  // The field to sort on, and how to compare todos by it; both `null` to
+  // leave the todos in database order
+  private final String orderBy;
+  private final Comparator<Todo> comparator;
+  // `Integer.MAX_VALUE` if there's no `limit`
+  private final int limit;
+  private final Set<String> groupBy;
+  private final String ownerCompany;
+  private final boolean expandOwner;
+  // `null` to send back every field
+  private final List<String> fields;
+
+  private TodoQuery(Map<String, List<String>> queryParams) {
+    owner = firstValue(queryParams, "owner");
+    category = firstValue(queryParams, "category");
+    String statusParam = firstValue(queryParams, "status");
+    status = statusParam == null ? null : "complete".equalsIgnoreCase(statusParam);
+
+    contains = firstValue(queryParams, "contains");
+    containsBytes = latin1Bytes(contains);
+    String ignoreCaseParam = firstValue(queryParams, "containsIgnoreCase");
+    containsIgnoreCase = ignoreCaseParam == null ? null : ignoreCaseParam.toLowerCase(Locale.ROOT);
+    containsIgnoreCaseBytes = latin1Bytes(containsIgnoreCase);
+
+    matchRegex = firstValue(queryParams, "match");
+    match = matchRegex == null ? null : compile(matchRegex);
+
+    comparator = comparatorFor(firstValue(queryParams, "orderBy"));
+    orderBy = comparator == null ? null : firstValue(queryParams, "orderBy");
+    limit = parseLimit(firstValue(queryParams, "limit"));
+    groupBy = parseGroupBy(queryParams.getOrDefault("groupBy", Collections.emptyList()));
+
+    ownerCompany = firstValue(queryParams, "ownerCompany");
+    String expandParam = firstValue(queryParams, "expand");
+    if (expandParam != null && !expandParam.equals("owner")) {
+      throw new BadRequestResponse("Specified expand '" + expandParam + "' must be owner");
+    }
+    expandOwner = expandParam != null;
+
+    fields = TODO_FIELDS.select(firstValue(queryParams, "fields"));
+    if (fields != null && fields.contains("ownerUser") && !expandOwner) {
+      throw new BadRequestResponse("Specified field 'ownerUser' needs expand=owner");
+    }
+  }
+
+  /**
+   * Make a projection for writing todos with just the fields a query asks
+   * for. Each `TodoDatabase` has its own, so the pieces of JSON it keeps
+   * for the database's todos go away along with the database.
+   */
+  static FieldProjection<Todo> newFieldProjection() {
+    return new FieldProjection<>(todoFields());
+  }
+
+  private static Map<String, Function<Todo, Object>> todoFields() {
+    Map<String, Function<Todo, Object>> todoFields = new LinkedHashMap<>();
+    todoFields.put("_id", todo -> todo._id);
+    todoFields.put("owner", todo -> todo.owner);
+    todoFields.put("status", todo -> todo.status);
+    todoFields.put("body", todo -> todo.body);
+    todoFields.put("category", todo -> todo.category);
+    todoFields.put("ownerUser", todo -> todo instanceof ExpandedTodo ? ((ExpandedTodo) todo).ownerUser : null);
+    return todoFields;
+  }
+
+  /**
+   * Parse and check the query parameters of a request for todos.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the parsed query
+   * @throws BadRequestResponse if any of the parameters is illegal
+   */
+  public static TodoQuery parse(Map<String, List<String>> queryParams) {
+    return new TodoQuery(queryParams);
+  }
+
+  private static String firstValue(Map<String, List<String>> queryParams, String name) {
+    List<String> values = queryParams.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  private static byte[] latin1Bytes(String needle) {
+    return needle != null && TodoBodies.isLatin1(needle) ? needle.getBytes(StandardCharsets.ISO_8859_1) : null;
+  }
+
+  private static Pattern compile(String regex) {
+    try {
+      return Pattern.compile(regex);
+    } catch (PatternSyntaxException e) {
+      throw new BadRequestResponse("Specified match '" + regex + "' is not a legal regular expression");
+    }
+  }
+
+  /**
+   * Figure out how to sort the todos from the `orderBy` parameter (body,
+   * status, category, or owner). Anything else leaves them unsorted.
+   */
+  private static Comparator<Todo> comparatorFor(String orderBy) {
+    if (orderBy == null) {
+      return null;
+    }
+    switch (orderBy) {
+      case "body":
+        return Comparator.comparing(todo -> todo.body);
+      case "status":
+        return Comparator.comparing(todo -> Boolean.toString(todo.status));
+      case "category":
+        return Comparator.comparing(todo -> todo.category);
+      case "owner":
+        return Comparator.comparing(todo -> todo.owner);
+      default:
+        return null;
+    }
+  }
+
+  private static int parseLimit(String limitParam) {
+    if (limitParam == null) {
+      return Integer.MAX_VALUE;
+    }
+    int parsedLimit;
+    try {
+      parsedLimit = Integer.parseInt(limitParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
+    }
+    if (parsedLimit < 0) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be negative");
+    }
+    return parsedLimit;
+  }
+
+  /**
+   * Get the set of field names in the `groupBy` parameter(s), which can be
+   * repeated (`groupBy=owner&groupBy=status`) or comma separated
+   * (`groupBy=owner,status`).
+   */
+  private static Set<String> parseGroupBy(List<String> groupByParams) {
+    Set<String> fields = new HashSet<>();
+    for (String param : groupByParams) {
+      for (String field : param.split(",")) {
+        String trimmedField = field.trim();
+        if (!GROUP_BY_FIELDS.contains(trimmedField)) {
+          throw new BadRequestResponse(
+              "Specified groupBy field '" + trimmedField + "' must be one of owner, category, or status");
+        }
+        fields.add(trimmedField);
+      }
+    }
+    return Collections.unmodifiableSet(fields);
+  }
+
+  /**
+   * Check whether a single todo passes the query's filters (`owner`,
+   * `category`, `status`, `contains`, `containsIgnoreCase`, and `match`),
+   * in just the same way the database filters them. This is for checking
+   * todos one at a time as they change (see `TodoSubscriptions`); a
+   * `match` that takes too long to evaluate counts as not matching.
+   *
+   * @param todo the todo to check
+   * @return true if the todo matches
+   */
+  boolean matches(Todo todo) {
+    if (owner != null && !owner.equals(todo.owner)
+        || category != null && !category.equals(todo.category)
+        || status != null && status != todo.status
+        || contains != null && !todo.body.contains(contains)) {
+      return false;
+    }
+    if (containsIgnoreCase != null
+        && !todo.owner.toLowerCase(Locale.ROOT).contains(containsIgnoreCase)
+        && !todo.category.toLowerCase(Locale.ROOT).contains(containsIgnoreCase)
+        && !todo.body.toLowerCase(Locale.ROOT).contains(containsIgnoreCase)) {
+      return false;
+    }
+    if (match != null) {
+      try {
+        return BudgetedCharSequence.find(match, todo.owner, TodoPartition.MATCH_STEP_BUDGET)
+            || BudgetedCharSequence.find(match, todo.category, TodoPartition.MATCH_STEP_BUDGET)
+            || BudgetedCharSequence.find(match, todo.body, TodoPartition.MATCH_STEP_BUDGET);
+      } catch (BudgetedCharSequence.BudgetExceededException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public String getCategory() {
+    return category;
+  }
+
+  public Boolean getStatus() {
+    return status;
+  }
+
+  public String getContains() {
+    return contains;
+  }
+
+  byte[] getContainsBytes() {
+    return containsBytes;
+  }
+
+  public String getContainsIgnoreCase() {
+    return containsIgnoreCase;
+  }
+
+  byte[] getContainsIgnoreCaseBytes() {
+    return containsIgnoreCaseBytes;
+  }
+
+  public String getMatchRegex() {
+    return matchRegex;
+  }
+
+  public Pattern getMatch() {
+    return match;
+  }
+
+  /**
+   * Get the field to sort on (`body`, `status`, `category`, or `owner`), or
+   * `null` to leave the todos in database order.
+   */
+  public String getOrderBy() {
+    return orderBy;
+  }
+
+  public Comparator<Todo> getComparator() {
+    return comparator;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public Set<String> getGroupBy() {
+    return groupBy;
+  }
+
+  public String getOwnerCompany() {
+    return ownerCompany;
+  }
+
+  public boolean isExpandOwner() {
+    return expandOwner;
+  }
+
+  /**
+   * Get the fields to send back for each todo, or `null` for all of them.
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+}
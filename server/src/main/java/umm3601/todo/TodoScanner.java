@@ -0,0 +1,182 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Runs "scans" over todos that can't be answered from an index (like the
+ * `contains` filter, which has to look at every todo's body).
+ * <p>
+ * Small scans are just done on the calling (request) thread. Once there are
+ * at least `threshold` todos to check, the scan is split into chunks that are
+ * checked in parallel on this scanner's own `ForkJoinPool`. We use a pool of
+ * our own rather than the common pool so that scans can't starve (or be
+ * starved by) anything else in the JVM that uses the common pool, and so its
+ * size can be configured separately.
+ * <p>
+ * Results are bitmaps of todo positions, so they are in the same order no
+ * matter how the work was split up.
+ */
+public class TodoScanner {
+
+  // The default number of candidate todos below which we don't bother
+  // going parallel, since splitting the work up costs more than it saves
+  public static final int DEFAULT_THRESHOLD = 8192;
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  /**
+   * Construct a scanner with the default threshold.
+   *
+   * @param parallelism the number of threads in the scanner's pool
+   */
+  public TodoScanner(int parallelism) {
+    this(parallelism, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Construct a scanner.
+   *
+   * @param parallelism the number of threads in the scanner's pool
+   * @param threshold   the number of candidates below which scans are
+   *                    done sequentially; this is also roughly the size
+   *                    of the chunks that parallel scans are split into
+   */
+  public TodoScanner(int parallelism, int threshold) {
+    this.pool = new ForkJoinPool(parallelism);
+    this.threshold = Math.max(1, threshold);
+  }
+
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Find which of the candidate positions satisfy the given test.
+   *
+   * @param candidates the positions to check (this isn't modified)
+   * @param test       the test to apply to each candidate position
+   * @return a bitmap of the candidate positions that passed the test
+   */
+  public BitSet filter(BitSet candidates, IntPredicate test) {
+    return filterRanges(candidates, (rangeCandidates, from, to) -> {
+      BitSet matches = new BitSet(to);
+      for (int i = rangeCandidates.nextSetBit(from); i >= 0 && i < to; i = rangeCandidates.nextSetBit(i + 1)) {
+        if (test.test(i)) {
+          matches.set(i);
+        }
+      }
+      return matches;
+    });
+  }
+
+  /**
+   * Find which of the candidate positions pass a test that checks a whole
+   * range of positions at a time. This is for tests (like the vectorized
+   * `contains`) that are faster when they get to look at a lot of todos
+   * at once.
+   *
+   * @param candidates the positions to check (this isn't modified)
+   * @param scan       the test to apply to each range of positions
+   * @return a bitmap of the candidate positions that passed the test
+   */
+  public BitSet filterRanges(BitSet candidates, RangeScan scan) {
+    if (candidates.cardinality() < threshold || pool.getParallelism() == 1) {
+      return scan.scan(candidates, 0, candidates.length());
+    }
+    return pool.invoke(new ScanTask(candidates, 0, candidates.length(), scan));
+  }
+
+  /**
+   * Run several independent pieces of work (e.g., a query against each
+   * partition of the database) in parallel on this scanner's pool, and wait
+   * for all of them. A single piece of work is just run on the calling
+   * thread.
+   *
+   * @param tasks the work to do
+   * @return the results of each piece of work, in the same order
+   */
+  public <T> List<T> runAll(List<Supplier<T>> tasks) {
+    List<T> results = new ArrayList<>(tasks.size());
+    if (tasks.size() == 1 || pool.getParallelism() == 1) {
+      for (Supplier<T> task : tasks) {
+        results.add(task.get());
+      }
+      return results;
+    }
+    List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+    for (Supplier<T> task : tasks) {
+      futures.add(CompletableFuture.supplyAsync(task, pool));
+    }
+    try {
+      for (CompletableFuture<T> future : futures) {
+        results.add(future.join());
+      }
+    } catch (CompletionException e) {
+      // Rethrow the original exception (e.g., a `BadRequestResponse`) so it
+      // is handled just as if the work had been done on this thread
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  /**
+   * A test that is applied to a range of candidate positions at once.
+   */
+  @FunctionalInterface
+  public interface RangeScan {
+    /**
+     * Check the candidates in positions `from` (inclusive) to `to`
+     * (exclusive).
+     *
+     * @param candidates the positions to check (this shouldn't be modified)
+     * @param from       the first position to check
+     * @param to         one past the last position to check
+     * @return a bitmap of the candidates in the range that passed the test
+     */
+    BitSet scan(BitSet candidates, int from, int to);
+  }
+
+  /**
+   * A fork/join task that splits a range of positions in half until the
+   * pieces are small enough, scans the pieces, and or-s the results back
+   * together.
+   */
+  private final class ScanTask extends RecursiveTask<BitSet> {
+    private final BitSet candidates;
+    private final int from;
+    private final int to;
+    private final RangeScan scan;
+
+    ScanTask(BitSet candidates, int from, int to, RangeScan scan) {
+      this.candidates = candidates;
+      this.from = from;
+      this.to = to;
+      this.scan = scan;
+    }
+
+    @Override
+    protected BitSet compute() {
+      if (to - from <= threshold) {
+        return scan.scan(candidates, from, to);
+      }
+      int mid = (from + to) >>> 1;
+      ScanTask left = new ScanTask(candidates, from, mid, scan);
+      left.fork();
+      BitSet matches = new ScanTask(candidates, mid, to, scan).compute();
+      matches.or(left.join());
+      return matches;
+    }
+  }
+}
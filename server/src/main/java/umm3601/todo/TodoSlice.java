@@ -0,0 +1,29 @@
+package umm3601.todo;
+
+// Like `Todo`, this class is serialized by Jackson (when instances in a
+// cluster send each other their results), so its fields need to be public
+// and we suppress the Visibility Modifier check in CheckStyle.
+/**
+ * Some of the todos matching a query (e.g., those from one partition, or
+ * from one instance in a cluster), along with each todo's position in the
+ * whole database. The positions let results from several places be merged
+ * back into the same order they'd have had if they all came from one place.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoSlice {
+  public Todo[] todos;
+  // `positions[i]` is the position of `todos[i]` in the whole database
+  public int[] positions;
+
+  /**
+   * An empty slice, which Jackson fills in.
+   */
+  public TodoSlice() {
+    this(new Todo[0], new int[0]);
+  }
+
+  public TodoSlice(Todo[] todos, int[] positions) {
+    this.todos = todos;
+    this.positions = positions;
+  }
+}
@@ -0,0 +1,229 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The live queries (see `TodoController.subscribeToTodos`) that clients
+ * have subscribed to, and the work of telling each of them when todos they
+ * care about are added, removed, or changed.
+ * <p>
+ * Rather than running every query again whenever the todos change, each
+ * changed todo is only checked against the subscriptions that could
+ * possibly care about it. Subscriptions are indexed by the most selective
+ * field they filter on: a subscription with an `owner` is only filed under
+ * that owner, so a change to one of Fry's todos is never even looked at by
+ * a subscription for Blanche's. Only subscriptions that don't filter on
+ * `owner`, `category`, or `status` have to look at every change.
+ */
+public class TodoSubscriptions {
+
+  /**
+   * Where a subscription's changes go.
+   */
+  public interface Listener {
+    /**
+     * Called for each change to the todos matching a subscription.
+     * <p>
+     * This is called while the subscriptions (and, during a reload, the
+     * controller's reload lock) are locked, so it mustn't block, e.g., on
+     * a slow client; see `LiveQueryQueue`.
+     *
+     * @param event one of `add`, `remove`, or `update`
+     * @param todo  the todo that was added or changed, or (for `remove`)
+     *              the todo as it was before it was removed
+     */
+    void onChange(String event, Todo todo);
+  }
+
+  /**
+   * A registered live query.
+   */
+  public static final class Subscription {
+    private final TodoQuery query;
+    // The owners to restrict the todos to (for `ownerCompany`), or `null`
+    private final Set<String> owners;
+    private final Listener listener;
+
+    private Subscription(TodoQuery query, Set<String> owners, Listener listener) {
+      this.query = query;
+      this.owners = owners;
+      this.listener = listener;
+    }
+
+    boolean matches(Todo todo) {
+      return todo != null && (owners == null || owners.contains(todo.owner)) && query.matches(todo);
+    }
+  }
+
+  private final Map<String, Set<Subscription>> byOwner = new HashMap<>();
+  private final Map<String, Set<Subscription>> byCategory = new HashMap<>();
+  private final Map<Boolean, Set<Subscription>> byStatus = new HashMap<>();
+  private final Set<Subscription> unindexed = new LinkedHashSet<>();
+
+  // How many times a subscription has been checked against a change
+  private long evaluations;
+
+  /**
+   * Register a live query.
+   *
+   * @param query    the query
+   * @param owners   the owners to restrict the todos to (for
+   *                 `ownerCompany`), or `null` for any owner
+   * @param listener where the changes to the matching todos go
+   * @return the subscription, which can be passed to `unsubscribe`
+   */
+  public synchronized Subscription subscribe(TodoQuery query, Set<String> owners, Listener listener) {
+    Subscription subscription = new Subscription(query, owners, listener);
+    indexFor(subscription).add(subscription);
+    return subscription;
+  }
+
+  /**
+   * Remove a live query, e.g., once its client has gone away.
+   *
+   * @param subscription the subscription to remove
+   */
+  public synchronized void unsubscribe(Subscription subscription) {
+    Set<Subscription> index = indexFor(subscription);
+    index.remove(subscription);
+    // Don't keep empty sets around for owners no one watches anymore
+    if (index.isEmpty()) {
+      TodoQuery query = subscription.query;
+      if (query.getOwner() != null) {
+        byOwner.remove(query.getOwner());
+      } else if (query.getCategory() != null) {
+        byCategory.remove(query.getCategory());
+      } else if (query.getStatus() != null) {
+        byStatus.remove(query.getStatus());
+      }
+    }
+  }
+
+  /**
+   * Get the set of subscriptions that a subscription is (or would be)
+   * filed under.
+   */
+  private Set<Subscription> indexFor(Subscription subscription) {
+    TodoQuery query = subscription.query;
+    if (query.getOwner() != null) {
+      return byOwner.computeIfAbsent(query.getOwner(), k -> new LinkedHashSet<>());
+    } else if (query.getCategory() != null) {
+      return byCategory.computeIfAbsent(query.getCategory(), k -> new LinkedHashSet<>());
+    } else if (query.getStatus() != null) {
+      return byStatus.computeIfAbsent(query.getStatus(), k -> new LinkedHashSet<>());
+    }
+    return unindexed;
+  }
+
+  public synchronized int size() {
+    int size = unindexed.size();
+    for (Set<Subscription> subscriptions : byOwner.values()) {
+      size += subscriptions.size();
+    }
+    for (Set<Subscription> subscriptions : byCategory.values()) {
+      size += subscriptions.size();
+    }
+    for (Set<Subscription> subscriptions : byStatus.values()) {
+      size += subscriptions.size();
+    }
+    return size;
+  }
+
+  /**
+   * Get the number of times a subscription has been checked against a
+   * changed todo.
+   */
+  public synchronized long getEvaluations() {
+    return evaluations;
+  }
+
+  /**
+   * Tell every interested subscription about all the differences between
+   * two versions of the todos (e.g., before and after a reload). Todos are
+   * matched up by ID.
+   *
+   * @param before the todos before
+   * @param after  the todos after
+   */
+  public synchronized void publishChanges(TodoDatabase before, TodoDatabase after) {
+    for (Todo[] todos : after.getAllTodos()) {
+      for (Todo todo : todos) {
+        Todo oldTodo = before.getTodo(todo._id);
+        if (oldTodo == null || !sameTodo(oldTodo, todo)) {
+          publish(oldTodo, todo);
+        }
+      }
+    }
+    for (Todo[] todos : before.getAllTodos()) {
+      for (Todo todo : todos) {
+        if (after.getTodo(todo._id) == null) {
+          publish(todo, null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tell every interested subscription about a change to one todo.
+   * <p>
+   * For each subscription, a todo that only matches after the change is an
+   * `add`, one that only matched before it is a `remove`, and one that
+   * matches both before and after is an `update`.
+   *
+   * @param before the todo before the change, or `null` if it's new
+   * @param after  the todo after the change, or `null` if it was removed
+   */
+  public synchronized void publish(Todo before, Todo after) {
+    for (Subscription subscription : candidatesFor(before, after)) {
+      evaluations++;
+      boolean matchedBefore = subscription.matches(before);
+      boolean matchesAfter = subscription.matches(after);
+      if (matchedBefore && matchesAfter) {
+        subscription.listener.onChange("update", after);
+      } else if (matchesAfter) {
+        subscription.listener.onChange("add", after);
+      } else if (matchedBefore) {
+        subscription.listener.onChange("remove", before);
+      }
+    }
+  }
+
+  /**
+   * Get the subscriptions that might match either version of a todo: those
+   * filed under its owner, category, or status (before or after), and the
+   * ones that aren't filed under anything.
+   */
+  private Set<Subscription> candidatesFor(Todo before, Todo after) {
+    Set<Subscription> candidates = new LinkedHashSet<>(unindexed);
+    for (Todo todo : nonNull(before, after)) {
+      candidates.addAll(byOwner.getOrDefault(todo.owner, Set.of()));
+      candidates.addAll(byCategory.getOrDefault(todo.category, Set.of()));
+      candidates.addAll(byStatus.getOrDefault(todo.status, Set.of()));
+    }
+    return candidates;
+  }
+
+  private static List<Todo> nonNull(Todo before, Todo after) {
+    List<Todo> todos = new ArrayList<>(2);
+    if (before != null) {
+      todos.add(before);
+    }
+    if (after != null) {
+      todos.add(after);
+    }
+    return todos;
+  }
+
+  private static boolean sameTodo(Todo first, Todo second) {
+    return first.status == second.status
+        && Objects.equals(first.owner, second.owner)
+        && Objects.equals(first.body, second.body)
+        && Objects.equals(first.category, second.category);
+  }
+}
@@ -0,0 +1,44 @@
+package umm3601.todo;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD search for candidate needle positions, using the (incubating) Vector
+ * API. This is kept in a class of its own so that it's only ever loaded
+ * when `TodoBodies.VECTOR_AVAILABLE` says the `jdk.incubator.vector` module
+ * is actually there.
+ */
+final class VectorByteSearch {
+
+  // The widest vectors this CPU handles well (e.g., 32 bytes with AVX2)
+  private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+  private VectorByteSearch() {
+  }
+
+  /**
+   * Find the first position `p` from `from` to `lastStart` (inclusive) where
+   * `bytes[p] == first` and `bytes[p + lastOffset] == last`, checking a whole
+   * vector's worth of positions at a time.
+   *
+   * @return the position, or -1 if there isn't one
+   */
+  static int nextCandidate(byte[] bytes, int from, int lastStart, byte first, byte last, int lastOffset) {
+    int lanes = SPECIES.length();
+    int p = from;
+    // Every position in the vector starting at `p` must be a valid start
+    // (<= lastStart), which also keeps both loads inside the array
+    for (; p + lanes - 1 <= lastStart; p += lanes) {
+      ByteVector firsts = ByteVector.fromArray(SPECIES, bytes, p);
+      ByteVector lasts = ByteVector.fromArray(SPECIES, bytes, p + lastOffset);
+      VectorMask<Byte> hits = firsts.eq(first).and(lasts.eq(last));
+      if (hits.anyTrue()) {
+        return p + hits.firstTrue();
+      }
+    }
+    // Finish off whatever is left with the scalar search
+    return TodoBodies.nextCandidate(bytes, p, lastStart, first, last, lastOffset);
+  }
+}
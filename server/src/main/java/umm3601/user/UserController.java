@@ -1,20 +1,45 @@
 package umm3601.user;
 
 import java.io.IOException;
+import java.util.List;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BinaryFormats;
+import umm3601.ComputeExecutor;
+import umm3601.FieldProjection;
 import umm3601.Controller;
+import umm3601.NdjsonExport;
+import umm3601.QueryCache;
+import umm3601.ServerTiming;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController implements Controller {
 
+  // How many users a search returns if the request doesn't give a `limit`
+  private static final int DEFAULT_SEARCH_LIMIT = 10;
+
+  // How many parsed queries to keep
+  private static final int QUERY_CACHE_SIZE = 1024;
+
   private UserDatabase userDatabase;
 
+  // The threads that lists of users are found (and serialized) on, or
+  // `null` to do that on the request threads (see `ComputeExecutor`)
+  private ComputeExecutor computeExecutor;
+
+  // Parsed queries, by their canonical query string, so requests with the
+  // same parameters skip parsing them all over again
+  private final QueryCache<UserQuery> userQueries = new QueryCache<>(QUERY_CACHE_SIZE, UserQuery::parse);
+
+  // Streams all the users for `/api/users/export`
+  private final NdjsonExport<User> userExport = new NdjsonExport<>(User.class);
+
   /**
    * Construct a controller for users.
    * <p>
@@ -25,7 +50,20 @@ public class UserController implements Controller {
    * @param database the `Database` containing user data
    */
   public UserController(UserDatabase userDatabase) {
+    this(userDatabase, null);
+  }
+
+  /**
+   * Construct a controller for users that finds lists of users on its own
+   * compute threads, rather than the request threads.
+   *
+   * @param userDatabase    the `Database` containing user data
+   * @param computeExecutor the threads to find users on, or `null` to find
+   *                        them on the request threads
+   */
+  public UserController(UserDatabase userDatabase, ComputeExecutor computeExecutor) {
     this.userDatabase = userDatabase;
+    this.computeExecutor = computeExecutor;
   }
 
   /***
@@ -56,7 +94,7 @@ public class UserController implements Controller {
     String id = ctx.pathParam("id");
     User user = userDatabase.getUser(id);
     if (user != null) {
-      ctx.json(user);
+      BinaryFormats.json(ctx, user);
       ctx.status(HttpStatus.OK);
     } else {
       throw new NotFoundResponse("No user with id " + id + " was found.");
@@ -65,12 +103,74 @@ public class UserController implements Controller {
 
   /**
    * Get a JSON response with a list of all the users in the "database".
+   * With `fields=` (e.g., `fields=name,company`) each user only has the
+   * given fields.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    User[] users = userDatabase.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+    // How long each step takes, if we're keeping track (see `ServerTiming`)
+    ServerTiming.Timings timings = ServerTiming.of(ctx);
+    long start = ServerTiming.start(timings);
+    UserQuery query = userQueries.get(ctx.queryParamMap());
+    if (timings != null) {
+      timings.add("parse", start);
+    }
+    User[] users = userDatabase.listUsers(query, timings);
+    start = ServerTiming.start(timings);
+    if (query.getFields() != null) {
+      // Only some of the fields were asked for (`fields=name,company`)
+      BinaryFormats.Format format = BinaryFormats.formatOf(ctx);
+      FieldProjection<User> fieldProjection = userDatabase.getFieldProjection();
+      BinaryFormats.result(ctx, format, format == BinaryFormats.Format.JSON
+          ? fieldProjection.write(users, query.getFields(), true)
+          : fieldProjection.write(users, query.getFields(), format.getMapper()));
+    } else {
+      BinaryFormats.json(ctx, users);
+    }
+    if (timings != null) {
+      timings.add("serialize", start, users.length);
+    }
+  }
+
+  /**
+   * Get a JSON response with the users whose name, email, or company
+   * starts with the `q` query parameter (ignoring case). This is meant to
+   * be called on every keystroke in a "user picker", so it only returns
+   * the first `limit` (by default 10) matches.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void searchUsers(Context ctx) {
+    String prefix = ctx.queryParam("q");
+    if (prefix == null || prefix.isEmpty()) {
+      throw new BadRequestResponse("A search needs a non-empty 'q' to search for");
+    }
+    int limit = DEFAULT_SEARCH_LIMIT;
+    String limitParam = ctx.queryParam("limit");
+    if (limitParam != null) {
+      try {
+        limit = Integer.parseInt(limitParam);
+      } catch (NumberFormatException e) {
+        throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
+      }
+      if (limit < 0) {
+        throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be negative");
+      }
+    }
+    User[] users = userDatabase.searchUsers(prefix, limit);
+    BinaryFormats.json(ctx, users);
+  }
+
+  /**
+   * Stream every user to the client as newline-delimited JSON (one user
+   * per line), for bulk exports. See `NdjsonExport`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the users can't be written to the client
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    userExport.export(ctx, List.<User[]>of(userDatabase.getAllUsers()));
   }
 
   /**
@@ -80,6 +180,10 @@ public class UserController implements Controller {
    * - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
    * - List users, filtered using query parameters
    * - `age`, `company`, and `name` are optional query parameters
+   * - `GET /api/users/search?q=STRING&limit=NUMBER`
+   * - Search for users whose name, email, or company starts with `q`
+   * - `GET /api/users/export`
+   * - Stream every user as newline-delimited JSON
    * - `GET /api/users/:id`
    * - Get the specified user
    *
@@ -94,10 +198,19 @@ public class UserController implements Controller {
    */
   @Override
   public void addRoutes(Javalin server) {
+    // Search users by prefix. This needs to come before the route
+    // for a specific user, or "search" would be taken as an ID.
+    server.get("/api/users/search", this::searchUsers);
+
+    // Export all the users. Like search, this has to come before the
+    // route for a specific user.
+    server.get("/api/users/export", this::exportUsers);
+
     // Get specific user
     server.get("/api/users/{id}", this::getUser);
 
-    // List users, filtered using query parameters
-    server.get("/api/users", this::getUsers);
+    // List users, filtered using query parameters. This is done on the
+    // compute threads if there are any (see `ComputeExecutor`).
+    server.get("/api/users", ComputeExecutor.wrap(computeExecutor, this::getUsers));
   }
 }
@@ -3,13 +3,25 @@ package umm3601.user;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import io.javalin.http.BadRequestResponse;
+import umm3601.FieldProjection;
+import umm3601.ServerTiming;
+import umm3601.store.BitmapIndex;
+import umm3601.store.HashIndex;
+import umm3601.store.IndexDefinition;
+import umm3601.store.IndexedStore;
+import umm3601.store.Schema;
+import umm3601.store.SortedIndex;
+import umm3601.store.TextIndex;
 
 /**
  * A fake "database" of user info
@@ -21,7 +33,25 @@ import io.javalin.http.BadRequestResponse;
  */
 public class UserDatabase {
 
-  private User[] allUsers;
+  // The indexes we keep over the users, built once when they're loaded so
+  // that other parts of the server (e.g., joining todos with their owners)
+  // can find users without scanning through all of them. The store
+  // takes care of building them; see `IndexedStore`.
+  private static final Schema<User> SCHEMA = new Schema<>();
+  private static final IndexDefinition<User, HashIndex<String>> ID = SCHEMA.hash("_id", user -> user._id);
+  // If two users have the same name, the first one wins
+  private static final IndexDefinition<User, HashIndex<String>> NAME = SCHEMA.hash("name", user -> user.name);
+  private static final IndexDefinition<User, BitmapIndex<String>> COMPANY =
+      SCHEMA.bitmap("company", user -> user.company);
+  // Sorted by age, for answering age range queries with binary search
+  private static final IndexDefinition<User, SortedIndex<Integer>> AGE = SCHEMA.sortedInts("age", user -> user.age);
+  // For prefix searches on name, email, and company
+  private static final IndexDefinition<User, TextIndex> SEARCH = SCHEMA.text("search", UserDatabase::searchTerms);
+
+  private final IndexedStore<User> store;
+  // Writes these users with just some of their fields, keeping the pieces
+  // of JSON for next time
+  private final FieldProjection<User> fieldProjection = UserQuery.newFieldProjection();
 
   public UserDatabase(String userDataFile) throws IOException {
     // The `.getResourceAsStream` method searches for the given resource in
@@ -37,11 +67,50 @@ public class UserDatabase {
     // objects.
     ObjectMapper objectMapper = new ObjectMapper();
     // Read our user data file into an array of User objects.
-    allUsers = objectMapper.readValue(reader, User[].class);
+    User[] allUsers = objectMapper.readValue(reader, User[].class);
+    store = new IndexedStore<>(SCHEMA, allUsers);
+  }
+
+  /**
+   * The words that a user can be found by in `searchUsers`: their full
+   * name, each word of their name (so "ste" finds "Connie Stewart"), their
+   * email, and their company.
+   */
+  private static List<String> searchTerms(User user) {
+    List<String> terms = new ArrayList<>();
+    terms.add(user.name);
+    if (user.name != null) {
+      String[] words = user.name.split("\\s+");
+      // The first word is already a prefix of the full name
+      for (int i = 1; i < words.length; i++) {
+        terms.add(words[i]);
+      }
+    }
+    terms.add(user.email);
+    terms.add(user.company);
+    return terms;
   }
 
   public int size() {
-    return allUsers.length;
+    return store.size();
+  }
+
+  /**
+   * Get the projection for writing these users with just some of their
+   * fields (see `FieldProjection`).
+   */
+  public FieldProjection<User> getFieldProjection() {
+    return fieldProjection;
+  }
+
+  /**
+   * Get all the users, in database order, without copying them. This is
+   * for exporting every user; the array mustn't be changed.
+   *
+   * @return all the users
+   */
+  public User[] getAllUsers() {
+    return store.records();
   }
 
   /**
@@ -52,36 +121,107 @@ public class UserDatabase {
    * @return the user with the given ID, or null if there is no user with that ID
    */
   public User getUser(String id) {
-    return Arrays.stream(allUsers).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    return store.find(ID, id);
+  }
+
+  /**
+   * Get the user with the given name. Return `null` if there is no user
+   * with that name.
+   *
+   * @param name the name of the desired user
+   * @return the user with the given name, or null if there is no such user
+   */
+  public User getUserByName(String name) {
+    return store.find(NAME, name);
+  }
+
+  /**
+   * Get the names of all the users that work for the given company.
+   *
+   * @param company the company to look for
+   * @return the (possibly empty) set of names of users at that company
+   */
+  public Set<String> getNamesInCompany(String company) {
+    BitSet companyUsers = store.index(COMPANY).get(company);
+    Set<String> names = new HashSet<>();
+    for (int i = companyUsers.nextSetBit(0); i >= 0; i = companyUsers.nextSetBit(i + 1)) {
+      names.add(store.get(i).name);
+    }
+    return Collections.unmodifiableSet(names);
   }
 
   /**
    * Get an array of all the users satisfying the queries in the params.
+   * <p>
+   * Ages can be filtered with `age` (an exact age) and/or `minAge` and
+   * `maxAge` (an inclusive range). These are answered from a sorted age
+   * index with binary search, and when there is also a `company` we only
+   * keep the users in that company's bitmap (or, if the company is smaller
+   * than the age range, sort just the company's users by age instead).
+   * Results filtered by age, or requested with `orderBy=age`, come back
+   * sorted by age; otherwise users are in the order they were loaded.
    *
    * @param queryParams map of key-value pairs for the query
    * @return an array of all the users matching the given criteria
    */
   public User[] listUsers(Map<String, List<String>> queryParams) {
-    User[] filteredUsers = allUsers;
-
-    // Filter age if defined
-    if (queryParams.containsKey("age")) {
-      String ageParam = queryParams.get("age").get(0);
-      try {
-        int targetAge = Integer.parseInt(ageParam);
-        filteredUsers = filterUsersByAge(filteredUsers, targetAge);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
-      }
+    return listUsers(UserQuery.parse(queryParams));
+  }
+
+  /**
+   * Get an array of all the users satisfying the (parsed) query, as in
+   * `listUsers(Map)`.
+   *
+   * @param query the query
+   * @return an array of all the users matching the given criteria
+   */
+  public User[] listUsers(UserQuery query) {
+    return listUsers(query, null);
+  }
+
+  /**
+   * Get an array of all the users satisfying the (parsed) query, as in
+   * `listUsers(Map)`, adding how long finding them took to the timings.
+   *
+   * @param query   the query
+   * @param timings where to add how long filtering took, or `null` if we
+   *                aren't timing it
+   * @return an array of all the users matching the given criteria
+   */
+  public User[] listUsers(UserQuery query, ServerTiming.Timings timings) {
+    long start = ServerTiming.start(timings);
+    User[] users = findUsers(query);
+    if (timings != null) {
+      // Filtering by age also sorts by age, since it's one index lookup
+      timings.add("filter", start, users.length);
+    }
+    return users;
+  }
+
+  private User[] findUsers(UserQuery query) {
+    String targetCompany = query.getCompany();
+    if (query.filtersAge() || query.isOrderByAge()) {
+      BitSet companyUsers = targetCompany == null ? null : store.index(COMPANY).get(targetCompany);
+      return store.select(store.index(AGE).range(query.getMinAge(), query.getMaxAge(), companyUsers));
     }
-    // Filter company if defined
-    if (queryParams.containsKey("company")) {
-      String targetCompany = queryParams.get("company").get(0);
-      filteredUsers = filterUsersByCompany(filteredUsers, targetCompany);
+    if (targetCompany != null) {
+      return store.select(store.index(COMPANY).get(targetCompany));
     }
     // Process other query parameters here...
 
-    return filteredUsers;
+    return store.records();
+  }
+
+  /**
+   * Find (up to) `limit` users whose name (or any word in it), email, or
+   * company starts with the given prefix, ignoring case.
+   *
+   * @param prefix the prefix to search for
+   * @param limit  the most users to return
+   * @return an array of the matching users
+   */
+  public User[] searchUsers(String prefix, int limit) {
+    return store.select(store.index(SEARCH).search(prefix, limit));
   }
 
   /**
@@ -93,7 +233,22 @@ public class UserDatabase {
    *         age
    */
   public User[] filterUsersByAge(User[] users, int targetAge) {
-    return Arrays.stream(users).filter(x -> x.age == targetAge).toArray(User[]::new);
+    // Count the matches first, so the array we return is the only thing we
+    // allocate (rather than a stream, a lambda, and a buffer that grows)
+    int count = 0;
+    for (User user : users) {
+      if (user.age == targetAge) {
+        count++;
+      }
+    }
+    User[] filtered = new User[count];
+    count = 0;
+    for (User user : users) {
+      if (user.age == targetAge) {
+        filtered[count++] = user;
+      }
+    }
+    return filtered;
   }
 
   /**
@@ -105,7 +260,20 @@ public class UserDatabase {
    *         company
    */
   public User[] filterUsersByCompany(User[] users, String targetCompany) {
-    return Arrays.stream(users).filter(x -> x.company.equals(targetCompany)).toArray(User[]::new);
+    int count = 0;
+    for (User user : users) {
+      if (user.company.equals(targetCompany)) {
+        count++;
+      }
+    }
+    User[] filtered = new User[count];
+    count = 0;
+    for (User user : users) {
+      if (user.company.equals(targetCompany)) {
+        filtered[count++] = user;
+      }
+    }
+    return filtered;
   }
 
 }
@@ -0,0 +1,124 @@
+package umm3601.user;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import io.javalin.http.BadRequestResponse;
+
+import umm3601.FieldProjection;
+
+/**
+ * A query for users, parsed and checked once from the request's query
+ * parameters. Like `TodoQuery`, it can't be changed once it's made, so it
+ * can be cached and shared between requests.
+ */
+public final class UserQuery {
+
+  // The fields that can be picked with `fields`, in the order `User` has them
+  private static final FieldProjection<User> USER_FIELDS = new FieldProjection<>(userFields());
+
+  // The (inclusive) range of ages to keep, from `age`, `minAge`, and
+  // `maxAge`; `Integer.MIN_VALUE`/`MAX_VALUE` if they aren't limited
+  private final int minAge;
+  private final int maxAge;
+  private final boolean orderByAge;
+  private final String company;
+  // `null` to send back every field
+  private final List<String> fields;
+
+  private UserQuery(Map<String, List<String>> queryParams) {
+    int lowest = Integer.MIN_VALUE;
+    int highest = Integer.MAX_VALUE;
+    if (queryParams.containsKey("age")) {
+      int targetAge = parseAgeParam(queryParams, "age");
+      lowest = targetAge;
+      highest = targetAge;
+    }
+    if (queryParams.containsKey("minAge")) {
+      lowest = Math.max(lowest, parseAgeParam(queryParams, "minAge"));
+    }
+    if (queryParams.containsKey("maxAge")) {
+      highest = Math.min(highest, parseAgeParam(queryParams, "maxAge"));
+    }
+    minAge = lowest;
+    maxAge = highest;
+    orderByAge = queryParams.containsKey("orderBy") && queryParams.get("orderBy").get(0).equals("age");
+    company = queryParams.containsKey("company") ? queryParams.get("company").get(0) : null;
+    fields = USER_FIELDS.select(queryParams.containsKey("fields") ? queryParams.get("fields").get(0) : null);
+  }
+
+  /**
+   * Make a projection for writing users with just the fields a query asks
+   * for. Each `UserDatabase` has its own, so the pieces of JSON it keeps
+   * for the database's users go away along with the database.
+   */
+  static FieldProjection<User> newFieldProjection() {
+    return new FieldProjection<>(userFields());
+  }
+
+  private static Map<String, Function<User, Object>> userFields() {
+    Map<String, Function<User, Object>> userFields = new LinkedHashMap<>();
+    userFields.put("_id", user -> user._id);
+    userFields.put("name", user -> user.name);
+    userFields.put("age", user -> user.age);
+    userFields.put("company", user -> user.company);
+    userFields.put("email", user -> user.email);
+    return userFields;
+  }
+
+  /**
+   * Parse and check the query parameters of a request for users.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the parsed query
+   * @throws BadRequestResponse if any of the parameters is illegal
+   */
+  public static UserQuery parse(Map<String, List<String>> queryParams) {
+    return new UserQuery(queryParams);
+  }
+
+  /**
+   * Parse one of the age parameters (`age`, `minAge`, or `maxAge`) to an
+   * integer, throwing a `BadRequestResponse` if it isn't one.
+   */
+  private static int parseAgeParam(Map<String, List<String>> queryParams, String name) {
+    String ageParam = queryParams.get(name).get(0);
+    try {
+      return Integer.parseInt(ageParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + name + " '" + ageParam + "' can't be parsed to an integer");
+    }
+  }
+
+  public int getMinAge() {
+    return minAge;
+  }
+
+  public int getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Whether the query limits the ages at all.
+   */
+  public boolean filtersAge() {
+    return minAge != Integer.MIN_VALUE || maxAge != Integer.MAX_VALUE;
+  }
+
+  public boolean isOrderByAge() {
+    return orderByAge;
+  }
+
+  public String getCompany() {
+    return company;
+  }
+
+  /**
+   * Get the fields to send back for each user, or `null` for all of them.
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+}
@@ -0,0 +1,150 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * Tests sending API responses as CBOR or Smile.
+ */
+public class BinaryFormatsSpec {
+
+  private static final String JSON =
+      "[{\"_id\":\"58895985a22c04e761776d54\",\"owner\":\"Blanche\",\"status\":false,\"count\":3601,"
+      + "\"ownerUser\":null,\"ratio\":0.5}]";
+
+  @Mock
+  private Context ctx;
+
+  private BinaryFormats binaryFormats;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    binaryFormats = new BinaryFormats();
+  }
+
+  @Test
+  public void canNegotiateFormat() {
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.negotiate(null));
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.negotiate("application/json"));
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.negotiate("text/html,application/xhtml+xml,*/*;q=0.8"));
+    assertEquals(BinaryFormats.Format.CBOR, BinaryFormats.negotiate("application/cbor"));
+    assertEquals(BinaryFormats.Format.SMILE, BinaryFormats.negotiate("Application/X-Jackson-Smile"));
+    // The highest quality wins, then the first listed
+    assertEquals(BinaryFormats.Format.CBOR, BinaryFormats.negotiate("application/json;q=0.5, application/cbor"));
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.negotiate("application/json, application/cbor"));
+    assertEquals(BinaryFormats.Format.SMILE,
+        BinaryFormats.negotiate("application/cbor;q=0.7, application/x-jackson-smile;q=0.9, */*;q=0.1"));
+    // Qualities that can't be parsed don't count
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.negotiate("application/cbor;q=lots"));
+  }
+
+  // Tests that the encoding is picked, and kept on the request, before
+  // the request is handled
+  @Test
+  public void choosesFormatBeforeHandling() {
+    when(ctx.header("Accept")).thenReturn("application/cbor");
+    binaryFormats.chooseFormat(ctx);
+    verify(ctx).header("Vary", "Accept");
+    verify(ctx).attribute(BinaryFormats.ATTRIBUTE, BinaryFormats.Format.CBOR);
+
+    Mockito.reset(ctx);
+    when(ctx.header("Accept")).thenReturn("application/json");
+    binaryFormats.chooseFormat(ctx);
+    verify(ctx).header("Vary", "Accept");
+    verify(ctx, never()).attribute(anyString(), any());
+    assertEquals(BinaryFormats.Format.JSON, BinaryFormats.formatOf(ctx));
+  }
+
+  @Test
+  public void canSendCbor() throws IOException {
+    checkEncoding(BinaryFormats.Format.CBOR, new ObjectMapper(new CBORFactory()));
+  }
+
+  @Test
+  public void canSendSmile() throws IOException {
+    checkEncoding(BinaryFormats.Format.SMILE, new ObjectMapper(new SmileFactory()));
+  }
+
+  private void checkEncoding(BinaryFormats.Format format, ObjectMapper binaryMapper) throws IOException {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    JsonNode value = jsonMapper.readTree(JSON);
+    when(ctx.attribute(BinaryFormats.ATTRIBUTE)).thenReturn(format);
+
+    BinaryFormats.json(ctx, value);
+
+    ArgumentCaptor<byte[]> bytesCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(bytesCaptor.capture());
+    verify(ctx).contentType(format.getMediaType());
+    verify(ctx, never()).json(any());
+    byte[] encoded = bytesCaptor.getValue();
+    assertTrue(encoded.length < JSON.length());
+    assertEquals(value, binaryMapper.readTree(encoded));
+  }
+
+  // Tests that JSON responses are left to Javalin, as usual
+  @Test
+  public void leavesJsonToJavalin() {
+    Object value = List.of(1, 2, 3);
+    BinaryFormats.json(ctx, value);
+    verify(ctx).json(value);
+    verify(ctx, never()).result(any(byte[].class));
+  }
+
+  // Tests that records written with just some of their fields come out the
+  // same in CBOR as in JSON
+  @Test
+  public void canProjectFieldsInCbor() throws IOException {
+    Map<String, Function<String[], Object>> fields = new LinkedHashMap<>();
+    fields.put("_id", record -> record[0]);
+    fields.put("owner", record -> record[1]);
+    fields.put("status", record -> Boolean.valueOf(record[2]));
+    FieldProjection<String[]> projection = new FieldProjection<>(fields);
+    String[][] records = {
+        {"58895985a22c04e761776d54", "Blanche", "false"},
+        {"58895985c1849992336c219b", "Fry", "true"}
+    };
+    List<String> picked = projection.select("status,_id");
+
+    byte[] json = projection.write(records, picked, false);
+    byte[] cbor = projection.write(records, picked, BinaryFormats.Format.CBOR.getMapper());
+
+    JsonNode expected = new ObjectMapper().readTree(json);
+    assertEquals(2, expected.size());
+    assertEquals(2, expected.get(1).size());
+    assertEquals(expected, new ObjectMapper(new CBORFactory()).readTree(cbor));
+  }
+
+  @Test
+  public void addsBeforeHandlerForApi() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    binaryFormats.addRoutes(mockServer);
+    verify(mockServer).before(Mockito.eq("/api/*"), any());
+  }
+}
@@ -0,0 +1,134 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import umm3601.todo.TodoCluster;
+import umm3601.todo.TodoController;
+import umm3601.todo.TodoDatabase;
+
+/**
+ * Tests a cluster of real servers (see `TodoCluster`) on this machine,
+ * asking each other for their slices of the todos over HTTP.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ClusterSpec {
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  // The servers that are still running, to stop after each test
+  private final List<Javalin> servers = new ArrayList<>();
+
+  @AfterEach
+  public void tearDown() {
+    for (Javalin server : servers) {
+      server.stop();
+    }
+    servers.clear();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Start a server with just the todo routes, with its own copy of the
+   * todos, in a cluster with the given peers (or on its own, if there
+   * aren't any).
+   */
+  private Javalin startServer(int port, List<String> peers) throws IOException {
+    TodoDatabase todoDatabase = new TodoDatabase(Main.TODO_DATA_FILE);
+    TodoCluster todoCluster = peers.isEmpty() ? null : new TodoCluster("localhost:" + port, peers, todoDatabase);
+    Controller[] controllers = {new TodoController(todoDatabase, null, todoCluster)};
+    Javalin server = new Server(controllers, port, false).startServer();
+    servers.add(server);
+    return server;
+  }
+
+  private HttpResponse<String> get(int port, String pathAndQuery) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + pathAndQuery))
+        .header("Accept", "application/json")
+        .build();
+    return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  // Tests that asking either server in a cluster of two gives the same
+  // todos, in the same order, as asking a server on its own
+  @Test
+  public void clusterMatchesSingleServer() throws IOException, InterruptedException {
+    int firstPort = freePort();
+    int secondPort = freePort();
+    int singlePort = freePort();
+    List<String> peers = List.of("localhost:" + firstPort, "localhost:" + secondPort);
+    startServer(firstPort, peers);
+    startServer(secondPort, peers);
+    startServer(singlePort, List.of());
+
+    List<String> queries = List.of(
+        "",
+        "?orderBy=owner&limit=100",
+        "?orderBy=body&status=complete",
+        "?contains=sit",
+        "?owner=Fry",
+        "?owner=Barry");
+    for (String query : queries) {
+      HttpResponse<String> single = get(singlePort, "/api/todos" + query);
+      assertEquals(200, single.statusCode(), query);
+      JsonNode expected = objectMapper.readTree(single.body());
+      assertTrue(expected.size() > 0, query);
+      for (int port : List.of(firstPort, secondPort)) {
+        HttpResponse<String> clustered = get(port, "/api/todos" + query);
+        assertEquals(200, clustered.statusCode(), query);
+        assertEquals(expected, objectMapper.readTree(clustered.body()), query);
+      }
+    }
+
+    // A bad query is reported as bad, whichever server notices
+    assertEquals(400, get(firstPort, "/api/todos?limit=lots").statusCode());
+  }
+
+  // Tests that a server can't answer queries that need a peer that's gone,
+  // but can still answer the ones that only need itself
+  @Test
+  public void unreachablePeerIsUnavailable() throws IOException, InterruptedException {
+    int firstPort = freePort();
+    int secondPort = freePort();
+    List<String> peers = List.of("localhost:" + firstPort, "localhost:" + secondPort);
+    startServer(firstPort, peers);
+    Javalin second = startServer(secondPort, peers);
+    assertEquals(200, get(firstPort, "/api/todos").statusCode());
+
+    second.stop();
+    servers.remove(second);
+
+    HttpResponse<String> response = get(firstPort, "/api/todos");
+    assertEquals(503, response.statusCode());
+    assertTrue(response.body().contains("localhost:" + secondPort), response.body());
+
+    // An owner the first server owns itself doesn't need the other one
+    TodoCluster cluster = new TodoCluster("localhost:" + firstPort, peers, new TodoDatabase(Main.TODO_DATA_FILE));
+    String owner = cluster.getOwnedOwners().iterator().next();
+    String ownerQuery = "?owner=" + URLEncoder.encode(owner, StandardCharsets.UTF_8);
+    assertEquals(200, get(firstPort, "/api/todos" + ownerQuery).statusCode());
+  }
+}
@@ -0,0 +1,132 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests running handlers on the compute threads.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ComputeExecutorSpec {
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  @Test
+  public void canBuildController() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    new ComputeExecutor(2, 4).addRoutes(mockServer);
+    verify(mockServer).get(eq(ComputeExecutor.STATS_PATH), any());
+  }
+
+  // Tests that without compute threads, handlers are left alone
+  @Test
+  public void wrapWithoutExecutorKeepsHandler() {
+    Handler handler = context -> { };
+    assertSame(handler, ComputeExecutor.wrap(null, handler));
+  }
+
+  // Tests that a handler is handed to Javalin as a future, which runs it
+  // on a compute thread
+  @Test
+  @SuppressWarnings("unchecked")
+  public void runsHandlersOnComputeThreads() {
+    ComputeExecutor computeExecutor = new ComputeExecutor(2, 4);
+    AtomicReference<String> threadName = new AtomicReference<>();
+    computeExecutor.handle(ctx, context -> threadName.set(Thread.currentThread().getName()));
+
+    ArgumentCaptor<Supplier<CompletableFuture<?>>> futureCaptor = ArgumentCaptor.forClass(Supplier.class);
+    verify(ctx).future(futureCaptor.capture());
+    futureCaptor.getValue().get().join();
+    assertTrue(threadName.get().startsWith("compute-"), threadName.get());
+  }
+
+  // Tests that the counters add up, including how long handlers waited
+  @Test
+  public void countsHandlers() {
+    ComputeExecutor computeExecutor = new ComputeExecutor(2, 4);
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    for (int i = 0; i < 3; i++) {
+      computeExecutor.submit(null, context -> { }, timings).join();
+    }
+    ComputeStats stats = computeExecutor.getStats();
+    assertEquals(2, stats.threads);
+    assertEquals(4, stats.queueCapacity);
+    assertEquals(3, stats.submitted);
+    assertEquals(0, stats.rejected);
+    assertTrue(stats.maxQueueMicros >= stats.meanQueueMicros);
+    assertTrue(timings.getNanos("queue") >= 0);
+  }
+
+  // Tests that what a handler throws comes back through the future, so
+  // Javalin can handle it as usual
+  @Test
+  public void passesOnExceptions() {
+    ComputeExecutor computeExecutor = new ComputeExecutor(1, 1);
+    CompletableFuture<Void> future = computeExecutor.submit(null, context -> {
+      throw new BadRequestResponse("Bad query");
+    }, null);
+    CompletionException e = assertThrows(CompletionException.class, future::join);
+    assertInstanceOf(BadRequestResponse.class, e.getCause());
+  }
+
+  // Tests that once the queue is full, requests are turned away with a 503
+  @Test
+  public void turnsAwayRequestsWhenQueueIsFull() throws InterruptedException {
+    ComputeExecutor computeExecutor = new ComputeExecutor(1, 1);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Void> busy = computeExecutor.submit(null, context -> {
+      running.countDown();
+      release.await();
+    }, null);
+    assertTrue(running.await(10, TimeUnit.SECONDS));
+
+    CompletableFuture<Void> queued = computeExecutor.submit(null, context -> { }, null);
+    CompletableFuture<Void> turnedAway = computeExecutor.submit(null, context -> { }, null);
+    CompletionException e = assertThrows(CompletionException.class, turnedAway::join);
+    assertInstanceOf(ServiceUnavailableResponse.class, e.getCause());
+
+    ComputeStats stats = computeExecutor.getStats();
+    assertEquals(1, stats.active);
+    assertEquals(1, stats.queued);
+    assertEquals(1, stats.peakQueued);
+    assertEquals(1, stats.rejected);
+
+    release.countDown();
+    busy.join();
+    queued.join();
+    assertEquals(0, computeExecutor.getStats().queued);
+  }
+}
@@ -0,0 +1,149 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.Context;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import umm3601.user.User;
+
+/**
+ * Tests streaming records as newline-delimited JSON.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class NdjsonExportSpec {
+
+  @Mock
+  private Context ctx;
+
+  @Mock
+  private HttpServletResponse res;
+
+  // What's been written to the (fake) response, and how many times it
+  // was flushed
+  private ByteArrayOutputStream written;
+  private int flushes;
+
+  private NdjsonExport<User> export;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    written = new ByteArrayOutputStream();
+    flushes = 0;
+    when(ctx.res()).thenReturn(res);
+    when(res.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        written.write(b);
+      }
+
+      @Override
+      public void flush() {
+        flushes++;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener listener) {
+        // Only used for asynchronous writes, which we don't do
+      }
+    });
+    export = new NdjsonExport<>(User.class);
+  }
+
+  /**
+   * Make the given number of users, named by their index.
+   */
+  private static User[] users(int count, int firstAge) {
+    User[] users = new User[count];
+    for (int i = 0; i < count; i++) {
+      users[i] = new User();
+      users[i]._id = Integer.toString(i);
+      users[i].name = "User " + i;
+      users[i].age = firstAge + i;
+    }
+    return users;
+  }
+
+  /**
+   * Check that the NDJSON has the given users, in order, one per line.
+   */
+  private static void checkLines(String ndjson, User[]... arrays) throws IOException {
+    String[] lines = ndjson.split("\n");
+    ObjectMapper mapper = new ObjectMapper();
+    int line = 0;
+    for (User[] users : arrays) {
+      for (User user : users) {
+        User exported = mapper.readValue(lines[line], User.class);
+        assertEquals(user.name, exported.name);
+        assertEquals(user.age, exported.age);
+        line++;
+      }
+    }
+    assertEquals(line, lines.length);
+    assertEquals('\n', ndjson.charAt(ndjson.length() - 1));
+  }
+
+  @Test
+  public void writesOneRecordPerLineInChunks() throws IOException {
+    User[] first = users(NdjsonExport.CHUNK_SIZE * 2 + 5, 0);
+    User[] second = users(3, 100);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    long count = export.write(out, List.of(first, new User[0], second));
+
+    assertEquals(first.length + second.length, count);
+    checkLines(out.toString(StandardCharsets.UTF_8), first, second);
+  }
+
+  @Test
+  public void canExportToClient() throws IOException {
+    User[] users = users(NdjsonExport.CHUNK_SIZE + 1, 20);
+
+    assertEquals(users.length, export.export(ctx, List.<User[]>of(users)));
+
+    verify(ctx).contentType(NdjsonExport.CONTENT_TYPE);
+    verify(ctx, never()).header("Content-Encoding", "gzip");
+    // Each chunk is flushed to the client as soon as it's made
+    assertEquals(2, flushes);
+    checkLines(written.toString(StandardCharsets.UTF_8), users);
+  }
+
+  @Test
+  public void canExportGzippedToClient() throws IOException {
+    User[] users = users(10, 30);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate");
+
+    assertEquals(users.length, export.export(ctx, List.<User[]>of(users)));
+
+    verify(ctx).header("Content-Encoding", "gzip");
+    verify(ctx).header("Vary", "Accept-Encoding");
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(written.toByteArray()))) {
+      checkLines(new String(in.readAllBytes(), StandardCharsets.UTF_8), users);
+    }
+  }
+}
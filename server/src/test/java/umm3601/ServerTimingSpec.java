@@ -0,0 +1,130 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the `Server-Timing` headers on API responses.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ServerTimingSpec {
+
+  @Mock
+  private Context ctx;
+
+  @Mock
+  private HttpServletResponse res;
+
+  @Captor
+  private ArgumentCaptor<ServerTiming.Timings> timingsCaptor;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    when(ctx.res()).thenReturn(res);
+  }
+
+  @Test
+  public void canBuildController() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    new ServerTiming().addRoutes(mockServer);
+    verify(mockServer).before(any(), any());
+    verify(mockServer).after(any(), any());
+  }
+
+  // Tests that phases with the same name add up, and come out in the
+  // header in the order they first happened, followed by the total
+  @Test
+  public void addsUpPhases() {
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    timings.add("parse", System.nanoTime());
+    timings.add("filter", System.nanoTime(), 40);
+    timings.add("filter", System.nanoTime(), 2);
+    timings.add("serialize", System.nanoTime(), 10);
+
+    assertEquals(42, timings.getRows("filter"));
+    assertEquals(-1, timings.getRows("parse"));
+    assertEquals(-1, timings.getNanos("sort"));
+    assertTrue(timings.getNanos("filter") >= 0);
+    assertTrue(timings.getTotalNanos() >= timings.getNanos("filter"));
+
+    String header = timings.header();
+    assertTrue(header.matches("parse;dur=\\d+\\.\\d{3}, filter;dur=\\d+\\.\\d{3};desc=\"rows=42\", "
+        + "serialize;dur=\\d+\\.\\d{3};desc=\"rows=10\", total;dur=\\d+\\.\\d{3}"), header);
+  }
+
+  // Tests that the phases of work done apart from a request can be added
+  // to the request's own
+  @Test
+  public void canAddOtherTimings() {
+    ServerTiming.Timings shared = new ServerTiming.Timings();
+    shared.add("filter", System.nanoTime(), 40);
+    shared.add("sort", System.nanoTime(), 10);
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    timings.add("parse", System.nanoTime());
+    timings.add("filter", System.nanoTime(), 2);
+
+    timings.addAll(shared);
+    assertEquals(42, timings.getRows("filter"));
+    assertEquals(10, timings.getRows("sort"));
+    assertEquals(shared.getNanos("sort"), timings.getNanos("sort"));
+    assertEquals(List.of("parse", "filter", "sort"), List.copyOf(timings.getPhaseNanos().keySet()));
+    // The other timings are left alone
+    assertEquals(40, shared.getRows("filter"));
+  }
+
+  // Tests that a request's timings are kept on the request and sent back
+  // with the response
+  @Test
+  public void sendsTimingsWithResponse() {
+    ServerTiming serverTiming = new ServerTiming();
+    serverTiming.startRequest(ctx);
+    verify(ctx).attribute(eq(ServerTiming.ATTRIBUTE), timingsCaptor.capture());
+    ServerTiming.Timings timings = timingsCaptor.getValue();
+    when(ctx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(timings);
+    assertSame(timings, ServerTiming.of(ctx));
+
+    timings.add("parse", ServerTiming.start(timings));
+    serverTiming.finishRequest(ctx);
+    ArgumentCaptor<String> headerCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq("Server-Timing"), headerCaptor.capture());
+    assertTrue(headerCaptor.getValue().startsWith("parse;dur="));
+  }
+
+  // Tests that nothing is sent once the response has already gone (e.g.,
+  // an export), or if the request isn't being timed
+  @Test
+  public void skipsUntimedAndCommittedResponses() {
+    ServerTiming serverTiming = new ServerTiming();
+    assertNull(ServerTiming.of(ctx));
+    assertEquals(0, ServerTiming.start(null));
+    serverTiming.finishRequest(ctx);
+
+    when(ctx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(new ServerTiming.Timings());
+    when(res.isCommitted()).thenReturn(true);
+    serverTiming.finishRequest(ctx);
+    verify(ctx, never()).header(eq("Server-Timing"), anyString());
+  }
+}
@@ -0,0 +1,114 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests the single-flight request coalescing.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SingleFlightSpec {
+
+  // Tests that a request on its own does its own computation, every time
+  @Test
+  public void computesSequentialRequestsSeparately() {
+    SingleFlight<String, Integer> flights = new SingleFlight<>();
+    AtomicInteger computations = new AtomicInteger();
+
+    SingleFlight.Outcome<Integer> first = flights.run("key", computations::incrementAndGet);
+    SingleFlight.Outcome<Integer> second = flights.run("key", computations::incrementAndGet);
+
+    assertEquals(1, first.getValue());
+    assertEquals(2, second.getValue());
+    assertFalse(first.isShared());
+    assertFalse(second.isShared());
+    assertTrue(first.isComputed());
+    assertTrue(second.isComputed());
+    assertEquals(0, flights.getCoalescedCount());
+  }
+
+  // Tests that a request arriving while an identical one is being computed
+  // shares its result, and that different keys don't
+  @Test
+  public void sharesConcurrentIdenticalRequests() throws InterruptedException {
+    SingleFlight<String, Object> flights = new SingleFlight<>();
+    CountDownLatch started = new CountDownLatch(1);
+    Object result = new Object();
+    AtomicInteger computations = new AtomicInteger();
+
+    Object[] followerValue = new Object[1];
+    Thread leader = new Thread(() -> {
+      SingleFlight.Outcome<Object> outcome = flights.run("key", () -> {
+        computations.incrementAndGet();
+        started.countDown();
+        // Wait for the follower to join in
+        while (flights.getCoalescedCount() == 0) {
+          Thread.onSpinWait();
+        }
+        return result;
+      });
+      assertTrue(outcome.isShared());
+      assertTrue(outcome.isComputed());
+    });
+    leader.start();
+    started.await();
+
+    Thread follower = new Thread(() -> {
+      SingleFlight.Outcome<Object> outcome = flights.run("key", () -> {
+        computations.incrementAndGet();
+        return new Object();
+      });
+      assertTrue(outcome.isShared());
+      assertFalse(outcome.isComputed());
+      followerValue[0] = outcome.getValue();
+    });
+    follower.start();
+    follower.join();
+    leader.join();
+
+    assertSame(result, followerValue[0]);
+    assertEquals(1, computations.get());
+    assertEquals(1, flights.getCoalescedCount());
+
+    // A different key is computed on its own
+    assertFalse(flights.run("other", Object::new).isShared());
+  }
+
+  // Tests that every request waiting on a failed computation gets the
+  // original exception
+  @Test
+  public void sharesExceptions() throws InterruptedException {
+    SingleFlight<String, Object> flights = new SingleFlight<>();
+    CountDownLatch started = new CountDownLatch(1);
+
+    Thread leader = new Thread(() -> {
+      Assertions.assertThrows(BadRequestResponse.class, () -> {
+        flights.run("key", () -> {
+          started.countDown();
+          while (flights.getCoalescedCount() == 0) {
+            Thread.onSpinWait();
+          }
+          throw new BadRequestResponse("Bad key");
+        });
+      });
+    });
+    leader.start();
+    started.await();
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      flights.run("key", Object::new);
+    });
+    assertEquals("Bad key", exception.getMessage());
+    leader.join();
+  }
+}
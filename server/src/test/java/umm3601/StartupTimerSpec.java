@@ -0,0 +1,74 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests timing the phases of starting the server.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class StartupTimerSpec {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void timesEachPhase() throws IOException {
+    AtomicLong now = new AtomicLong();
+    StartupTimer timer = new StartupTimer(now::get, 120);
+
+    String users = timer.time("load users", () -> {
+      now.addAndGet(40 * MILLIS);
+      return "users";
+    });
+    timer.time("start server", () -> {
+      now.addAndGet(15 * MILLIS);
+      return null;
+    });
+
+    assertEquals("users", users);
+    assertEquals(40, timer.getMillis("load users"));
+    assertEquals(15, timer.getMillis("start server"));
+    assertEquals(-1, timer.getMillis("load todos"));
+    String report = timer.report();
+    assertTrue(report.startsWith("Started in 55 ms (plus 120 ms for the JVM to start)"), report);
+    assertTrue(report.contains("load users"), report);
+    assertTrue(report.indexOf("load users") < report.indexOf("start server"), report);
+  }
+
+  @Test
+  public void canTimePhasesAtTheSameTime() throws IOException {
+    StartupTimer timer = new StartupTimer();
+    CompletableFuture<Integer> first = timer.timeAsync("first", () -> 1);
+    CompletableFuture<Integer> second = timer.timeAsync("second", () -> 2);
+
+    assertEquals(1, StartupTimer.join(first));
+    assertEquals(2, StartupTimer.join(second));
+    assertTrue(timer.getMillis("first") >= 0);
+    assertTrue(timer.getMillis("second") >= 0);
+  }
+
+  @Test
+  public void reportsFailedPhases() {
+    StartupTimer timer = new StartupTimer();
+    CompletableFuture<String> missing = timer.timeAsync("load missing", () -> {
+      throw new IOException("Could not find /missing.json");
+    });
+    IOException exception = assertThrows(IOException.class, () -> StartupTimer.join(missing));
+    assertEquals("Could not find /missing.json", exception.getMessage());
+
+    CompletableFuture<String> broken = timer.timeAsync("load broken", () -> {
+      throw new IllegalStateException("Broken");
+    });
+    assertThrows(IllegalStateException.class, () -> StartupTimer.join(broken));
+    // Failed phases still took some time
+    assertTrue(timer.getMillis("load broken") >= 0);
+  }
+}
@@ -0,0 +1,156 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests serving the client's files from memory.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class StaticAssetsSpec {
+
+  @TempDir
+  private Path clientDirectory;
+
+  @Mock
+  private Context ctx;
+
+  private StaticAssets assets;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    Files.createDirectories(clientDirectory.resolve("javascript"));
+    Files.writeString(clientDirectory.resolve("javascript/todos.js"), "console.log('todos');\n".repeat(50));
+    Files.writeString(clientDirectory.resolve("index.html"), "<a href=\"/todos.html\">Todos</a>");
+    Files.writeString(clientDirectory.resolve("todos.html"),
+        "<script src=\"/javascript/todos.js\"></script><p>/javascript/todos.js</p>");
+    Files.write(clientDirectory.resolve("logo.png"), new byte[] {1, 2, 3});
+    assets = StaticAssets.load(clientDirectory);
+  }
+
+  // Tests that files other than HTML get fingerprinted names, which the
+  // HTML is rewritten to use
+  @Test
+  public void fingerprintsFilesAndRewritesHtml() {
+    String fingerprinted = assets.getFingerprintedPaths().get("/javascript/todos.js");
+    assertNotNull(fingerprinted);
+    assertTrue(fingerprinted.matches("/javascript/todos\\.[0-9a-f]{16}\\.js"));
+    assertTrue(assets.getFingerprintedPaths().containsKey("/logo.png"));
+    assertFalse(assets.getFingerprintedPaths().containsKey("/todos.html"));
+
+    String html = new String(assets.getAsset("/todos.html").getBytes(), StandardCharsets.UTF_8);
+    assertEquals("<script src=\"" + fingerprinted + "\"></script><p>/javascript/todos.js</p>", html);
+    // The same file is served under both names
+    assertEquals(assets.getAsset("/javascript/todos.js"), assets.getAsset(fingerprinted));
+  }
+
+  // Tests that text files get a (smaller) gzipped copy, and others don't
+  @Test
+  public void precompressesTextFiles() throws IOException {
+    StaticAssets.Asset script = assets.getAsset("/javascript/todos.js");
+    assertNotNull(script.getGzipped());
+    assertTrue(script.getGzipped().length < script.getBytes().length);
+    try (GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(script.getGzipped()))) {
+      assertArrayEquals(script.getBytes(), unzipped.readAllBytes());
+    }
+    assertNull(assets.getAsset("/logo.png").getGzipped());
+
+    // The gzipped copy is different bytes, so it has its own ETag
+    assertEquals("\"" + script.getHash() + "-gz\"", script.getGzipEtag());
+    assertNotEquals(script.getEtag(), script.getGzipEtag());
+    assertNull(assets.getAsset("/logo.png").getGzipEtag());
+  }
+
+  // Tests that a fingerprinted file is sent (gzipped, if allowed) with a
+  // long cache lifetime
+  @Test
+  public void servesFingerprintedFilesForAYear() {
+    StaticAssets.Asset script = assets.getAsset("/javascript/todos.js");
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate, br");
+    assets.serve(ctx, script, true);
+
+    verify(ctx).header("ETag", script.getGzipEtag());
+    verify(ctx).header("Cache-Control", StaticAssets.IMMUTABLE_CACHE_CONTROL);
+    verify(ctx).header("Content-Encoding", "gzip");
+    verify(ctx).contentType("text/javascript; charset=utf-8");
+    verify(ctx).result(script.getGzipped());
+  }
+
+  // Tests that files under their plain names are always revalidated, and
+  // sent as is if gzip isn't accepted
+  @Test
+  public void servesPlainFilesForRevalidation() {
+    StaticAssets.Asset html = assets.getAsset("/todos.html");
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip;q=0");
+    assets.serve(ctx, html, false);
+
+    verify(ctx).header("ETag", html.getEtag());
+    verify(ctx).header("Cache-Control", StaticAssets.REVALIDATE_CACHE_CONTROL);
+    verify(ctx, never()).header("Content-Encoding", "gzip");
+    verify(ctx).result(html.getBytes());
+  }
+
+  // Tests that a browser whose copy is up to date just gets a 304
+  @Test
+  public void answersConditionalRequestsWithNotModified() {
+    StaticAssets.Asset script = assets.getAsset("/javascript/todos.js");
+    when(ctx.header("If-None-Match")).thenReturn("\"stale\", " + script.getEtag());
+    assets.serve(ctx, script, false);
+
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).result(any(byte[].class));
+
+    assertTrue(StaticAssets.matchesEtag("*", script));
+    assertTrue(StaticAssets.matchesEtag("W/" + script.getEtag(), script));
+    // A copy of either encoding is up to date
+    assertTrue(StaticAssets.matchesEtag(script.getGzipEtag(), script));
+    assertFalse(StaticAssets.matchesEtag("\"stale\"", script));
+    assertFalse(StaticAssets.matchesEtag(null, script));
+  }
+
+  @Test
+  public void understandsAcceptEncoding() {
+    assertTrue(StaticAssets.acceptsGzip("gzip"));
+    assertTrue(StaticAssets.acceptsGzip("br, GZIP;q=0.5"));
+    assertFalse(StaticAssets.acceptsGzip("gzip; q=0.0"));
+    assertFalse(StaticAssets.acceptsGzip("deflate"));
+    assertFalse(StaticAssets.acceptsGzip(null));
+  }
+
+  // Tests that every file gets a route, fingerprinted ones twice, plus `/`
+  @Test
+  public void addsARouteForEachFile() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    assets.addRoutes(mockServer);
+    // todos.js and logo.png twice, the two HTML files, and `/`
+    verify(mockServer, Mockito.times(7)).get(any(), any());
+  }
+}
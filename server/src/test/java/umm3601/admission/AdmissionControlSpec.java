@@ -0,0 +1,267 @@
+package umm3601.admission;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests the admission control in front of the API.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AdmissionControlSpec {
+
+  private static final long TARGET_LATENCY = TimeUnit.MILLISECONDS.toNanos(100);
+
+  // A fake clock, in nanoseconds, that the tests move along by hand
+  private long now;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<AdmissionStats> statsCaptor;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    now = 0;
+    when(ctx.path()).thenReturn("/api/todos");
+    when(ctx.ip()).thenReturn("10.0.0.1");
+  }
+
+  private AdmissionControl admissionControl(double ratePerSecond, int burst, AdaptiveLimit limit,
+      long queueBudgetMillis) {
+    return new AdmissionControl(ratePerSecond, burst, limit, queueBudgetMillis, () -> now, null, Set.of());
+  }
+
+  @Test
+  public void canBuildController() {
+    AdmissionControl controller = new AdmissionControl(10, 20, 4, 16, 100, 50);
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    controller.addRoutes(mockServer);
+
+    verify(mockServer).before(any(), any());
+    verify(mockServer).after(any(), any());
+    verify(mockServer).get(any(), any());
+  }
+
+  // Tests that a client can make a burst of requests, then gets a 429 with
+  // a Retry-After, and can go again once its bucket has refilled; other
+  // clients aren't affected
+  @Test
+  public void rateLimitsEachClient() {
+    AdmissionControl control = admissionControl(1, 2, new AdaptiveLimit(10, 1, 10, TARGET_LATENCY), 50);
+    control.admit(ctx);
+    control.admit(ctx);
+
+    HttpResponseException exception = Assertions.assertThrows(HttpResponseException.class, () -> {
+      control.admit(ctx);
+    });
+    assertEquals(429, exception.getStatus());
+    verify(ctx).header("Retry-After", "1");
+
+    when(ctx.ip()).thenReturn("10.0.0.2");
+    control.admit(ctx);
+
+    when(ctx.ip()).thenReturn("10.0.0.1");
+    now += TimeUnit.SECONDS.toNanos(1);
+    control.admit(ctx);
+
+    AdmissionStats stats = control.getStats();
+    assertEquals(4, stats.admitted);
+    assertEquals(1, stats.rateLimited);
+    assertEquals(0, stats.overloaded);
+    assertEquals(2, stats.clients);
+  }
+
+  // Tests that behind a load balancer, clients are told apart by the
+  // address the balancer adds to the end of `X-Forwarded-For`, not by the
+  // balancer's own address or anything the client put in the header
+  @Test
+  public void rateLimitsClientsBehindALoadBalancer() {
+    AdmissionControl control = new AdmissionControl(1, 1, new AdaptiveLimit(10, 1, 10, TARGET_LATENCY), 50,
+        () -> now, "X-Forwarded-For", Set.of());
+    when(ctx.header("X-Forwarded-For")).thenReturn("203.0.113.7");
+    control.admit(ctx);
+    Assertions.assertThrows(HttpResponseException.class, () -> {
+      control.admit(ctx);
+    });
+
+    // A different client, through the same balancer
+    when(ctx.header("X-Forwarded-For")).thenReturn("1.2.3.4, 198.51.100.9");
+    control.admit(ctx);
+    // The same client, making up an address of its own
+    when(ctx.header("X-Forwarded-For")).thenReturn("1.2.3.5, 198.51.100.9");
+    Assertions.assertThrows(HttpResponseException.class, () -> {
+      control.admit(ctx);
+    });
+
+    // Without the header, the balancer's address is all there is
+    when(ctx.header("X-Forwarded-For")).thenReturn(null);
+    control.admit(ctx);
+    assertEquals(3, control.getStats().clients);
+  }
+
+  // Tests that requests over the concurrency limit are turned away with a
+  // 503 when they can't get a slot within the budget, and let through again
+  // once a slot is freed
+  @Test
+  public void shedsLoadOverTheConcurrencyLimit() {
+    AdmissionControl control = admissionControl(0, 0, new AdaptiveLimit(1, 1, 1, TARGET_LATENCY), 0);
+    control.admit(ctx);
+    verify(ctx).attribute(AdmissionControl.START_ATTRIBUTE, 0L);
+
+    Assertions.assertThrows(ServiceUnavailableResponse.class, () -> {
+      control.admit(ctx);
+    });
+    verify(ctx).header("Retry-After", "1");
+    assertEquals(1, control.getStats().inFlight);
+
+    when(ctx.<Long>attribute(AdmissionControl.START_ATTRIBUTE)).thenReturn(0L);
+    control.release(ctx);
+    assertEquals(0, control.getStats().inFlight);
+
+    control.admit(ctx);
+    AdmissionStats stats = control.getStats();
+    assertEquals(2, stats.admitted);
+    assertEquals(1, stats.overloaded);
+  }
+
+  // Tests that releasing a request that was never let through does nothing
+  @Test
+  public void releaseWithoutAdmitDoesNothing() {
+    AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, TARGET_LATENCY);
+    AdmissionControl control = admissionControl(0, 0, limit, 0);
+    control.release(ctx);
+    assertEquals(0, limit.getInFlight());
+  }
+
+  // Tests that the stats route, and requests from the other instances in
+  // the cluster, skip admission control, but the cluster routes are
+  // limited like any other when anyone else calls them
+  @Test
+  public void exemptPathsAreAlwaysLetThrough() {
+    AdmissionControl control = new AdmissionControl(0, 0, new AdaptiveLimit(1, 1, 1, TARGET_LATENCY), 0,
+        () -> now, null, Set.of("10.0.0.9"));
+    control.admit(ctx);
+
+    when(ctx.path()).thenReturn(AdmissionControl.STATS_PATH);
+    control.admit(ctx);
+    when(ctx.path()).thenReturn("/api/cluster/todos");
+    when(ctx.ip()).thenReturn("10.0.0.9");
+    control.admit(ctx);
+    verify(ctx, never()).header(any(), any());
+
+    control.getAdmissionStats(ctx);
+    verify(ctx).json(statsCaptor.capture());
+    assertEquals(1, statsCaptor.getValue().admitted);
+    assertEquals(1, statsCaptor.getValue().concurrencyLimit);
+
+    // Not a peer
+    when(ctx.ip()).thenReturn("10.0.0.1");
+    Assertions.assertThrows(ServiceUnavailableResponse.class, () -> {
+      control.admit(ctx);
+    });
+  }
+
+  // Tests that open streams (live queries and exports) don't hold on to
+  // concurrency slots, so ordinary requests are still let through, and
+  // that closing them doesn't count as a (very slow) request
+  @Test
+  public void streamsDontTakeConcurrencySlots() {
+    AdaptiveLimit limit = new AdaptiveLimit(2, 1, 2, TARGET_LATENCY);
+    AdmissionControl control = admissionControl(0, 0, limit, 0);
+    when(ctx.path()).thenReturn("/api/todos/live");
+    for (int i = 0; i < 10; i++) {
+      control.admit(ctx);
+    }
+    when(ctx.path()).thenReturn("/api/todos/export");
+    control.admit(ctx);
+    assertEquals(0, limit.getInFlight());
+
+    now += TimeUnit.HOURS.toNanos(1);
+    control.release(ctx);
+    assertEquals(2, limit.getLimit());
+
+    when(ctx.path()).thenReturn("/api/todos");
+    control.admit(ctx);
+    assertEquals(1, limit.getInFlight());
+    assertEquals(12, control.getStats().admitted);
+    assertEquals(0, control.getStats().overloaded);
+  }
+
+  // Tests that the limit goes up while requests are fast, and comes down
+  // quickly when they're slow, staying within its bounds
+  @Test
+  public void limitAdaptsToLatency() {
+    AdaptiveLimit limit = new AdaptiveLimit(4, 2, 8, TARGET_LATENCY);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limit.acquire(0));
+      limit.release(TARGET_LATENCY / 2);
+    }
+    assertEquals(8, limit.getLimit());
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limit.acquire(0));
+      limit.release(TARGET_LATENCY * 10);
+    }
+    assertEquals(5, limit.getLimit());
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limit.acquire(0));
+      limit.release(TARGET_LATENCY * 10);
+    }
+    assertEquals(2, limit.getLimit());
+    assertTrue(limit.getSmoothedLatencyMicros() > TimeUnit.NANOSECONDS.toMicros(TARGET_LATENCY));
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> {
+      new AdaptiveLimit(1, 2, 8, TARGET_LATENCY);
+    });
+  }
+
+  // Tests that a request waits (within its budget) for a slot to free up
+  @Test
+  public void waitsForASlotWithinTheBudget() throws InterruptedException {
+    AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, TimeUnit.MILLISECONDS.toNanos(1));
+    assertTrue(limit.acquire(0));
+
+    boolean[] gotSlot = new boolean[1];
+    Thread waiter = new Thread(() -> {
+      gotSlot[0] = limit.acquire(TimeUnit.SECONDS.toNanos(10));
+    });
+    waiter.start();
+    while (limit.getWaiting() == 0) {
+      Thread.sleep(1);
+    }
+    limit.release(0);
+    waiter.join();
+    assertTrue(gotSlot[0]);
+    assertEquals(1, limit.getInFlight());
+
+    // When requests are slow, a short budget isn't even worth waiting for
+    AdaptiveLimit slowLimit = new AdaptiveLimit(1, 1, 1, TimeUnit.SECONDS.toNanos(1));
+    assertTrue(slowLimit.acquire(0));
+    assertFalse(slowLimit.acquire(TimeUnit.MILLISECONDS.toNanos(10)));
+  }
+}
@@ -0,0 +1,112 @@
+package umm3601.health;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import umm3601.Main;
+import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoScanner;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests the health checks, and the warmup the server runs before it says
+ * it's ready.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class HealthSpec {
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<HealthStatus> statusCaptor;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  private static Warmup warmup(int rounds, long budgetMillis) throws IOException {
+    return new Warmup(new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(2), 3),
+        new UserDatabase(Main.USER_DATA_FILE), rounds, budgetMillis);
+  }
+
+  @Test
+  public void canBuildController() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    new Health().addRoutes(mockServer);
+    verify(mockServer).get(eq(Health.LIVE_PATH), any());
+    verify(mockServer).get(eq(Health.READY_PATH), any());
+  }
+
+  // Tests that the server is live straight away, but not ready until it
+  // has warmed up
+  @Test
+  public void readyOnceWarmedUp() throws IOException {
+    Health health = new Health();
+    health.setWarmup(warmup(3, 60_000));
+
+    health.getLive(ctx);
+    verify(ctx).json(statusCaptor.capture());
+    assertEquals("live", statusCaptor.getValue().status);
+    verify(ctx, never()).status(any(HttpStatus.class));
+
+    health.getReady(ctx);
+    verify(ctx).status(HttpStatus.SERVICE_UNAVAILABLE);
+    assertFalse(health.isReady());
+
+    health.warmUp();
+    assertTrue(health.isReady());
+    Mockito.reset(ctx);
+    health.getReady(ctx);
+    verify(ctx).json(statusCaptor.capture());
+    assertEquals("ready", statusCaptor.getValue().status);
+    assertTrue(statusCaptor.getValue().warmupQueries > 0);
+    verify(ctx, never()).status(any(HttpStatus.class));
+  }
+
+  // Tests that without a warmup the server is ready as soon as it starts
+  @Test
+  public void readyWithoutWarmup() {
+    Health health = new Health();
+    assertFalse(health.isReady());
+    health.warmUp();
+    assertTrue(health.isReady());
+  }
+
+  // Tests that the warmup runs the same number of queries every round, and
+  // actually makes JSON from them
+  @Test
+  public void warmupRunsEveryRound() throws IOException {
+    Warmup oneRound = warmup(1, 60_000);
+    int perRound = oneRound.run();
+    assertTrue(perRound > 10, "Only " + perRound + " queries per round");
+    assertTrue(oneRound.getBytesWritten() > 0);
+
+    assertEquals(5 * perRound, warmup(5, 60_000).run());
+  }
+
+  // Tests that the warmup stops once it's used up its time budget
+  @Test
+  public void warmupStopsAtBudget() throws IOException {
+    assertEquals(0, warmup(1_000_000, 0).run());
+  }
+}
@@ -0,0 +1,167 @@
+package umm3601.querylog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.javalin.Javalin;
+import umm3601.ServerTiming;
+
+/**
+ * Tests the slow query log, and the query fingerprints it groups queries
+ * by.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SlowQueryLogSpec {
+
+  // A fake wall clock for the timestamps
+  private static final long NOW = 1_700_000_000_000L;
+
+  private static SlowQueryLog slowQueryLog(long thresholdMillis, int capacity, int logEvery) {
+    return new SlowQueryLog(thresholdMillis, capacity, logEvery, () -> NOW);
+  }
+
+  // Timings for a query that sent back `rows` records
+  private static ServerTiming.Timings timings(long rows) {
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    timings.add("filter", System.nanoTime(), rows);
+    timings.add("serialize", System.nanoTime(), rows);
+    return timings;
+  }
+
+  @Test
+  public void canBuildController() {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    slowQueryLog(250, 10, 1).addRoutes(mockServer);
+    verify(mockServer, atLeastOnce()).before(eq("/api/todos"), any());
+    verify(mockServer, atLeastOnce()).after(eq("/api/users"), any());
+    verify(mockServer).get(eq(SlowQueryLog.REPORT_PATH), any());
+  }
+
+  // Tests that the order of the parameters, and the values of the filters,
+  // don't change a query's fingerprint, but the fields it's sorted or
+  // grouped by do
+  @Test
+  public void fingerprintsIgnoreFilterValues() {
+    String fingerprint = QueryFingerprint.of("/api/todos",
+        Map.of("owner", List.of("Blanche"), "limit", List.of("10")));
+    assertEquals("/api/todos?limit=?&owner=?", fingerprint);
+    assertEquals(fingerprint, QueryFingerprint.of("/api/todos",
+        Map.of("limit", List.of("3"), "owner", List.of("Fry"))));
+
+    assertEquals("/api/todos?orderBy=body", QueryFingerprint.of("/api/todos",
+        Map.of("orderBy", List.of("body"))));
+    assertFalse(QueryFingerprint.of("/api/todos", Map.of("orderBy", List.of("owner")))
+        .equals(QueryFingerprint.of("/api/todos", Map.of("orderBy", List.of("body")))));
+
+    assertEquals("/api/users", QueryFingerprint.of("/api/users", Map.of()));
+  }
+
+  // Tests that only queries over the threshold are kept, along with their
+  // timings and how many records they sent back
+  @Test
+  public void keepsOnlySlowQueries() {
+    SlowQueryLog fast = slowQueryLog(60_000, 10, 1);
+    assertFalse(fast.record("/api/todos", Map.of(), null, timings(5)));
+    assertTrue(fast.getReport().recent.isEmpty());
+    assertEquals(1, fast.getReport().shapes.get(0).count);
+    assertEquals(0, fast.getReport().shapes.get(0).slowCount);
+
+    SlowQueryLog everything = slowQueryLog(0, 10, 1);
+    assertTrue(everything.record("/api/todos", Map.of("owner", List.of("Fry")), "owner=Fry", timings(7)));
+    SlowQueryReport report = everything.getReport();
+    assertEquals(0, report.thresholdMillis);
+    assertEquals(1, report.recent.size());
+    SlowQuery slowQuery = report.recent.get(0);
+    assertEquals(NOW, slowQuery.timestamp);
+    assertEquals("/api/todos?owner=?", slowQuery.fingerprint);
+    assertEquals("/api/todos?owner=Fry", slowQuery.query);
+    assertEquals(7, slowQuery.rows);
+    assertEquals(List.of("filter", "serialize"), List.copyOf(slowQuery.phases.keySet()));
+    assertTrue(slowQuery.millis >= slowQuery.phases.get("filter"));
+  }
+
+  // Tests that the ring buffer keeps just the most recent slow queries,
+  // newest first
+  @Test
+  public void keepsMostRecentSlowQueries() {
+    SlowQueryLog log = slowQueryLog(0, 3, 1);
+    for (int i = 0; i < 5; i++) {
+      log.record("/api/users", Map.of("age", List.of("" + i)), "age=" + i, timings(i));
+    }
+    List<SlowQuery> recent = log.getReport().recent;
+    assertEquals(3, recent.size());
+    assertEquals("/api/users?age=4", recent.get(0).query);
+    assertEquals("/api/users?age=3", recent.get(1).query);
+    assertEquals("/api/users?age=2", recent.get(2).query);
+  }
+
+  // Tests that queries are counted by shape, and the shapes taking the
+  // most time overall come first
+  @Test
+  public void countsQueriesByShape() {
+    SlowQueryLog log = slowQueryLog(0, 10, 1);
+    for (int i = 0; i < 4; i++) {
+      log.record("/api/todos", Map.of("owner", List.of("Fry")), "owner=Fry", timings(10));
+    }
+    log.record("/api/users", Map.of(), null, timings(2));
+
+    List<QueryShapeStats> shapes = log.getReport().shapes;
+    assertEquals(2, shapes.size());
+    for (int i = 1; i < shapes.size(); i++) {
+      assertTrue(shapes.get(i - 1).totalMillis >= shapes.get(i).totalMillis);
+    }
+    QueryShapeStats todos = shapes.stream()
+        .filter(shape -> shape.fingerprint.equals("/api/todos?owner=?")).findFirst().get();
+    assertEquals(4, todos.count);
+    assertEquals(4, todos.slowCount);
+    assertEquals(10.0, todos.meanRows);
+    assertTrue(todos.maxMillis <= todos.totalMillis);
+    assertEquals(todos.totalMillis / 4, todos.meanMillis, 1e-9);
+  }
+
+  // Tests that once there are too many shapes, new ones are counted
+  // together
+  @Test
+  public void limitsNumberOfShapes() {
+    SlowQueryLog log = slowQueryLog(60_000, 10, 1);
+    for (int i = 0; i < SlowQueryLog.MAX_SHAPES + 5; i++) {
+      log.record("/api/todos", Map.of("param" + i, List.of("x")), null, timings(0));
+    }
+    // A shape we've already seen is still counted as itself
+    log.record("/api/todos", Map.of("param0", List.of("y")), null, timings(0));
+
+    List<QueryShapeStats> shapes = log.getReport().shapes;
+    assertEquals(SlowQueryLog.MAX_SHAPES + 1, shapes.size());
+    for (QueryShapeStats shape : shapes) {
+      if (shape.fingerprint.equals(SlowQueryLog.OTHER_SHAPES)) {
+        assertEquals(5, shape.count);
+      } else if (shape.fingerprint.equals("/api/todos?param0=?")) {
+        assertEquals(2, shape.count);
+      }
+    }
+  }
+
+  // Tests that only logging some slow queries still counts and keeps them
+  // all
+  @Test
+  public void sampledQueriesAreStillCounted() {
+    SlowQueryLog log = slowQueryLog(0, 100, 10);
+    for (int i = 0; i < 25; i++) {
+      assertTrue(log.record("/api/todos", Map.of(), null, timings(1)));
+    }
+    SlowQueryReport report = log.getReport();
+    assertEquals(25, report.recent.size());
+    assertEquals(25, report.shapes.get(0).slowCount);
+  }
+}
@@ -0,0 +1,179 @@
+package umm3601.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.user.User;
+
+/**
+ * Tests the generic indexed store, using a handful of users.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class IndexedStoreSpec {
+
+  private static final Schema<User> SCHEMA = new Schema<>();
+  private static final IndexDefinition<User, HashIndex<String>> ID = SCHEMA.hash("_id", user -> user._id);
+  private static final IndexDefinition<User, BitmapIndex<String>> COMPANY =
+      SCHEMA.bitmap("company", user -> user.company);
+  private static final IndexDefinition<User, SortedIndex<Integer>> AGE = SCHEMA.sortedInts("age", user -> user.age);
+  private static final IndexDefinition<User, SortedIndex<String>> BY_NAME =
+      SCHEMA.ordering("byName", user -> user.name);
+  private static final IndexDefinition<User, TextIndex> NAME =
+      SCHEMA.text("name", user -> List.of(user.name, user.email));
+
+  private User[] users;
+  private IndexedStore<User> store;
+
+  private static User user(String id, String name, int age, String company) {
+    User user = new User();
+    user._id = id;
+    user.name = name;
+    user.age = age;
+    user.company = company;
+    user.email = name.toLowerCase(Locale.ROOT).replace(' ', '.') + "@" + company.toLowerCase(Locale.ROOT) + ".com";
+    return user;
+  }
+
+  @BeforeEach
+  public void setUp() {
+    users = new User[] {
+        user("a", "Connie Stewart", 37, "OHMNET"),
+        user("b", "Stokes Clayton", 27, "MOMENTIA"),
+        user("c", "Bolton Monroe", 25, "OHMNET"),
+        user("d", "Merrill Parker", 27, "OHMNET"),
+        user("a", "Duplicate Id", 40, "MOMENTIA"),
+    };
+    store = new IndexedStore<>(SCHEMA, users);
+  }
+
+  @Test
+  public void canFindByKey() {
+    assertSame(users[2], store.find(ID, "c"));
+    // The first record with a key wins
+    assertSame(users[0], store.find(ID, "a"));
+    assertNull(store.find(ID, "z"));
+    assertEquals(-1, store.index(ID).get("z"));
+  }
+
+  @Test
+  public void canFilterOnBitmaps() {
+    BitmapIndex<String> company = store.index(COMPANY);
+    assertEquals(Set.of("MOMENTIA", "OHMNET"), company.keys());
+    assertEquals("[MOMENTIA, OHMNET]", company.keys().toString());
+    assertArrayEquals(new User[] {users[0], users[2], users[3]}, store.select(company.get("OHMNET")));
+    assertTrue(company.get("NOWHERE").isEmpty());
+    assertEquals(store.all(), company.union(List.of("OHMNET", "MOMENTIA", "NOWHERE")));
+
+    BitmapIndex<String> lower = company.mapKeys(key -> key.substring(0, 1));
+    assertEquals(Set.of("M", "O"), lower.keys());
+    assertEquals(company.get("OHMNET"), lower.get("O"));
+
+    // MOMENTIA is the first key, and OHMNET the second
+    assertArrayEquals(new int[] {1, 0, 1, 1, 0}, company.ordinals());
+  }
+
+  @Test
+  public void canFilterAndSortOnRanges() {
+    SortedIndex<Integer> age = store.index(AGE);
+    // Equal ages stay in their original order
+    assertArrayEquals(new int[] {2, 1, 3, 0, 4}, age.range(null, null, null));
+    assertArrayEquals(new int[] {1, 3, 0}, age.range(26, 37, null));
+    assertArrayEquals(new int[] {}, age.range(38, 39, null));
+    assertArrayEquals(new int[] {}, age.range(30, 20, null));
+
+    BitSet ohmnet = store.index(COMPANY).get("OHMNET");
+    assertArrayEquals(new int[] {3, 0}, age.range(26, null, ohmnet));
+    BitSet justOne = new BitSet();
+    justOne.set(3);
+    assertArrayEquals(new int[] {3}, age.range(null, null, justOne));
+
+    BitSet expected = new BitSet();
+    expected.set(1);
+    expected.set(3);
+    assertEquals(expected, age.rangeBits(27, 27));
+
+    assertArrayEquals(new int[] {2, 3, 0}, age.sort(ohmnet, 10));
+    assertArrayEquals(new int[] {2, 3}, age.sort(ohmnet, 2));
+  }
+
+  // Tests that an index on an `int` field agrees with the general one,
+  // including for negative values and ties
+  @Test
+  public void intIndexesMatchGeneralOnes() {
+    int[] values = {5, -3, 5, Integer.MIN_VALUE, 0, Integer.MAX_VALUE, -3, 5, 0};
+    List<Integer> boxed = new ArrayList<>();
+    for (int value : values) {
+      boxed.add(value);
+    }
+    SortedIndex<Integer> ints = new SortedIndex<>(values);
+    SortedIndex<Integer> general = new SortedIndex<>(boxed, true);
+    BitSet some = new BitSet();
+    some.set(0, values.length, true);
+    some.clear(2);
+    some.clear(4);
+    Integer[][] ranges = {
+        {null, null}, {-3, 5}, {0, 0}, {6, null}, {null, -4}, {Integer.MIN_VALUE, Integer.MAX_VALUE}, {5, -3},
+    };
+    for (Integer[] range : ranges) {
+      assertArrayEquals(general.range(range[0], range[1], null), ints.range(range[0], range[1], null));
+      assertArrayEquals(general.range(range[0], range[1], some), ints.range(range[0], range[1], some));
+    }
+    assertArrayEquals(general.sort(some, 4), ints.sort(some, 4));
+    assertArrayEquals(new int[] {3, 1, 6, 4, 8, 0, 2, 7, 5}, ints.range(null, null, null));
+  }
+
+  @Test
+  public void canSearchByPrefix() {
+    TextIndex name = store.index(NAME);
+    assertArrayEquals(new int[] {0}, name.search("CONNIE", 10));
+    // Matches on both a name and an email are only returned once
+    assertArrayEquals(new int[] {1}, name.search("stokes", 10));
+    assertArrayEquals(new int[] {2, 0}, name.search("", 2));
+    assertArrayEquals(new int[] {}, name.search("zzz", 10));
+  }
+
+  @Test
+  public void rejectsIndexesFromOtherSchemas() {
+    Schema<User> other = new Schema<>();
+    IndexDefinition<User, HashIndex<String>> otherId = other.hash("_id", user -> user._id);
+    assertThrows(IllegalArgumentException.class, () -> store.index(otherId));
+    assertThrows(IllegalArgumentException.class, () -> other.hash("_id", user -> user.name));
+  }
+
+  @Test
+  public void orderingsCanSortButNotFilter() {
+    SortedIndex<String> byName = store.index(BY_NAME);
+    assertArrayEquals(new int[] {2, 0, 4, 3, 1}, byName.sort(store.all(), 10));
+    assertArrayEquals(new int[] {2, 0, 4, 3, 1}, byName.range(null, null, null));
+    assertThrows(IllegalStateException.class, () -> byName.range("C", null, null));
+    assertThrows(IllegalStateException.class, () -> byName.rangeBits(null, "M"));
+  }
+
+  @Test
+  public void canSwapInOtherRecords() {
+    User[] copies = new User[users.length];
+    for (int i = 0; i < users.length; i++) {
+      copies[i] = user(users[i]._id, "Copy " + i, users[i].age, users[i].company);
+    }
+    IndexedStore<User> swapped = store.withRecords(copies);
+    // The indexes are the same, but give back the new records
+    assertSame(copies[2], swapped.find(ID, "c"));
+    assertArrayEquals(new User[] {copies[1], copies[3], copies[0]}, swapped.select(new int[] {1, 3, 0}));
+    assertSame(store.index(AGE), swapped.index(AGE));
+    assertSame(users[2], store.find(ID, "c"));
+    assertThrows(IllegalArgumentException.class, () -> store.withRecords(new User[2]));
+  }
+}
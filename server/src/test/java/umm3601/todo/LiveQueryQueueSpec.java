@@ -0,0 +1,107 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the queues that live queries' changes wait in to be sent.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class LiveQueryQueueSpec {
+
+  private static Todo todo(String id) {
+    Todo todo = new Todo();
+    todo._id = id;
+    return todo;
+  }
+
+  // Tests that nothing is sent until the queue is started, and then
+  // everything is, in order
+  @Test
+  public void sendsNothingUntilStarted() {
+    List<Runnable> writes = new ArrayList<>();
+    List<String> sent = new ArrayList<>();
+    LiveQueryQueue queue = new LiveQueryQueue(10, writes::add,
+        (event, todo) -> sent.add(event + " " + todo._id), () -> sent.add("overflow"));
+
+    queue.onChange("add", todo("a"));
+    queue.onChange("remove", todo("b"));
+    assertTrue(writes.isEmpty());
+    assertEquals(2, queue.size());
+
+    queue.start();
+    queue.onChange("update", todo("c"));
+    // Only one writer at a time
+    assertEquals(1, writes.size());
+    writes.get(0).run();
+    assertEquals(List.of("add a", "remove b", "update c"), sent);
+    assertEquals(0, queue.size());
+  }
+
+  // Tests that a client that falls too far behind is given up on, and
+  // isn't sent anything more
+  @Test
+  public void givesUpWhenFull() {
+    List<Runnable> writes = new ArrayList<>();
+    List<String> sent = new ArrayList<>();
+    LiveQueryQueue queue = new LiveQueryQueue(2, writes::add,
+        (event, todo) -> sent.add(event + " " + todo._id), () -> sent.add("overflow"));
+    queue.start();
+
+    queue.onChange("add", todo("a"));
+    queue.onChange("add", todo("b"));
+    assertFalse(queue.isOverflowed());
+    queue.onChange("add", todo("c"));
+    assertTrue(queue.isOverflowed());
+    assertEquals(0, queue.size());
+    queue.onChange("add", todo("d"));
+    assertEquals(0, queue.size());
+
+    writes.get(0).run();
+    assertEquals(List.of("overflow"), sent);
+    assertEquals(1, writes.size());
+  }
+
+  // Tests that changes queued while they're being sent on real threads
+  // all get sent, in order, by one writer at a time
+  @Test
+  public void sendsEverythingInOrder() throws InterruptedException {
+    ExecutorService writer = Executors.newFixedThreadPool(4);
+    int changes = 100_000;
+    List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger writing = new AtomicInteger();
+    AtomicInteger mostWriting = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(changes);
+    LiveQueryQueue queue = new LiveQueryQueue(changes, writer, (event, todo) -> {
+      mostWriting.accumulateAndGet(writing.incrementAndGet(), Math::max);
+      sent.add(todo._id);
+      writing.decrementAndGet();
+      done.countDown();
+    }, () -> { });
+    queue.start();
+
+    for (int i = 0; i < changes; i++) {
+      queue.onChange("add", todo(Integer.toString(i)));
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    writer.shutdown();
+
+    assertFalse(queue.isOverflowed());
+    assertEquals(1, mostWriting.get());
+    for (int i = 0; i < changes; i++) {
+      assertEquals(Integer.toString(i), sent.get(i));
+    }
+  }
+}
@@ -3,33 +3,64 @@ package umm3601.todo;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.ThreadMXBean;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.UnauthorizedResponse;
+import io.javalin.http.sse.SseClient;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
 
 import umm3601.Main;
+import umm3601.NdjsonExport;
+import umm3601.QueryCache;
+import umm3601.ServerTiming;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
 
 /**
  * Tests the logic of the TodoController
@@ -143,6 +174,36 @@ public class TodoControllerSpec {
     assertEquals(db.size(), localTodoArrayCaptor.getValue().length);
   }
 
+  // Tests that a timed request notes how long each step took, and how
+  // many todos each step found
+  @Test
+  public void getTodosAddsTimings() throws IOException {
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    when(ctx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(timings);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry"), "limit", List.of("3")));
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(localTodoArrayCaptor.capture());
+    assertEquals(3, localTodoArrayCaptor.getValue().length);
+    assertTrue(timings.getNanos("parse") >= 0);
+    assertEquals(db.getTodos(Map.of("owner", List.of("Fry"))).length, timings.getRows("filter"));
+    assertEquals(3, timings.getRows("select"));
+    assertEquals(3, timings.getRows("serialize"));
+    assertEquals(-1, timings.getNanos("sort"));
+
+    // Across several partitions, the filtered todos add up, and the
+    // partitions' results are merged
+    TodoController partitionedController =
+        new TodoController(new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(2), 3));
+    timings = new ServerTiming.Timings();
+    when(ctx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(timings);
+    when(ctx.queryParamMap()).thenReturn(Map.of("orderBy", List.of("body"), "limit", List.of("5")));
+    partitionedController.getTodos(ctx);
+    assertEquals(db.size(), timings.getRows("filter"));
+    assertEquals(5, timings.getRows("merge"));
+    assertTrue(timings.getRows("sort") >= 5);
+  }
+
   // Tests for filtering todos by owner
   @Test
   public void filterTodosByOwner() throws IOException {
@@ -441,4 +502,1086 @@ public class TodoControllerSpec {
     });
     assertEquals("No todo with id " + null + " was found.", exception.getMessage());
   }
+
+  // Tests that stats with no groupBy gives a single total count
+  @Test
+  public void canGetTotalTodoCount() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodoStats(ctx);
+
+    ArgumentCaptor<TodoGroupCount[]> statsCaptor = ArgumentCaptor.forClass(TodoGroupCount[].class);
+    verify(ctx).json(statsCaptor.capture());
+    TodoGroupCount[] stats = statsCaptor.getValue();
+    assertEquals(1, stats.length);
+    assertEquals(db.size(), stats[0].count);
+    assertEquals(null, stats[0].owner);
+  }
+
+  // Tests that grouping by owner gives one count per owner
+  @Test
+  public void canGetTodoCountsByOwner() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Collections.singletonList("owner"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodoStats(ctx);
+
+    ArgumentCaptor<TodoGroupCount[]> statsCaptor = ArgumentCaptor.forClass(TodoGroupCount[].class);
+    verify(ctx).json(statsCaptor.capture());
+    TodoGroupCount[] stats = statsCaptor.getValue();
+    // There are 6 owners, and the counts should add up to all the todos
+    assertEquals(6, stats.length);
+    assertEquals(db.size(), Arrays.stream(stats).mapToInt(group -> group.count).sum());
+    // The groups come out sorted by owner, so "Barry" is first
+    assertEquals("Barry", stats[0].owner);
+    assertEquals(51, stats[0].count);
+  }
+
+  // Tests that groupBy can combine fields, and honors the usual filters
+  @Test
+  public void canGetFilteredTodoCountsByOwnerAndStatus() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Collections.singletonList("owner,status"));
+    queryParams.put("category", Collections.singletonList("homework"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodoStats(ctx);
+
+    ArgumentCaptor<TodoGroupCount[]> statsCaptor = ArgumentCaptor.forClass(TodoGroupCount[].class);
+    verify(ctx).json(statsCaptor.capture());
+    TodoGroupCount[] stats = statsCaptor.getValue();
+    assertEquals(12, stats.length);
+    assertEquals(79, Arrays.stream(stats).mapToInt(group -> group.count).sum());
+    for (TodoGroupCount group : stats) {
+      // The counts should match what `getTodos` gives for the same filters
+      Map<String, List<String>> groupParams = new HashMap<>();
+      groupParams.put("category", Collections.singletonList("homework"));
+      groupParams.put("owner", Collections.singletonList(group.owner));
+      groupParams.put("status", Collections.singletonList(group.status ? "complete" : "incomplete"));
+      assertEquals(db.getTodos(groupParams).length, group.count);
+      assertEquals(null, group.category);
+    }
+  }
+
+  // Tests that an unknown groupBy field is rejected
+  @Test
+  public void respondsAppropriatelyToIllegalGroupBy() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Collections.singletonList("body"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodoStats(ctx);
+    });
+    assertEquals("Specified groupBy field 'body' must be one of owner, category, or status", exception.getMessage());
+  }
+
+  // Tests that expand=owner joins each todo with its owner's user record
+  @Test
+  public void canExpandTodoOwners() {
+    User blanche = new User();
+    blanche.name = "Blanche";
+    blanche.company = "OHMNET";
+    UserDatabase userDb = Mockito.mock(UserDatabase.class);
+    when(userDb.getUserByName("Blanche")).thenReturn(blanche);
+    TodoController joiningController = new TodoController(db, userDb);
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("expand", Collections.singletonList("owner"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    joiningController.getTodos(ctx);
+
+    ArgumentCaptor<ExpandedTodo[]> expandedCaptor = ArgumentCaptor.forClass(ExpandedTodo[].class);
+    verify(ctx).json(expandedCaptor.capture());
+    ExpandedTodo[] todos = expandedCaptor.getValue();
+    assertEquals(db.size(), todos.length);
+    for (ExpandedTodo todo : todos) {
+      if (todo.owner.equals("Blanche")) {
+        assertEquals(blanche, todo.ownerUser);
+      } else {
+        assertEquals(null, todo.ownerUser);
+      }
+    }
+  }
+
+  // Tests that ownerCompany only keeps todos whose owner works for that company
+  @Test
+  public void canFilterTodosByOwnerCompany() {
+    UserDatabase userDb = Mockito.mock(UserDatabase.class);
+    when(userDb.getNamesInCompany("OHMNET")).thenReturn(Set.of("Fry", "Dawn"));
+    TodoController joiningController = new TodoController(db, userDb);
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("ownerCompany", Collections.singletonList("OHMNET"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    joiningController.getTodos(ctx);
+
+    verify(ctx).json(localTodoArrayCaptor.capture());
+    assertEquals(61 + 50, localTodoArrayCaptor.getValue().length);
+    for (Todo todo : localTodoArrayCaptor.getValue()) {
+      assertTrue(todo.owner.equals("Fry") || todo.owner.equals("Dawn"));
+    }
+  }
+
+  // Tests that expanding owners without any user data is rejected
+  @Test
+  public void respondsAppropriatelyToExpandWithoutUsers() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("expand", Collections.singletonList("owner"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("This server has no user data to join todos with", exception.getMessage());
+  }
+
+  // Tests that expanding anything other than the owner is rejected
+  @Test
+  public void respondsAppropriatelyToIllegalExpand() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("expand", Collections.singletonList("category"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified expand 'category' must be owner", exception.getMessage());
+  }
+
+  // Tests that splitting a contains scan across several threads gives
+  // exactly the same todos, in the same order, as a sequential scan
+  @Test
+  public void parallelContainsScanMatchesSequentialScan() throws IOException {
+    // A threshold of 1 makes every scan go parallel, in tiny chunks
+    TodoScanner parallelScanner = new TodoScanner(4, 1);
+    assertEquals(4, parallelScanner.getParallelism());
+    TodoDatabase parallelDb = new TodoDatabase(Main.TODO_DATA_FILE, parallelScanner);
+    TodoDatabase sequentialDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(1));
+
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Collections.singletonList("sit"));
+    Todo[] parallelTodos = parallelDb.getTodos(queryParams);
+    Todo[] sequentialTodos = sequentialDb.getTodos(queryParams);
+
+    assertEquals(69, sequentialTodos.length);
+    assertEquals(sequentialTodos.length, parallelTodos.length);
+    for (int i = 0; i < sequentialTodos.length; i++) {
+      assertEquals(sequentialTodos[i]._id, parallelTodos[i]._id);
+    }
+  }
+
+  // Tests that searching the contiguous body bytes (both a byte at a
+  // time and with the Vector API) finds exactly the same todos as
+  // `String.contains`, for needles of a range of lengths
+  @Test
+  public void byteContainsMatchesStringContains() {
+    Todo[] todos = db.getTodos(new HashMap<>());
+    TodoBodies bodies = TodoBodies.of(todos);
+    assertNotNull(bodies);
+    BitSet allTodos = new BitSet(todos.length);
+    allTodos.set(0, todos.length);
+
+    String[] needles = {"", "s", "Ex", "sit", "Lorem", "commodo.", "Cillum non labore ex sint esse.", "not there"};
+    for (String needle : needles) {
+      BitSet expected = new BitSet(todos.length);
+      for (int i = 0; i < todos.length; i++) {
+        if (todos[i].body.contains(needle)) {
+          expected.set(i);
+        }
+      }
+      byte[] needleBytes = needle.getBytes(StandardCharsets.ISO_8859_1);
+      assertEquals(expected, bodies.contains(allTodos, 0, todos.length, needleBytes, false), needle);
+      assertEquals(expected, bodies.contains(allTodos, 0, todos.length, needleBytes, true), needle);
+    }
+  }
+
+  // Tests that a needle can't match across the end of one body and
+  // the start of the next, and that only candidates are checked
+  @Test
+  public void byteContainsStaysWithinEachBody() {
+    Todo[] todos = new Todo[3];
+    String[] texts = {"ab", "cd", "abcd"};
+    for (int i = 0; i < todos.length; i++) {
+      todos[i] = new Todo();
+      todos[i].body = texts[i];
+    }
+    TodoBodies bodies = TodoBodies.of(todos);
+    byte[] needle = "bc".getBytes(StandardCharsets.ISO_8859_1);
+
+    BitSet candidates = new BitSet();
+    candidates.set(0, 3);
+    assertEquals(BitSet.valueOf(new long[] {0b100}), bodies.contains(candidates, 0, 3, needle, true));
+    candidates.clear(2);
+    assertTrue(bodies.contains(candidates, 0, 3, needle, true).isEmpty());
+  }
+
+  // Tests that bodies that aren't Latin-1 fall back to `String.contains`
+  @Test
+  public void nonLatin1BodiesFallBackToStringContains() {
+    Todo todo = new Todo();
+    todo.body = "\u2713 done";
+    assertEquals(null, TodoBodies.of(new Todo[] {todo}));
+    assertFalse(TodoBodies.isLatin1("\u2713"));
+    assertTrue(TodoBodies.isLatin1("caf\u00e9"));
+  }
+
+  // How many bytes one indexed query (for at most 10 todos) may allocate,
+  // once it's warmed up. This leaves room for the results, and for merging
+  // them when the query spans several partitions; allocating a bitmap or
+  // an array the size of the database on every query (as we once did) is
+  // well over it.
+  private static final long QUERY_ALLOCATION_BUDGET = 2048;
+
+  // Tests that queries answered from the indexes don't allocate much
+  // more than their results, so regressions in the hot path get caught
+  @Test
+  public void indexedQueriesStayWithinAllocationBudget() {
+    ThreadMXBean threads = ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+    Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+        "This JVM can't count the bytes a thread allocates");
+
+    // Make enough todos that a bitmap or array over all of them would blow
+    // the budget by itself
+    Todo[] original = db.getTodos(new HashMap<>());
+    Todo[] many = new Todo[original.length * 200];
+    for (int i = 0; i < many.length; i++) {
+      Todo todo = original[i % original.length];
+      many[i] = new Todo();
+      many[i]._id = todo._id + "-" + i;
+      many[i].owner = todo.owner;
+      many[i].status = todo.status;
+      many[i].body = todo.body;
+      many[i].category = todo.category;
+    }
+    TodoDatabase bigDb = new TodoDatabase(many, new TodoScanner(1), 4);
+    List<Map<String, List<String>>> queries = List.of(
+        Map.of("owner", List.of("Blanche"), "limit", List.of("10")),
+        Map.of("owner", List.of("Fry"), "status", List.of("complete"), "limit", List.of("10")),
+        Map.of("owner", List.of("Barry"), "orderBy", List.of("category"), "limit", List.of("10")),
+        Map.of("category", List.of("homework"), "orderBy", List.of("body"), "limit", List.of("10")));
+
+    for (Map<String, List<String>> queryParams : queries) {
+      TodoQuery query = TodoQuery.parse(queryParams);
+      // Warm up first, so the JIT has compiled the query path and the
+      // scratch bitmaps have been made
+      for (int i = 0; i < 2000; i++) {
+        bigDb.getTodos(query, null);
+      }
+      int runs = 1000;
+      long before = threads.getCurrentThreadAllocatedBytes();
+      for (int i = 0; i < runs; i++) {
+        bigDb.getTodos(query, null);
+      }
+      long perQuery = (threads.getCurrentThreadAllocatedBytes() - before) / runs;
+      assertTrue(perQuery < QUERY_ALLOCATION_BUDGET,
+          queryParams + " allocated " + perQuery + " bytes per query, more than the budget");
+    }
+  }
+
+  // Tests that bodies laid out off the heap are searched, and turned back
+  // into strings, just like bodies on the heap
+  @Test
+  public void offHeapBodiesMatchOnHeapBodies() {
+    Todo[] todos = db.getTodos(new HashMap<>());
+    String[] texts = new String[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      texts[i] = todos[i].body;
+    }
+    TodoBodies onHeap = TodoBodies.of(texts);
+    TodoBodies offHeap = TodoBodies.offHeap(texts);
+    assertFalse(onHeap.isOffHeap());
+    assertTrue(offHeap.isOffHeap());
+    assertEquals(onHeap.byteSize(), offHeap.byteSize());
+    BitSet allTodos = new BitSet(todos.length);
+    allTodos.set(0, todos.length);
+
+    for (String needle : new String[] {"", "s", "sit", "commodo.", "not there"}) {
+      byte[] needleBytes = needle.getBytes(StandardCharsets.ISO_8859_1);
+      assertEquals(onHeap.contains(allTodos, 0, todos.length, needleBytes, true),
+          offHeap.contains(allTodos, 0, todos.length, needleBytes, true), needle);
+    }
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals(todos[i].body, onHeap.get(i));
+      assertEquals(todos[i].body, offHeap.get(i));
+      assertEquals(todos[i].body, offHeap.text(i).toString());
+    }
+    CharSequence text = offHeap.text(0);
+    assertEquals(todos[0].body.charAt(3), text.charAt(3));
+    assertEquals(todos[0].body.substring(2, 9), text.subSequence(2, 9).toString());
+    assertEquals(null, TodoBodies.offHeap(new String[] {"\u2713 done"}));
+  }
+
+  // Tests that a database keeping its bodies off the heap gives the same
+  // results as one that doesn't, with the bodies filled back in
+  @Test
+  public void offHeapDatabaseMatchesOnHeapDatabase() throws IOException {
+    TodoDatabase offHeapDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(2), 3, true);
+    assertTrue(offHeapDb.isOffHeap());
+    assertFalse(db.isOffHeap());
+
+    List<Map<String, List<String>>> queries = List.of(
+        Map.of(),
+        Map.of("orderBy", List.of("body")),
+        Map.of("orderBy", List.of("owner"), "limit", List.of("12")),
+        Map.of("contains", List.of("sit")),
+        Map.of("contains", List.of("\u2713")),
+        Map.of("containsIgnoreCase", List.of("LOREM")),
+        Map.of("containsIgnoreCase", List.of("\u2713")),
+        Map.of("match", List.of("^Ex.*a\\.$")));
+    for (Map<String, List<String>> queryParams : queries) {
+      Todo[] expected = db.getTodos(queryParams);
+      Todo[] actual = offHeapDb.getTodos(queryParams);
+      assertEquals(expected.length, actual.length, queryParams.toString());
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i]._id, actual[i]._id, queryParams.toString());
+        assertEquals(expected[i].body, actual[i].body, queryParams.toString());
+      }
+    }
+
+    Todo todo = offHeapDb.getTodo("58895985a22c04e761776d54");
+    assertEquals(db.getTodo("58895985a22c04e761776d54").body, todo.body);
+
+    // Every todo comes back, with its body, a chunk at a time
+    int count = 0;
+    for (Todo[] chunk : offHeapDb.getAllTodos()) {
+      assertTrue(chunk.length <= TodoPartition.CHUNK_SIZE);
+      for (Todo chunkTodo : chunk) {
+        assertNotNull(chunkTodo.body);
+        count++;
+      }
+    }
+    assertEquals(db.size(), count);
+    // Replacing the todos keeps them off the heap
+    assertTrue(offHeapDb.withTodos(db.getTodos(new HashMap<>())).isOffHeap());
+  }
+
+  // Tests that containsIgnoreCase finds bodies regardless of case
+  @Test
+  public void canGetTodosWithContainsIgnoreCase() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("containsIgnoreCase", Collections.singletonList("LOREM"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(localTodoArrayCaptor.capture());
+    assertEquals(84, localTodoArrayCaptor.getValue().length);
+    for (Todo todo : localTodoArrayCaptor.getValue()) {
+      assertTrue(todo.body.toLowerCase().contains("lorem"));
+    }
+  }
+
+  // Tests that containsIgnoreCase also looks at owners (and categories)
+  @Test
+  public void containsIgnoreCaseMatchesOwnersAndCategories() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("containsIgnoreCase", Collections.singletonList("ry"));
+    // "Fry" and "Barry"
+    assertEquals(61 + 51, db.getTodos(queryParams).length);
+
+    queryParams.put("containsIgnoreCase", Collections.singletonList("HOME"));
+    for (Todo todo : db.getTodos(queryParams)) {
+      assertEquals("homework", todo.category);
+    }
+  }
+
+  // Tests that match filters with a regular expression over body, owner,
+  // and category
+  @Test
+  public void canGetTodosMatchingRegex() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("match", Collections.singletonList("^Lorem"));
+    Todo[] todos = db.getTodos(queryParams);
+    assertEquals(4, todos.length);
+    for (Todo todo : todos) {
+      assertTrue(todo.body.startsWith("Lorem"));
+    }
+
+    queryParams.put("match", Collections.singletonList("Fry|Dawn"));
+    assertEquals(61 + 50, db.getTodos(queryParams).length);
+  }
+
+  // Tests that an illegal regular expression is rejected
+  @Test
+  public void respondsAppropriatelyToIllegalRegex() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("match", Collections.singletonList("[unclosed"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified match '[unclosed' is not a legal regular expression", exception.getMessage());
+  }
+
+  // Tests that a regular expression that backtracks out of control is
+  // stopped, rather than tying up the server
+  @Test
+  public void respondsAppropriatelyToRunawayRegex() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("match", Collections.singletonList("(.*){20}z"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified match '(.*){20}z' took too long to evaluate", exception.getMessage());
+  }
+
+  // Tests that splitting the todos into several partitions gives exactly
+  // the same results, in the same order, as a single partition, for a
+  // range of filters, orderings, limits, and groupings
+  @Test
+  public void partitionedDatabaseMatchesSinglePartition() throws IOException {
+    TodoDatabase partitionedDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(4), 4);
+    assertEquals(4, partitionedDb.getPartitionCount());
+    assertEquals(db.size(), partitionedDb.size());
+
+    List<Map<String, List<String>>> queries = List.of(
+        Map.of(),
+        Map.of("orderBy", List.of("owner")),
+        Map.of("orderBy", List.of("body")),
+        Map.of("orderBy", List.of("status"), "limit", List.of("20")),
+        Map.of("orderBy", List.of("category"), "status", List.of("complete")),
+        Map.of("limit", List.of("7")),
+        Map.of("limit", List.of("0")),
+        Map.of("contains", List.of("sit"), "orderBy", List.of("owner")),
+        Map.of("owner", List.of("Blanche"), "orderBy", List.of("body")),
+        Map.of("owner", List.of("Nobody")));
+    for (Map<String, List<String>> queryParams : queries) {
+      Todo[] expected = db.getTodos(queryParams);
+      Todo[] actual = partitionedDb.getTodos(queryParams);
+      assertEquals(expected.length, actual.length, queryParams.toString());
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i]._id, actual[i]._id, queryParams.toString());
+      }
+    }
+
+    Set<String> owners = Set.of("Fry", "Dawn");
+    assertEquals(db.getTodos(Map.of(), owners).length, partitionedDb.getTodos(Map.of(), owners).length);
+
+    for (String groupBy : List.of("owner", "category,status", "owner,category,status")) {
+      Map<String, List<String>> queryParams = Map.of("groupBy", List.of(groupBy));
+      TodoGroupCount[] expected = db.getTodoStats(queryParams);
+      TodoGroupCount[] actual = partitionedDb.getTodoStats(queryParams);
+      assertEquals(expected.length, actual.length, groupBy);
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i].owner, actual[i].owner);
+        assertEquals(expected[i].category, actual[i].category);
+        assertEquals(expected[i].status, actual[i].status);
+        assertEquals(expected[i].count, actual[i].count);
+      }
+    }
+    // A total with nothing matched is still a single group
+    TodoGroupCount[] none = partitionedDb.getTodoStats(Map.of("owner", List.of("Nobody")));
+    assertEquals(1, none.length);
+    assertEquals(0, none[0].count);
+
+    Todo todo = db.getTodos(new HashMap<>())[123];
+    assertEquals(todo._id, partitionedDb.getTodo(todo._id)._id);
+    assertEquals(null, partitionedDb.getTodo("nonexistent"));
+  }
+
+  // Tests that a query for a single owner only touches one partition,
+  // while other queries touch them all
+  @Test
+  public void ownerQueryTouchesOnePartition() throws IOException {
+    TodoDatabase partitionedDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(4), 4);
+    assertEquals(1, partitionedDb.partitionCountFor(Map.of("owner", List.of("Fry"))));
+    assertEquals(4, partitionedDb.partitionCountFor(Map.of("category", List.of("homework"))));
+  }
+
+  // Tests that errors found while querying partitions in parallel come
+  // back as the same bad requests as with a single partition
+  @Test
+  public void partitionedDatabaseReportsBadRequests() throws IOException {
+    TodoDatabase partitionedDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(4), 4);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      partitionedDb.getTodos(Map.of("match", List.of("(.*){20}z")));
+    });
+    assertEquals("Specified match '(.*){20}z' took too long to evaluate", exception.getMessage());
+
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      partitionedDb.getTodos(Map.of("limit", List.of("-1")));
+    });
+    assertEquals("Specified limit '-1' can't be negative", exception.getMessage());
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> {
+      new TodoDatabase(new Todo[0], new TodoScanner(1), 0);
+    });
+  }
+
+  // Tests that the hash ring spreads keys out fairly evenly, and that
+  // adding a node only moves keys to that new node
+  @Test
+  public void hashRingIsConsistent() {
+    HashRing threeNodes = new HashRing(List.of("localhost:4567", "localhost:4568", "localhost:4569"));
+    HashRing fourNodes =
+        new HashRing(List.of("localhost:4567", "localhost:4568", "localhost:4569", "localhost:4570"));
+    Map<String, Integer> counts = new HashMap<>();
+    int moved = 0;
+    for (int i = 0; i < 1000; i++) {
+      String key = "owner" + i;
+      counts.merge(threeNodes.nodeFor(key), 1, Integer::sum);
+      if (!threeNodes.nodeFor(key).equals(fourNodes.nodeFor(key))) {
+        assertEquals("localhost:4570", fourNodes.nodeFor(key));
+        moved++;
+      }
+    }
+    assertEquals(3, counts.size());
+    for (int count : counts.values()) {
+      assertTrue(count > 200 && count < 470, "Uneven slice of " + count);
+    }
+    assertTrue(moved < 400, "Too many keys moved: " + moved);
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> {
+      new HashRing(List.of());
+    });
+  }
+
+  // Tests that two instances in a cluster split the owners between them,
+  // and that asking either one gives the same todos, in the same order, as
+  // a single server with all the todos
+  @Test
+  public void clusterMatchesSingleInstance() {
+    List<String> peers = List.of("localhost:4567", "localhost:4568");
+    TodoCluster otherCluster = new TodoCluster("localhost:4568", peers, db);
+    // Rather than actually going over HTTP, this instance gets the other
+    // instance's slice straight from the "database"
+    TodoCluster cluster = new TodoCluster("localhost:4567", peers, db) {
+      @Override
+      CompletableFuture<TodoSlice> fetchSlice(String peer, String queryString) {
+        assertEquals("localhost:4568", peer);
+        return CompletableFuture.completedFuture(
+            db.getTodoSlice(TodoQuery.parse(ctx.queryParamMap()), otherCluster.getOwnedOwners()));
+      }
+    };
+
+    // Every owner is owned by exactly one instance
+    Set<String> allOwners = new TreeSet<>(cluster.getOwnedOwners());
+    allOwners.addAll(otherCluster.getOwnedOwners());
+    assertEquals(db.getOwners(), allOwners);
+    assertEquals(db.getOwners().size(),
+        cluster.getOwnedOwners().size() + otherCluster.getOwnedOwners().size());
+    assertFalse(cluster.getOwnedOwners().isEmpty());
+    assertFalse(otherCluster.getOwnedOwners().isEmpty());
+
+    TodoController clusterController = new TodoController(db, null, cluster);
+    List<Map<String, List<String>>> queries = List.of(
+        Map.of(),
+        Map.of("orderBy", List.of("owner"), "limit", List.of("100")),
+        Map.of("orderBy", List.of("body"), "status", List.of("complete")),
+        Map.of("contains", List.of("sit")),
+        Map.of("owner", List.of("Fry")),
+        Map.of("owner", List.of("Barry")));
+    for (Map<String, List<String>> queryParams : queries) {
+      when(ctx.queryParamMap()).thenReturn(queryParams);
+      clusterController.getTodos(ctx);
+    }
+    verify(ctx, Mockito.times(queries.size())).json(localTodoArrayCaptor.capture());
+    List<Todo[]> results = localTodoArrayCaptor.getAllValues();
+    for (int q = 0; q < queries.size(); q++) {
+      Todo[] expected = db.getTodos(queries.get(q));
+      Todo[] actual = results.get(q);
+      assertEquals(expected.length, actual.length, queries.get(q).toString());
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i]._id, actual[i]._id, queries.get(q).toString());
+      }
+    }
+
+    // A single owner only needs one instance
+    assertEquals(1, cluster.peersFor(TodoQuery.parse(Map.of("owner", List.of("Fry")))).size());
+    assertEquals(2, cluster.peersFor(TodoQuery.parse(Map.of())).size());
+  }
+
+  // Tests that an instance's slice only has its own owners' todos
+  @Test
+  public void canGetClusterSlice() {
+    TodoCluster cluster = new TodoCluster("localhost:4567", List.of("localhost:4567", "localhost:4568"), db);
+    TodoController clusterController = new TodoController(db, null, cluster);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    ArgumentCaptor<TodoSlice> sliceCaptor = ArgumentCaptor.forClass(TodoSlice.class);
+    clusterController.getTodoSlice(ctx);
+    verify(ctx).json(sliceCaptor.capture());
+    TodoSlice slice = sliceCaptor.getValue();
+    assertEquals(slice.todos.length, slice.positions.length);
+    for (Todo todo : slice.todos) {
+      assertTrue(cluster.getOwnedOwners().contains(todo.owner));
+    }
+    assertEquals(db.getTodos(Collections.emptyMap(), cluster.getOwnedOwners()).length, slice.todos.length);
+  }
+
+  // Tests that bad requests reported by another instance are passed along,
+  // and that an instance has to be one of the peers
+  @Test
+  public void clusterReportsPeerErrors() {
+    List<String> peers = List.of("localhost:4567", "localhost:4568");
+    TodoCluster cluster = new TodoCluster("localhost:4567", peers, db) {
+      @Override
+      CompletableFuture<TodoSlice> fetchSlice(String peer, String queryString) {
+        return CompletableFuture.failedFuture(new BadRequestResponse("Peer says no"));
+      }
+    };
+    TodoController clusterController = new TodoController(db, null, cluster);
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      clusterController.getTodos(ctx);
+    });
+    assertEquals("Peer says no", exception.getMessage());
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> {
+      new TodoCluster("localhost:9999", peers, db);
+    });
+  }
+
+  // Tests that the canonical form of a query doesn't depend on the order
+  // of the parameters, but does on their values
+  @Test
+  public void canonicalQueryIgnoresParameterOrder() {
+    Map<String, List<String>> first = new LinkedHashMap<>();
+    first.put("owner", List.of("Fry"));
+    first.put("contains", List.of("a&b=c"));
+    Map<String, List<String>> second = new LinkedHashMap<>();
+    second.put("contains", List.of("a&b=c"));
+    second.put("owner", List.of("Fry"));
+
+    assertEquals(QueryCache.canonicalQuery(first), QueryCache.canonicalQuery(second));
+    assertEquals("contains=a%26b%3Dc&owner=Fry", QueryCache.canonicalQuery(first));
+    second.put("owner", List.of("Dawn"));
+    assertFalse(QueryCache.canonicalQuery(first).equals(QueryCache.canonicalQuery(second)));
+  }
+
+  // Tests that repeated queries, with their parameters in any order, are
+  // only parsed once, and that the cached query gives the same todos
+  @Test
+  public void repeatedQueriesAreParsedOnce() {
+    Map<String, List<String>> first = new LinkedHashMap<>();
+    first.put("owner", List.of("Fry"));
+    first.put("orderBy", List.of("category"));
+    Map<String, List<String>> second = new LinkedHashMap<>();
+    second.put("orderBy", List.of("category"));
+    second.put("owner", List.of("Fry"));
+
+    when(ctx.queryParamMap()).thenReturn(first);
+    todoController.getTodos(ctx);
+    when(ctx.queryParamMap()).thenReturn(second);
+    todoController.getTodos(ctx);
+
+    QueryCache<TodoQuery> queries = todoController.getQueryCache();
+    assertEquals(1, queries.getMisses());
+    assertEquals(1, queries.getHits());
+    assertEquals(1, queries.size());
+    verify(ctx, Mockito.times(2)).json(localTodoArrayCaptor.capture());
+    assertTrue(Arrays.equals(localTodoArrayCaptor.getAllValues().get(0), localTodoArrayCaptor.getAllValues().get(1)));
+  }
+
+  // Tests that a query is parsed into the right typed fields, with any
+  // bad parameters reported when it's parsed
+  @Test
+  public void canParseTodoQuery() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", List.of("COMPLETE"));
+    queryParams.put("limit", List.of("7"));
+    queryParams.put("groupBy", List.of("owner,status"));
+    queryParams.put("match", List.of("^Ips"));
+    TodoQuery query = TodoQuery.parse(queryParams);
+
+    assertEquals(Boolean.TRUE, query.getStatus());
+    assertEquals(7, query.getLimit());
+    assertEquals(Set.of("owner", "status"), query.getGroupBy());
+    assertEquals("^Ips", query.getMatchRegex());
+    assertNotNull(query.getMatch());
+    assertEquals(null, query.getOwner());
+    assertEquals(Integer.MAX_VALUE, TodoQuery.parse(Map.of()).getLimit());
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      TodoQuery.parse(Map.of("limit", List.of("-1")));
+    });
+    assertEquals("Specified limit '-1' can't be negative", exception.getMessage());
+  }
+
+  // Tests that `fields` sends back just the given fields of each todo, in
+  // the usual order, and the same todos as without it
+  @Test
+  public void canGetTodosWithFields() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry"), "fields", List.of("status, _id,owner")));
+    todoController.getTodos(ctx);
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<byte[]> jsonCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(jsonCaptor.capture());
+    verify(ctx, Mockito.times(2)).contentType(ContentType.APPLICATION_JSON);
+    Todo[] fryTodos = db.getTodos(Map.of("owner", List.of("Fry")));
+    JsonNode todos = new ObjectMapper().readTree(jsonCaptor.getValue());
+    assertEquals(fryTodos.length, todos.size());
+    for (int i = 0; i < todos.size(); i++) {
+      JsonNode todo = todos.get(i);
+      assertEquals(List.of("_id", "owner", "status"), iteratorToList(todo.fieldNames()));
+      assertEquals(fryTodos[i]._id, todo.get("_id").asText());
+      assertEquals(fryTodos[i].status, todo.get("status").asBoolean());
+    }
+    // The second request was written from the first one's pieces of JSON
+    assertTrue(Arrays.equals(jsonCaptor.getAllValues().get(0), jsonCaptor.getAllValues().get(1)));
+    assertTrue(db.getFieldProjection().getKeptCount() >= fryTodos.length);
+  }
+
+  // Tests that the pieces of JSON kept for `fields` belong to the database,
+  // so reloading the todos drops them, and doesn't touch other databases'
+  @Test
+  public void reloadingDropsKeptFields() throws IOException {
+    TodoDatabase otherDb = new TodoDatabase(Main.TODO_DATA_FILE);
+    TodoController otherController = new TodoController(otherDb);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry"), "fields", List.of("_id,owner")));
+    todoController.getTodos(ctx);
+    otherController.getTodos(ctx);
+    int kept = otherDb.getFieldProjection().getKeptCount();
+    assertTrue(kept > 0);
+
+    TodoDatabase reloadedDb = db.withTodos(db.getTodos(Map.of()));
+    todoController.reloadTodos(reloadedDb);
+    assertEquals(0, reloadedDb.getFieldProjection().getKeptCount());
+    assertEquals(kept, otherDb.getFieldProjection().getKeptCount());
+
+    todoController.getTodos(ctx);
+    assertEquals(kept, reloadedDb.getFieldProjection().getKeptCount());
+  }
+
+  // Tests that `fields` can only name todo fields, and `ownerUser` only
+  // with `expand=owner`
+  @Test
+  public void respondsAppropriatelyToIllegalFields() {
+    when(ctx.queryParamMap()).thenReturn(Map.of("fields", List.of("_id,color")));
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified field 'color' must be one of _id, owner, status, body, category, ownerUser",
+        exception.getMessage());
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("fields", List.of("owner,ownerUser")));
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified field 'ownerUser' needs expand=owner", exception.getMessage());
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("fields", List.of(" , ")));
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified fields ' , ' must name at least one field", exception.getMessage());
+  }
+
+  private static List<String> iteratorToList(Iterator<String> names) {
+    List<String> list = new ArrayList<>();
+    names.forEachRemaining(list::add);
+    return list;
+  }
+
+  // Tests that the export has every todo, one per line, straight from the
+  // partitions (so in database order within each partition)
+  @Test
+  public void canExportTodos() throws IOException {
+    TodoDatabase partitionedDb = new TodoDatabase(Main.TODO_DATA_FILE, new TodoScanner(2), 3);
+    TodoController exportController = new TodoController(partitionedDb);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    HttpServletResponse res = Mockito.mock(HttpServletResponse.class);
+    when(ctx.res()).thenReturn(res);
+    when(res.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        written.write(b);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener listener) {
+        // Only used for asynchronous writes, which we don't do
+      }
+    });
+
+    exportController.exportTodos(ctx);
+
+    verify(ctx).contentType(NdjsonExport.CONTENT_TYPE);
+    String[] lines = written.toString(StandardCharsets.UTF_8).split("\n");
+    assertEquals(db.size(), lines.length);
+    ObjectMapper mapper = new ObjectMapper();
+    Set<String> ids = new TreeSet<>();
+    for (String line : lines) {
+      Todo todo = mapper.readValue(line, Todo.class);
+      assertEquals(todo.owner, partitionedDb.getTodo(todo._id).owner);
+      ids.add(todo._id);
+    }
+    assertEquals(db.size(), ids.size());
+  }
+
+  private static Todo copyOf(Todo todo) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  // Tests that a live query gets a snapshot, and then just the changes to
+  // its todos, which are only checked against it if they could matter
+  @Test
+  public void liveQueryGetsSnapshotAndChanges() {
+    TodoController liveController = new TodoController(db);
+    // Send the changes straight away, rather than on another thread
+    liveController.setLiveQueryWriter(Runnable::run);
+    SseClient client = Mockito.mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry"), "status", List.of("incomplete")));
+
+    liveController.subscribeToTodos(client);
+
+    ArgumentCaptor<Object> snapshotCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(client).sendEvent(Mockito.eq("snapshot"), snapshotCaptor.capture());
+    Todo[] snapshot = (Todo[]) snapshotCaptor.getValue();
+    assertEquals(db.getTodos(Map.of("owner", List.of("Fry"), "status", List.of("incomplete"))).length,
+        snapshot.length);
+    verify(client).keepAlive();
+    assertEquals(1, liveController.getSubscriptions().size());
+
+    // Change one of Fry's incomplete todos, complete another, remove a
+    // third, add a new one, and change one of Blanche's
+    Todo[] todos = db.getTodos(Map.of());
+    List<Todo> newTodos = new ArrayList<>();
+    for (Todo todo : todos) {
+      newTodos.add(copyOf(todo));
+    }
+    newTodos.stream().filter(todo -> todo._id.equals(snapshot[0]._id)).findFirst().get().body = "Changed";
+    newTodos.stream().filter(todo -> todo._id.equals(snapshot[1]._id)).findFirst().get().status = true;
+    newTodos.removeIf(todo -> todo._id.equals(snapshot[2]._id));
+    Todo added = copyOf(snapshot[0]);
+    added._id = "new";
+    newTodos.add(added);
+    newTodos.stream().filter(todo -> todo.owner.equals("Blanche")).findFirst().get().body = "Changed";
+
+    liveController.reloadTodos(db.withTodos(newTodos.toArray(new Todo[0])));
+
+    ArgumentCaptor<Object> todoCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(client).sendEvent(Mockito.eq("update"), todoCaptor.capture());
+    assertEquals("Changed", ((Todo) todoCaptor.getValue()).body);
+    verify(client, Mockito.times(2)).sendEvent(Mockito.eq("remove"), todoCaptor.capture());
+    verify(client).sendEvent(Mockito.eq("add"), todoCaptor.capture());
+    assertEquals("new", ((Todo) todoCaptor.getValue())._id);
+    // Only the four changes to Fry's todos were checked
+    assertEquals(4, liveController.getSubscriptions().getEvaluations());
+    assertEquals("Changed", liveController.getTodoDatabase().getTodo(snapshot[0]._id).body);
+
+    ArgumentCaptor<Runnable> onClose = ArgumentCaptor.forClass(Runnable.class);
+    verify(client).onClose(onClose.capture());
+    onClose.getValue().run();
+    assertEquals(0, liveController.getSubscriptions().size());
+  }
+
+  // Tests that changes aren't sent to a live query's client by the reload
+  // (which holds the reload lock), but later, on a writer thread
+  @Test
+  public void liveQueryChangesAreSentOutsideReload() {
+    TodoController liveController = new TodoController(db);
+    List<Runnable> writes = new ArrayList<>();
+    liveController.setLiveQueryWriter(writes::add);
+    SseClient client = Mockito.mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    liveController.subscribeToTodos(client);
+    verify(client).sendEvent(Mockito.eq("snapshot"), any());
+
+    Todo changed = copyOf(db.getTodos(Map.of("owner", List.of("Fry")))[0]);
+    changed.body = "Changed";
+    List<Todo> newTodos = new ArrayList<>(Arrays.asList(db.getTodos(Map.of())));
+    newTodos.replaceAll(todo -> todo._id.equals(changed._id) ? changed : todo);
+    liveController.reloadTodos(db.withTodos(newTodos.toArray(new Todo[0])));
+
+    verify(client, Mockito.never()).sendEvent(Mockito.eq("update"), any());
+    assertEquals(1, writes.size());
+    writes.get(0).run();
+    verify(client).sendEvent("update", changed);
+  }
+
+  // Tests that a change made while the snapshot is being sent isn't
+  // missed, and comes after the snapshot
+  @Test
+  public void liveQueryGetsChangesMadeDuringSnapshot() {
+    TodoController liveController = new TodoController(db);
+    liveController.setLiveQueryWriter(Runnable::run);
+    SseClient client = Mockito.mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    Todo added = copyOf(db.getTodos(Map.of("owner", List.of("Fry")))[0]);
+    added._id = "new";
+    Mockito.doAnswer(invocation -> {
+      List<Todo> newTodos = new ArrayList<>(Arrays.asList(db.getTodos(Map.of())));
+      newTodos.add(added);
+      liveController.reloadTodos(db.withTodos(newTodos.toArray(new Todo[0])));
+      return null;
+    }).when(client).sendEvent(Mockito.eq("snapshot"), any());
+
+    liveController.subscribeToTodos(client);
+
+    InOrder inOrder = Mockito.inOrder(client);
+    inOrder.verify(client).sendEvent(Mockito.eq("snapshot"), any());
+    inOrder.verify(client).sendEvent("add", added);
+  }
+
+  // Tests that problems with a live query are sent as an event
+  @Test
+  public void liveQueryReportsBadRequests() {
+    SseClient client = Mockito.mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("limit", List.of("lots")));
+
+    todoController.subscribeToTodos(client);
+
+    verify(client).sendEvent("error", "Specified limit 'lots' can't be parsed to an integer");
+    verify(client).close();
+    verify(client, Mockito.never()).keepAlive();
+    assertEquals(0, todoController.getSubscriptions().size());
+  }
+
+  // Tests that reloading replaces all the todos, and that the todos are
+  // looked up in the new database from then on
+  @Test
+  public void canReloadTodos() {
+    TodoController reloadingController = new TodoController(db);
+    Todo todo = copyOf(db.getTodos(Map.of())[0]);
+    todo.body = "Replaced";
+
+    reloadingController.reloadTodos(db.withTodos(new Todo[] {todo}));
+
+    assertEquals(1, reloadingController.getTodoDatabase().size());
+    assertEquals("Replaced", reloadingController.getTodoDatabase().getTodo(todo._id).body);
+    when(ctx.pathParam("id")).thenReturn(todo._id);
+    reloadingController.getTodo(ctx);
+    verify(ctx).json(todo);
+  }
+
+  // Tests that an administrator with the token can replace the todos
+  // through the route, and that live queries get told what changed
+  @Test
+  public void canReplaceTodosThroughRoute() throws Exception {
+    TodoController reloadingController = new TodoController(db);
+    reloadingController.setLiveQueryWriter(Runnable::run);
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    reloadingController.addRoutes(mockServer);
+    // Without a token there's no route at all
+    verify(mockServer, Mockito.never()).put(Mockito.eq(TodoController.RELOAD_PATH), any());
+
+    reloadingController.setReloadToken("secret");
+    mockServer = Mockito.mock(Javalin.class);
+    reloadingController.addRoutes(mockServer);
+    ArgumentCaptor<Handler> handlerCaptor = ArgumentCaptor.forClass(Handler.class);
+    verify(mockServer).put(Mockito.eq(TodoController.RELOAD_PATH), handlerCaptor.capture());
+    Handler replace = handlerCaptor.getValue();
+
+    SseClient client = Mockito.mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    reloadingController.subscribeToTodos(client);
+
+    Todo todo = copyOf(db.getTodos(Map.of("owner", List.of("Fry")))[0]);
+    todo.body = "Replaced";
+    when(ctx.bodyAsClass(Todo[].class)).thenReturn(new Todo[] {todo});
+    when(ctx.header("Authorization")).thenReturn("Bearer wrong");
+    Assertions.assertThrows(UnauthorizedResponse.class, () -> replace.handle(ctx));
+    assertEquals(db.size(), reloadingController.getTodoDatabase().size());
+
+    when(ctx.header("Authorization")).thenReturn("Bearer secret");
+    replace.handle(ctx);
+    verify(ctx).status(HttpStatus.NO_CONTENT);
+    assertEquals(1, reloadingController.getTodoDatabase().size());
+    assertEquals("Replaced", reloadingController.getTodoDatabase().getTodo(todo._id).body);
+    verify(client).sendEvent("update", todo);
+
+    Todo duplicate = copyOf(todo);
+    when(ctx.bodyAsClass(Todo[].class)).thenReturn(new Todo[] {todo, duplicate});
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> replace.handle(ctx));
+    assertEquals("More than one todo has the _id " + todo._id, exception.getMessage());
+
+    duplicate.body = null;
+    when(ctx.bodyAsClass(Todo[].class)).thenReturn(new Todo[] {duplicate});
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> replace.handle(ctx));
+    assertEquals("Every todo needs an _id, owner, body, and category", exception.getMessage());
+  }
+
+  // Tests that the todos can't be reloaded in a cluster, since which
+  // owners each instance looks after was worked out from the old ones
+  @Test
+  public void cantReloadTodosInCluster() {
+    TodoCluster cluster = new TodoCluster("localhost:4567", List.of("localhost:4567", "localhost:4568"), db);
+    TodoController clusterController = new TodoController(db, null, cluster);
+    TodoDatabase emptyDb = db.withTodos(new Todo[0]);
+    Assertions.assertThrows(IllegalStateException.class, () -> clusterController.reloadTodos(emptyDb));
+    assertSame(db, clusterController.getTodoDatabase());
+  }
+
+  // Tests that two identical requests at the same time only look up the
+  // todos once, and both get the same (once serialized) JSON, and that
+  // each request's timings only have its own part in it
+  @Test
+  public void concurrentIdenticalRequestsShareResults() throws InterruptedException {
+    Todo[] todos = db.getTodos(Map.of("owner", List.of("Blanche")));
+    TodoDatabase slowDb = Mockito.mock(TodoDatabase.class);
+    TodoController sharingController = new TodoController(slowDb);
+    CountDownLatch started = new CountDownLatch(1);
+    when(slowDb.getTodos(any(TodoQuery.class), any(), any())).thenAnswer(invocation -> {
+      ServerTiming.Timings timings = invocation.getArgument(2);
+      timings.add("filter", System.nanoTime(), todos.length);
+      started.countDown();
+      // Hold on to the results until the other request has joined in
+      while (sharingController.getCoalescedCount() == 0) {
+        Thread.onSpinWait();
+      }
+      return todos;
+    });
+
+    Map<String, List<String>> queryParams = Map.of("owner", List.of("Blanche"));
+    Context firstCtx = Mockito.mock(Context.class);
+    Context secondCtx = Mockito.mock(Context.class);
+    when(firstCtx.queryParamMap()).thenReturn(queryParams);
+    when(secondCtx.queryParamMap()).thenReturn(queryParams);
+    ServerTiming.Timings firstTimings = new ServerTiming.Timings();
+    ServerTiming.Timings secondTimings = new ServerTiming.Timings();
+    when(firstCtx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(firstTimings);
+    when(secondCtx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(secondTimings);
+
+    Thread first = new Thread(() -> sharingController.getTodos(firstCtx));
+    first.start();
+    started.await();
+    sharingController.getTodos(secondCtx);
+    first.join();
+
+    verify(slowDb, Mockito.times(1)).getTodos(any(TodoQuery.class), any(), any());
+    ArgumentCaptor<byte[]> firstJson = ArgumentCaptor.forClass(byte[].class);
+    ArgumentCaptor<byte[]> secondJson = ArgumentCaptor.forClass(byte[].class);
+    verify(firstCtx).result(firstJson.capture());
+    verify(secondCtx).result(secondJson.capture());
+    assertSame(firstJson.getValue(), secondJson.getValue());
+    String json = new String(secondJson.getValue(), StandardCharsets.UTF_8);
+    assertTrue(json.startsWith("["));
+    assertTrue(json.contains("Blanche"));
+    verify(secondCtx).contentType(ContentType.APPLICATION_JSON);
+
+    // The first request found the todos, and the second waited for them
+    assertEquals(todos.length, firstTimings.getRows("filter"));
+    assertEquals(-1, firstTimings.getNanos("shared"));
+    assertTrue(secondTimings.getNanos("shared") >= 0);
+    assertEquals(-1, secondTimings.getNanos("filter"));
+    assertEquals(todos.length, secondTimings.getRows("serialize"));
+  }
 }
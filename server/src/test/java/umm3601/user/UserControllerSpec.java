@@ -1,6 +1,9 @@
 package umm3601.user;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -10,6 +13,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -22,10 +28,12 @@ import org.mockito.MockitoAnnotations;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import umm3601.Main;
+import umm3601.ServerTiming;
 
 /**
  * Tests the logic of the UserController
@@ -138,6 +146,24 @@ public class UserControllerSpec {
     assertEquals(db.size(), userArrayCaptor.getValue().length);
   }
 
+  // Tests that a timed request notes how long each step took, and how
+  // many users it found
+  @Test
+  public void getUsersAddsTimings() throws IOException {
+    ServerTiming.Timings timings = new ServerTiming.Timings();
+    when(ctx.<ServerTiming.Timings>attribute(ServerTiming.ATTRIBUTE)).thenReturn(timings);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    int count = userArrayCaptor.getValue().length;
+    assertTrue(timings.getNanos("parse") >= 0);
+    assertEquals(count, timings.getRows("filter"));
+    assertEquals(count, timings.getRows("serialize"));
+  }
+
   /**
    * Confirm that we can get all the users with age 25.
    *
@@ -270,4 +296,245 @@ public class UserControllerSpec {
     });
     assertEquals("No user with id " + null + " was found.", exception.getMessage());
   }
+
+  /**
+   * Confirm that we can look users up by name, which is what
+   * the todo controller uses to join todos with their owners.
+   */
+  @Test
+  public void canGetUserByName() {
+    User user = db.getUserByName("Connie Stewart");
+    assertEquals("OHMNET", user.company);
+    assertEquals(null, db.getUserByName("Nobody In Particular"));
+  }
+
+  /**
+   * Confirm that we can get the names of all the users at a company.
+   */
+  @Test
+  public void canGetNamesInCompany() {
+    assertEquals(Set.of("Connie Stewart", "Roseann Roberson"), db.getNamesInCompany("OHMNET"));
+    assertEquals(Set.of(), db.getNamesInCompany("NOT A COMPANY"));
+  }
+
+  /**
+   * Confirm that we can get all the users in a range of ages, and
+   * that they come back sorted by age.
+   */
+  @Test
+  public void canGetUsersInAgeRange() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"27"}));
+    queryParams.put("maxAge", Arrays.asList(new String[] {"35"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    User[] users = userArrayCaptor.getValue();
+    assertEquals(5, users.length);
+    for (int i = 0; i < users.length; i++) {
+      assertTrue(users[i].age >= 27 && users[i].age <= 35);
+      if (i > 0) {
+        assertTrue(users[i - 1].age <= users[i].age);
+      }
+    }
+  }
+
+  /**
+   * Confirm that an age range can be combined with a company.
+   */
+  @Test
+  public void canGetUsersWithMinAgeAndCompany() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"24"}));
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    assertEquals(1, userArrayCaptor.getValue().length);
+    assertEquals("Connie Stewart", userArrayCaptor.getValue()[0].name);
+  }
+
+  /**
+   * Confirm that an empty range (or an unknown company) gives no users.
+   */
+  @Test
+  public void emptyAgeRangeReturnsNoUsers() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"30"}));
+    queryParams.put("maxAge", Arrays.asList(new String[] {"29"}));
+    assertEquals(0, db.listUsers(queryParams).length);
+
+    queryParams.clear();
+    queryParams.put("maxAge", Arrays.asList(new String[] {"30"}));
+    queryParams.put("company", Arrays.asList(new String[] {"NOT A COMPANY"}));
+    assertEquals(0, db.listUsers(queryParams).length);
+  }
+
+  /**
+   * Confirm that we can sort all the users by age.
+   */
+  @Test
+  public void canSortUsersByAge() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"age"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    User[] users = userArrayCaptor.getValue();
+    assertEquals(db.size(), users.length);
+    assertEquals(23, users[0].age);
+    assertEquals(40, users[users.length - 1].age);
+    for (int i = 1; i < users.length; i++) {
+      assertTrue(users[i - 1].age <= users[i].age);
+    }
+  }
+
+  /**
+   * Test that an illegal `minAge` gets the same kind of error as an
+   * illegal `age`.
+   */
+  @Test
+  public void respondsAppropriatelyToIllegalMinAge() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList(new String[] {"old"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    assertEquals("Specified minAge 'old' can't be parsed to an integer", exception.getMessage());
+  }
+
+  /**
+   * Confirm that we can search for users by a prefix of a word
+   * in their name, ignoring case.
+   */
+  @Test
+  public void canSearchUsersByNamePrefix() {
+    when(ctx.queryParam("q")).thenReturn("STE");
+
+    userController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    assertEquals(1, userArrayCaptor.getValue().length);
+    assertEquals("Connie Stewart", userArrayCaptor.getValue()[0].name);
+  }
+
+  /**
+   * Confirm that searching by company finds everyone at the company,
+   * and that a user matching more than one key is only returned once.
+   */
+  @Test
+  public void canSearchUsersByCompanyPrefix() {
+    User[] users = db.searchUsers("ohm", 10);
+    assertEquals(2, users.length);
+    for (User user : users) {
+      assertEquals("OHMNET", user.company);
+    }
+    // "con" matches both Connie's name and her email
+    assertEquals(1, db.searchUsers("con", 10).length);
+  }
+
+  /**
+   * Confirm that a search only returns up to `limit` users.
+   */
+  @Test
+  public void canLimitUserSearch() {
+    when(ctx.queryParam("q")).thenReturn("m");
+    when(ctx.queryParam("limit")).thenReturn("2");
+
+    userController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    User[] users = userArrayCaptor.getValue();
+    assertEquals(2, users.length);
+    assertEquals("Marguerite Norton", users[0].name);
+    assertEquals("Merrill Parker", users[1].name);
+    assertEquals(5, db.searchUsers("m", 10).length);
+  }
+
+  /**
+   * Confirm that searches without a `q`, or with an illegal `limit`,
+   * are rejected.
+   */
+  @Test
+  public void respondsAppropriatelyToIllegalSearch() {
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.searchUsers(ctx);
+    });
+    assertEquals("A search needs a non-empty 'q' to search for", exception.getMessage());
+
+    when(ctx.queryParam("q")).thenReturn("m");
+    when(ctx.queryParam("limit")).thenReturn("lots");
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.searchUsers(ctx);
+    });
+    assertEquals("Specified limit 'lots' can't be parsed to an integer", exception.getMessage());
+
+    when(ctx.queryParam("limit")).thenReturn("-1");
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.searchUsers(ctx);
+    });
+    assertEquals("Specified limit '-1' can't be negative", exception.getMessage());
+  }
+
+  /**
+   * Confirm that the age parameters are combined into one range when a
+   * query is parsed, and that repeated queries are only parsed once.
+   */
+  @Test
+  public void canParseUserQuery() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", List.of("20"));
+    queryParams.put("maxAge", List.of("30"));
+    queryParams.put("orderBy", List.of("age"));
+    UserQuery query = UserQuery.parse(queryParams);
+    assertEquals(20, query.getMinAge());
+    assertEquals(30, query.getMaxAge());
+    assertTrue(query.filtersAge());
+    assertTrue(query.isOrderByAge());
+
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    userController.getUsers(ctx);
+    userController.getUsers(ctx);
+    verify(ctx, Mockito.times(2)).json(userArrayCaptor.capture());
+    for (User user : userArrayCaptor.getValue()) {
+      assertTrue(user.age >= 20 && user.age <= 30);
+    }
+    assertEquals(Arrays.asList(db.listUsers(query)), Arrays.asList(userArrayCaptor.getValue()));
+  }
+
+  /**
+   * Confirm that `fields` sends back just the given fields of each user,
+   * and that it can only name user fields.
+   */
+  @Test
+  public void canGetUsersWithFields() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("company", List.of("OHMNET"), "fields", List.of("company,name")));
+    userController.getUsers(ctx);
+
+    ArgumentCaptor<byte[]> jsonCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(jsonCaptor.capture());
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    User[] users = new ObjectMapper().readValue(jsonCaptor.getValue(), User[].class);
+    assertEquals(db.listUsers(Map.of("company", List.of("OHMNET"))).length, users.length);
+    for (User user : users) {
+      assertEquals("OHMNET", user.company);
+      assertNotNull(user.name);
+      assertNull(user._id);
+      assertNull(user.email);
+    }
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("fields", List.of("name,salary")));
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    assertEquals("Specified field 'salary' must be one of _id, name, age, company, email", exception.getMessage());
+  }
 }